@@ -92,6 +92,10 @@ android {
             useLegacyPackaging = true
         }
     }
+    androidResources {
+        // keep bundles uncompressed so they can be mapped from the APK and decoded in parallel
+        noCompress += listOf("xz", "tar")
+    }
     ndkVersion = "28.0.13004108"
 }
 
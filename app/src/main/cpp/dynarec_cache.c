@@ -0,0 +1,230 @@
+#include <dirent.h>
+#include <dlfcn.h>
+#include <errno.h>
+#include <inttypes.h>
+#include <pthread.h>
+#include <stdbool.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/stat.h>
+
+#include "dynarec_cache.h"
+#include "jni_resolver.h"
+#include "jni_sig_cache.h"
+#include "logger.h"
+#include "trace.h"
+
+#include "box64/src/include/librarian.h"
+#include "box64/src/include/library.h"
+#include "box64/src/include/x64emu.h"
+#include "box64/src/include/dynablock.h"
+
+#define LOG_TAG "zomdroid-dynarec-cache"
+
+#define DYNAREC_CACHE_DIR_NAME "box64-dynacache"
+#define DYNAREC_CACHE_VERSION 1
+#define DYNAREC_CACHE_INITIAL_CAPACITY 256
+
+struct DynarecCache {
+    char* lib_name;
+    char* file_path;
+    /** Open addressing set of entry point symbols, NULL for empty slot */
+    char** sym_names;
+    uint32_t capacity;
+    uint32_t count;
+    /** Opened for append once the file on disk is known to be valid */
+    FILE* file;
+    pthread_mutex_t mutex;
+};
+
+static char cache_dir_path[1024];
+static uint64_t box64_build_hash;
+static bool is_enabled = false;
+
+static const char header_format[] = "zomdroid-dynacache %d %016" PRIx64 "\n";
+
+/** Returns false if the symbol is already in the set */
+static bool insert_sym(DynarecCache* cache, const char* sym_name) {
+    if ((cache->count + 1) * 2 > cache->capacity) {
+        uint32_t new_capacity = cache->capacity == 0 ? DYNAREC_CACHE_INITIAL_CAPACITY : cache->capacity * 2;
+        char** new_sym_names = calloc(new_capacity, sizeof(char*));
+        for (uint32_t i = 0; i < cache->capacity; i++) {
+            if (cache->sym_names[i] == NULL) continue;
+            uint32_t j = zomdroid_fnv1a(cache->sym_names[i]) & (new_capacity - 1);
+            while (new_sym_names[j] != NULL) j = (j + 1) & (new_capacity - 1);
+            new_sym_names[j] = cache->sym_names[i];
+        }
+        free(cache->sym_names);
+        cache->sym_names = new_sym_names;
+        cache->capacity = new_capacity;
+    }
+    uint32_t i = zomdroid_fnv1a(sym_name) & (cache->capacity - 1);
+    for (; cache->sym_names[i] != NULL; i = (i + 1) & (cache->capacity - 1)) {
+        if (strcmp(cache->sym_names[i], sym_name) == 0) return false;
+    }
+    cache->sym_names[i] = strdup(sym_name);
+    cache->count++;
+    return true;
+}
+
+/** Returns false if anything in the file was unusable, so it gets written anew from what was kept */
+static bool load_file(DynarecCache* cache, const char* header) {
+    FILE* file = fopen(cache->file_path, "r");
+    if (file == NULL) return false;
+
+    bool is_valid = true;
+    char* line = NULL;
+    size_t line_cap = 0;
+    ssize_t len = getline(&line, &line_cap, file);
+    if (len <= 0 || strcmp(line, header) != 0) {
+        LOGI("Dynarec cache %s is for another version, discarding", cache->file_path);
+        is_valid = false;
+    } else {
+        while ((len = getline(&line, &line_cap, file)) > 0) {
+            // a line without newline is a write cut short by the process dying
+            if (line[len - 1] != '\n') {
+                is_valid = false;
+                break;
+            }
+            line[len - 1] = '\0';
+            if (strncmp(line, "Java_", 5) != 0 || strchr(line, ' ') != NULL) {
+                LOGW("Invalid line in dynarec cache %s", cache->file_path);
+                is_valid = false;
+                continue;
+            }
+            insert_sym(cache, line);
+        }
+    }
+    free(line);
+    fclose(file);
+    return is_valid;
+}
+
+static int rewrite_file(DynarecCache* cache, const char* header) {
+    size_t tmp_path_len = strlen(cache->file_path) + 5;
+    char* tmp_path = malloc(tmp_path_len);
+    snprintf(tmp_path, tmp_path_len, "%s.tmp", cache->file_path);
+    FILE* file = fopen(tmp_path, "w");
+    if (file == NULL) {
+        LOGW("Failed to create %s: %s", tmp_path, strerror(errno));
+        free(tmp_path);
+        return -1;
+    }
+    fputs(header, file);
+    for (uint32_t i = 0; i < cache->capacity; i++) {
+        if (cache->sym_names[i] != NULL) fprintf(file, "%s\n", cache->sym_names[i]);
+    }
+    bool is_written = fflush(file) == 0 && !ferror(file);
+    fclose(file);
+    if (!is_written || rename(tmp_path, cache->file_path) != 0) {
+        LOGW("Failed to write %s: %s", cache->file_path, strerror(errno));
+        remove(tmp_path);
+        free(tmp_path);
+        return -1;
+    }
+    free(tmp_path);
+    return 0;
+}
+
+/** Translated code only matters to the box64 build that produced it, caches of other builds are never read again */
+static void delete_other_builds() {
+    DIR* dir = opendir(cache_dir_path);
+    if (dir == NULL) return;
+    char build_suffix[32];
+    snprintf(build_suffix, sizeof(build_suffix), "-%016" PRIx64 ".blocks", box64_build_hash);
+    size_t suffix_len = strlen(build_suffix);
+    struct dirent* entry;
+    while ((entry = readdir(dir)) != NULL) {
+        size_t name_len = strlen(entry->d_name);
+        if (entry->d_name[0] == '.') continue;
+        if (name_len >= suffix_len && strcmp(entry->d_name + name_len - suffix_len, build_suffix) == 0) continue;
+        char path[1300];
+        snprintf(path, sizeof(path), "%s/%s", cache_dir_path, entry->d_name);
+        if (remove(path) == 0) LOGI("Deleted dynarec cache of another box64 build %s", entry->d_name);
+    }
+    closedir(dir);
+}
+
+int zomdroid_dynarec_cache_init() {
+    const char* cache_dir = getenv("ZOMDROID_CACHE_DIR");
+    if (cache_dir == NULL) {
+        LOGW("ZOMDROID_CACHE_DIR is not set, dynarec cache is off");
+        return -1;
+    }
+
+    // box64 is linked into this library or loaded next to it, either way its file identifies the build
+    Dl_info info;
+    if (dladdr((void*) &DBGetBlock, &info) == 0 || info.dli_fname == NULL
+            || zomdroid_jni_sig_cache_file_hash(info.dli_fname, &box64_build_hash) != 0) {
+        LOGW("Failed to identify box64 build, dynarec cache is off");
+        return -1;
+    }
+
+    snprintf(cache_dir_path, sizeof(cache_dir_path), "%s/%s", cache_dir, DYNAREC_CACHE_DIR_NAME);
+    if (mkdir(cache_dir_path, 0700) != 0 && errno != EEXIST) {
+        LOGW("Failed to create %s: %s", cache_dir_path, strerror(errno));
+        return -1;
+    }
+    delete_other_builds();
+
+    is_enabled = true;
+    LOGI("Dynarec cache is on for box64 build %016" PRIx64 " in %s", box64_build_hash, cache_dir_path);
+    return 0;
+}
+
+DynarecCache* zomdroid_dynarec_cache_open(const char* lib_name, uint64_t lib_hash) {
+    if (!is_enabled) return NULL;
+
+    char path[1300];
+    // one file per library file, so instances sharing a library also share its cache
+    snprintf(path, sizeof(path), "%s/%s-%016" PRIx64 "-%016" PRIx64 ".blocks", cache_dir_path, lib_name, lib_hash,
+             box64_build_hash);
+    char header[64];
+    snprintf(header, sizeof(header), header_format, DYNAREC_CACHE_VERSION, box64_build_hash);
+
+    DynarecCache* cache = calloc(1, sizeof(DynarecCache));
+    cache->lib_name = strdup(lib_name);
+    cache->file_path = strdup(path);
+    pthread_mutex_init(&cache->mutex, NULL);
+
+    if (!load_file(cache, header)) rewrite_file(cache, header);
+    cache->file = fopen(cache->file_path, "a");
+    if (cache->file == NULL) LOGW("Failed to open %s for append: %s", cache->file_path, strerror(errno));
+
+    LOGI("Loaded %u cached entry points for %s", cache->count, lib_name);
+    return cache;
+}
+
+void zomdroid_dynarec_cache_warm_up(DynarecCache* cache, library_t* lib) {
+    if (cache == NULL || cache->count == 0) return;
+
+    uint64_t start_ns = zomdroid_trace_now();
+    x64emu_t* emu = thread_get_emu();
+    struct lib_s* maplib = GetMaplib(lib);
+    uint32_t translated = 0;
+    pthread_mutex_lock(&cache->mutex);
+    for (uint32_t i = 0; i < cache->capacity; i++) {
+        if (cache->sym_names[i] == NULL) continue;
+        uintptr_t addr = FindGlobalSymbol(maplib, cache->sym_names[i], -1, NULL, 0);
+        // symbols of an older library build that got the same cache key are just skipped
+        if (addr == 0) continue;
+        if (DBGetBlock(emu, addr, 1, 0) != NULL) translated++;
+    }
+    pthread_mutex_unlock(&cache->mutex);
+
+    LOGI("Translated %u of %u cached entry points of %s", translated, cache->count, cache->lib_name);
+    char span_name[128];
+    snprintf(span_name, sizeof(span_name), "dynarec warm-up %s", cache->lib_name);
+    zomdroid_trace_span(span_name, start_ns, zomdroid_trace_now());
+}
+
+void zomdroid_dynarec_cache_put(DynarecCache* cache, const char* sym_name) {
+    if (cache == NULL) return;
+    pthread_mutex_lock(&cache->mutex);
+    if (insert_sym(cache, sym_name) && cache->file != NULL) {
+        fprintf(cache->file, "%s\n", sym_name);
+        fflush(cache->file);
+    }
+    pthread_mutex_unlock(&cache->mutex);
+}
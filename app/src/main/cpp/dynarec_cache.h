@@ -0,0 +1,28 @@
+#ifndef ZOMDROID_DYNAREC_CACHE_H
+#define ZOMDROID_DYNAREC_CACHE_H
+
+#include <stdint.h>
+
+#include "box64/src/include/box64context.h"
+
+/**
+ * Emulated JNI entry points that were called in earlier launches, persisted in $ZOMDROID_CACHE_DIR/box64-dynacache.
+ * When the library is loaded again their blocks are translated by the box64 dynarec right away, so the first calls
+ * during gameplay don't stall on translation. A cache file is only used for the exact library file and box64 build
+ * it was written for
+ */
+typedef struct DynarecCache DynarecCache;
+
+/** Keys caches to the box64 build and deletes caches of other builds. Returns -1 if caching is off */
+int zomdroid_dynarec_cache_init();
+
+/** Loads cache for the library, or starts an empty one if there is no valid file. Returns NULL if caching is off */
+DynarecCache* zomdroid_dynarec_cache_open(const char* lib_name, uint64_t lib_hash);
+
+/** Translates blocks of every cached entry point of the loaded library. NULL cache is allowed */
+void zomdroid_dynarec_cache_warm_up(DynarecCache* cache, library_t* lib);
+
+/** Adds the entry point and appends it to the cache file right away. NULL cache is allowed */
+void zomdroid_dynarec_cache_put(DynarecCache* cache, const char* sym_name);
+
+#endif //ZOMDROID_DYNAREC_CACHE_H
@@ -4,10 +4,14 @@
 #include <sys/mman.h>
 #include <errno.h>
 #include <stdlib.h>
+#include <pthread.h>
+#include <stdbool.h>
+#include <unistd.h>
 
 #include "logger.h"
 #include "wrapped_jni.h"
 #include "emulation.h"
+#include "trampoline.h"
 
 #include "box64/src/include/box64context.h"
 #include "box64/src/include/x64emu.h"
@@ -15,381 +19,298 @@
 #include "box64/src/include/librarian.h"
 #include "box64/src/include/callback.h"
 #include "box64/src/include/box32.h"
+#include "box64/src/include/dynarec.h"
+#include "box64/src/emu/x64emu_private.h"
 
 #define LOG_TAG "zomdroid-emu"
 
-#define A64_SF_32 0
-#define A64_SF_64 1
-#define A64_REG_0 0
-#define A64_REG_1 1
-#define A64_REG_2 2
-#define A64_REG_18 18
-#define A64_REG_29 29
-#define A64_REG_30 30
-#define A64_REG_SP 31
+#define TRAMPOLINE_CHUNK_SIZE (64 * 1024)
+#define TRAMPOLINE_ALIGNMENT 64
+
+typedef struct {
+    uint8_t* rw;
+    uint8_t* rx;
+    size_t size;
+    size_t used;
+} TrampolineChunk;
 
 static long page_size;
+static TrampolineChunk trampoline_chunk;
+static pthread_mutex_t trampoline_arena_mutex = PTHREAD_MUTEX_INITIALIZER;
+static bool is_trampoline_fallback_logged;
 uint64_t g_wrapped_jni_env;
 uint64_t g_wrapped_jvm;
 
-uint32_t base_mov_reg(uint8_t sf, uint8_t Rm, uint8_t Rd) {
-    return ((sf & 0x1) << 31) | (0b0101010000 << 21) | ((Rm & 0x1F) << 16) | (0b00000011111 << 5) | (Rd & 0x1F);
+/*
+ * Runners for the most common signatures. Arguments are put straight into emulated registers, without the signature
+ * parsing and va_list of RunFunctionFmt. They take the native arguments as is, followed by the emulated function ptr
+ * in the next free general purpose register, and are entered from trampoline with a tail branch.
+ * Only signatures that fit into x86-64 argument registers may be listed here
+ */
+#define SET_INT(reg, v) emu->regs[reg].q[0] = (uint64_t) (v)
+#define SET_FLOAT(i, v) emu->xmm[i].f[0] = (v)
+#define SET_DOUBLE(i, v) emu->xmm[i].d[0] = (v)
+
+/** Same frame handling as RunFunctionFmt for a call without stack arguments */
+static inline uint64_t run_emulated(x64emu_t* emu, uint64_t fn) {
+    emu->regs[_SP].q[0] -= 8;
+    *(uint64_t*) emu->regs[_SP].q[0] = emu->regs[_BP].q[0];
+    emu->regs[_BP].q[0] = emu->regs[_SP].q[0];
+
+    uint64_t old_ip = emu->ip.q[0];
+    DynaCall(emu, fn);
+
+    if (old_ip == emu->ip.q[0]) {
+        emu->regs[_SP].q[0] = emu->regs[_BP].q[0];
+        emu->regs[_BP].q[0] = *(uint64_t*) emu->regs[_SP].q[0];
+        emu->regs[_SP].q[0] += 8;
+    }
+    return emu->regs[_AX].q[0];
 }
 
-uint32_t base_mov_sp(uint8_t sf, uint8_t Rn, uint8_t Rd) {
-    return ((sf & 0x1) << 31) | (0b001000100000000000000 << 10) | ((Rn & 0x1F) << 5) | (Rd & 0x1F);
+static uint64_t run_pp(void* env, void* obj, uint64_t fn) {
+    x64emu_t* emu = thread_get_emu();
+    SET_INT(_DI, env);
+    SET_INT(_SI, obj);
+    return run_emulated(emu, fn);
 }
 
-uint32_t base_movz(uint8_t sf, uint8_t hw, uint16_t imm16, uint8_t rd) {
-    return ((sf & 0x1) << 31) | (0b10100101 << 23) | ((hw & 0x3) << 21) | ((imm16 & 0xFFFF) << 5) | (rd & 0x1F);
-}
-uint32_t base_movk(uint8_t sf, uint8_t hw, uint16_t imm16, uint8_t rd) {
-    return ((sf & 0x1) << 31) | (0b11100101 << 23) | ((hw & 0x3) << 21) | ((imm16 & 0xFFFF) << 5) | (rd & 0x1F);
+static uint64_t run_ppp(void* env, void* obj, void* a0, uint64_t fn) {
+    x64emu_t* emu = thread_get_emu();
+    SET_INT(_DI, env);
+    SET_INT(_SI, obj);
+    SET_INT(_DX, a0);
+    return run_emulated(emu, fn);
 }
 
-uint32_t base_stp_prei(uint8_t sf, int8_t imm7, uint8_t Rt2, uint8_t Rn, uint8_t Rt) {
-    return ((sf & 0x1) << 31) | (0b010100110 << 22) | ((imm7 & 0x7F) << 15) | ((Rt2 & 0x1F) << 10) | ((Rn & 0x1F) << 5) | (Rt & 0x1F);
-}
-uint32_t base_stp(uint8_t sf, int8_t imm7, uint8_t Rt2, uint8_t Rn, uint8_t Rt) {
-    return ((sf & 0x1) << 31) | (0b010100100 << 22) | ((imm7 & 0x7F) << 15) | ((Rt2 & 0x1F) << 10) | ((Rn & 0x1F) << 5) | (Rt & 0x1F);
+static uint64_t run_ppi(void* env, void* obj, int32_t a0, uint64_t fn) {
+    x64emu_t* emu = thread_get_emu();
+    SET_INT(_DI, env);
+    SET_INT(_SI, obj);
+    SET_INT(_DX, a0);
+    return run_emulated(emu, fn);
 }
 
-uint32_t base_ldp(uint8_t sf, int8_t imm7, uint8_t Rt2, uint8_t Rn, uint8_t Rt) {
-    return ((sf & 0x1) << 31) | (0b010100101 << 22) | ((imm7 & 0x7F) << 15) | ((Rt2 & 0x1F) << 10) | ((Rn & 0x1F) << 5) | (Rt & 0x1F);
+static uint64_t run_ppI(void* env, void* obj, int64_t a0, uint64_t fn) {
+    x64emu_t* emu = thread_get_emu();
+    SET_INT(_DI, env);
+    SET_INT(_SI, obj);
+    SET_INT(_DX, a0);
+    return run_emulated(emu, fn);
 }
 
-uint32_t base_ldp_posti(uint8_t sf, int8_t imm7, uint8_t Rt2, uint8_t Rn, uint8_t Rt) {
-    return ((sf & 0x1) << 31) | (0b010100011 << 22) | ((imm7 & 0x7F) << 15) | ((Rt2 & 0x1F) << 10) | ((Rn & 0x1F) << 5) | (Rt & 0x1F);
+static uint64_t run_ppC(void* env, void* obj, uint8_t a0, uint64_t fn) {
+    x64emu_t* emu = thread_get_emu();
+    SET_INT(_DI, env);
+    SET_INT(_SI, obj);
+    SET_INT(_DX, a0);
+    return run_emulated(emu, fn);
 }
 
-uint32_t base_blr(uint8_t Rn) {
-    return (0b1101011000111111000000 << 10) | ((Rn & 0x1F) << 5);
+static uint64_t run_ppf(void* env, void* obj, uint64_t fn, float a0) {
+    x64emu_t* emu = thread_get_emu();
+    SET_INT(_DI, env);
+    SET_INT(_SI, obj);
+    SET_FLOAT(0, a0);
+    return run_emulated(emu, fn);
 }
 
-uint32_t base_ret(uint8_t Rn) {
-    return (0b1101011001011111000000 << 10 ) | ((Rn & 0x1F) << 5);
+static uint64_t run_ppd(void* env, void* obj, uint64_t fn, double a0) {
+    x64emu_t* emu = thread_get_emu();
+    SET_INT(_DI, env);
+    SET_INT(_SI, obj);
+    SET_DOUBLE(0, a0);
+    return run_emulated(emu, fn);
 }
 
-uint32_t base_sub_imm(uint8_t sf, uint8_t sh, uint16_t imm12, uint8_t Rn, uint8_t Rd) {
-    return ((sf & 0x1) << 31) | (0b10100010 << 23) | ((sh & 0x1) << 22) | ((imm12 & 0xFFF) << 10) | ((Rn & 0x1F) << 5) | (Rd & 0x1F);
-}
-uint32_t base_add_imm(uint8_t sf, uint8_t sh, uint16_t imm12, uint8_t Rn, uint8_t Rd) {
-    return ((sf & 0x1) << 31) | (0b00100010 << 23) | ((sh & 0x1) << 22) | ((imm12 & 0xFFF) << 10) | ((Rn & 0x1F) << 5) | (Rd & 0x1F);
+static uint64_t run_ppii(void* env, void* obj, int32_t a0, int32_t a1, uint64_t fn) {
+    x64emu_t* emu = thread_get_emu();
+    SET_INT(_DI, env);
+    SET_INT(_SI, obj);
+    SET_INT(_DX, a0);
+    SET_INT(_CX, a1);
+    return run_emulated(emu, fn);
 }
 
-uint32_t base_str_imm(uint8_t sf, uint16_t imm12, uint8_t Rn, uint8_t Rt) {
-    return (0b1 << 31) | ((sf & 0x1) << 30) | (0b11100100 << 22) | ((imm12 & 0xFFF) << 10) | ((Rn & 0x1F) << 5) | (Rt & 0x1F);
+static uint64_t run_ppip(void* env, void* obj, int32_t a0, void* a1, uint64_t fn) {
+    x64emu_t* emu = thread_get_emu();
+    SET_INT(_DI, env);
+    SET_INT(_SI, obj);
+    SET_INT(_DX, a0);
+    SET_INT(_CX, a1);
+    return run_emulated(emu, fn);
 }
 
-uint32_t base_ldr_imm(uint8_t sf, uint16_t imm12, uint8_t Rn, uint8_t Rd) {
-    uint32_t insn = (0b1 << 31) | ((sf & 0x1) << 30) | (0b11100101 << 22) | ((imm12 & 0xFFF) << 10) | ((Rn & 0x1F) << 5) | (Rd & 0x1F);
-    return  insn;
+static uint64_t run_ppif(void* env, void* obj, int32_t a0, uint64_t fn, float a1) {
+    x64emu_t* emu = thread_get_emu();
+    SET_INT(_DI, env);
+    SET_INT(_SI, obj);
+    SET_INT(_DX, a0);
+    SET_FLOAT(0, a1);
+    return run_emulated(emu, fn);
 }
 
-uint32_t base_strb_imm(uint16_t imm12, uint8_t Rn, uint8_t Rt) {
-    return (0b0011100100 << 22) | ((imm12 & 0xFFF) << 10) | ((Rn & 0x1F) << 5) | (Rt & 0x1F);
+static uint64_t run_ppff(void* env, void* obj, uint64_t fn, float a0, float a1) {
+    x64emu_t* emu = thread_get_emu();
+    SET_INT(_DI, env);
+    SET_INT(_SI, obj);
+    SET_FLOAT(0, a0);
+    SET_FLOAT(1, a1);
+    return run_emulated(emu, fn);
 }
 
-uint32_t simd_mov_vec(uint8_t Q, uint8_t Rm, uint8_t Rn, uint8_t Rd) {
-    return (0b0 << 31) | ((Q & 0x1) << 30) | (0b001110101 << 21) | ((Rm & 0x1F) << 16) | (0b000111 << 10) | ((Rn & 0x1F) << 5) | (Rd & 0x1F);
+static uint64_t run_ppiii(void* env, void* obj, int32_t a0, int32_t a1, int32_t a2, uint64_t fn) {
+    x64emu_t* emu = thread_get_emu();
+    SET_INT(_DI, env);
+    SET_INT(_SI, obj);
+    SET_INT(_DX, a0);
+    SET_INT(_CX, a1);
+    SET_INT(_R8, a2);
+    return run_emulated(emu, fn);
 }
 
-uint32_t simd_str_imm(uint8_t size, uint8_t opc, uint16_t imm12, uint8_t Rn, uint8_t Rt) {
-    return ((size & 0x3) << 30) | (0b111101 << 24) | ((opc & 0b11) << 22) | ((imm12 & 0xFFF) << 10) | ((Rn & 0x1F) << 5) | (Rt & 0x1F);
+static uint64_t run_ppiif(void* env, void* obj, int32_t a0, int32_t a1, uint64_t fn, float a2) {
+    x64emu_t* emu = thread_get_emu();
+    SET_INT(_DI, env);
+    SET_INT(_SI, obj);
+    SET_INT(_DX, a0);
+    SET_INT(_CX, a1);
+    SET_FLOAT(0, a2);
+    return run_emulated(emu, fn);
 }
 
-uint32_t simd_ldr_imm(uint8_t size, uint8_t opc, uint16_t imm12, uint8_t Rn, uint8_t Rt) {
-    return ((size & 0b11) << 30) | (0b111101 << 24) | ((opc & 0b11) << 22) | ((imm12 & 0xFFF) << 10) | ((Rn & 0x1F) << 5) | (Rt & 0x1F);
+static uint64_t run_ppiff(void* env, void* obj, int32_t a0, uint64_t fn, float a1, float a2) {
+    x64emu_t* emu = thread_get_emu();
+    SET_INT(_DI, env);
+    SET_INT(_SI, obj);
+    SET_INT(_DX, a0);
+    SET_FLOAT(0, a1);
+    SET_FLOAT(1, a2);
+    return run_emulated(emu, fn);
 }
 
-uint32_t simd_fcvt(uint8_t ftype, uint8_t opc, uint8_t Rn, uint8_t Rd) {
-    return (0b00011110 << 24) | ((ftype & 0b11) << 22) | (0b10001 << 17) | ((opc & 0b11) << 15) | (0b10000 << 10) | ((Rn & 0x1F) << 5) | (Rd & 0x1F);
+static uint64_t run_ppfff(void* env, void* obj, uint64_t fn, float a0, float a1, float a2) {
+    x64emu_t* emu = thread_get_emu();
+    SET_INT(_DI, env);
+    SET_INT(_SI, obj);
+    SET_FLOAT(0, a0);
+    SET_FLOAT(1, a1);
+    SET_FLOAT(2, a2);
+    return run_emulated(emu, fn);
 }
 
-static void assemble_box64_jni_trampoline(uint32_t** code, int* code_size, const char* signature, char returnType, uint64_t emulated_fn) {
-#define ADD_INSN(I) *code_size = *code_size + (int) sizeof (uint32_t); \
-                *code = realloc(*code, *code_size);\
-                insn_index = *code_size / (int) sizeof(uint32_t) - 1;\
-                (*code)[insn_index] = I;
-
-    int insn_index = 0;
-
-    const int argc = (int)strlen(signature);
-
-    const int i64_reserved = 2; // RunFunctionFmtSpecial args
-    int i64_argc = 0;
-    int i64_argc_stack = 0;
-
-    const int df64_reserved = 0;
-    int df64_argc = 0;
-    int df64_argc_stack = 0;
-
-    // calculate how many arguments are in registers/stack
-    for (int i = 0; i < argc; i++) {
-        switch(signature[i]) {
-            case 'f':
-            case 'd':
-                if (df64_argc < 8) df64_argc++; else df64_argc_stack++;
-                break;
-            case 'p':
-            case 'i':
-            case 'u':
-            case 'I':
-            case 'U':
-            case 'L':
-            case 'l':
-            case 'w':
-            case 'W':
-            case 'c':
-            case 'C':
-                if (i64_argc < 8) i64_argc++; else i64_argc_stack++;
-                break;
-        }
-    }
-
-    // set up frame pointer if needed
-    int fp_offset = 0;
-    if (i64_argc > 8 - i64_reserved) fp_offset += (i64_argc + i64_reserved - 8) * 8;
-    if (df64_argc > 8 - df64_reserved) fp_offset += (df64_argc + df64_reserved - 8) * 8;
-    fp_offset += (i64_argc_stack + df64_argc_stack) * 8;
-
-    // allocate stack
-    int stack_size = fp_offset + 16 + argc + 1;
-    stack_size = (stack_size + 15) & ~15;
-    if (fp_offset > 0) {
-        ADD_INSN(base_sub_imm(A64_SF_64, 0, stack_size, A64_REG_SP, A64_REG_SP))
-        ADD_INSN(base_stp(A64_SF_64, (fp_offset) / 8, A64_REG_30, A64_REG_SP, A64_REG_29))
-        ADD_INSN(base_add_imm(A64_SF_64, 0, fp_offset, A64_REG_SP, A64_REG_29))
-    } else {
-        ADD_INSN(base_stp_prei(A64_SF_64, -stack_size / 8, A64_REG_30, A64_REG_SP, A64_REG_29))
-        ADD_INSN(base_mov_sp(A64_SF_64, A64_REG_SP, A64_REG_29))
-    }
+static uint64_t run_ppifff(void* env, void* obj, int32_t a0, uint64_t fn, float a1, float a2, float a3) {
+    x64emu_t* emu = thread_get_emu();
+    SET_INT(_DI, env);
+    SET_INT(_SI, obj);
+    SET_INT(_DX, a0);
+    SET_FLOAT(0, a1);
+    SET_FLOAT(1, a2);
+    SET_FLOAT(2, a3);
+    return run_emulated(emu, fn);
+}
 
-    // overwrite first arg (JNIEnv*) with our wrapper
-    ADD_INSN(base_movz(A64_SF_64, 0, g_wrapped_jni_env & 0xFFFF, A64_REG_0))
-    ADD_INSN(base_movk(A64_SF_64, 1, (g_wrapped_jni_env >> 16) & 0xFFFF, A64_REG_0))
-    ADD_INSN(base_movk(A64_SF_64, 2, (g_wrapped_jni_env >> 32) & 0xFFFF, A64_REG_0))
-    ADD_INSN(base_movk(A64_SF_64, 3, (g_wrapped_jni_env >> 48) & 0xFFFF, A64_REG_0))
-
-    // shift arguments to make space for reserved
-    for (int i = argc - 1; i >= 0; i--) {
-        switch(signature[i]) {
-            case 'f':
-                if (df64_argc_stack > 0) {
-                    int src_offset = (i64_argc_stack + df64_argc_stack) * 8 - 8;
-                    int i64_off = i64_argc + i64_reserved >= 8 ? (i64_argc + i64_reserved - 8) * 8 : 0;
-                    int target_offset = (df64_argc + df64_reserved - 8) * 8 + i64_off + src_offset;
-                    ADD_INSN(simd_ldr_imm(0b10, 0b01, (src_offset + stack_size) / 4, A64_REG_SP, A64_REG_18))
-                    ADD_INSN(simd_fcvt(0b00, 0b01, A64_REG_18, A64_REG_18))
-                    ADD_INSN(simd_str_imm(0b11, 0b00, target_offset / 8, A64_REG_SP, A64_REG_18))
-                    df64_argc_stack--;
-                } else {
-                    if (df64_argc + df64_reserved <= 8) {
-                        ADD_INSN(simd_fcvt(0b00, 0b01, df64_argc - 1, df64_argc - 1 + df64_reserved))
-                    } else {
-                        int i64_off = i64_argc + i64_reserved >= 8 ? (i64_argc + i64_reserved - 8) * 8 : 0;
-                        int target_offset = (df64_argc + df64_reserved - 8) * 8 + i64_off - 8;
-                        ADD_INSN(simd_fcvt(0b00, 0b01, df64_argc - 1, A64_REG_18))
-                        ADD_INSN(simd_str_imm(0b11, 0b00, target_offset / 8, A64_REG_SP, A64_REG_18))
-                    }
-                    df64_argc--;
-                }
-                break;
-            case 'd':
-                if (df64_argc_stack > 0) {
-                    int src_offset = (i64_argc_stack + df64_argc_stack) * 8 - 8;
-                    int i64_off = i64_argc + i64_reserved >= 8 ? (i64_argc + i64_reserved - 8) * 8 : 0;
-                    int target_offset = (df64_argc + df64_reserved - 8) * 8 + i64_off + src_offset;
-                    ADD_INSN(simd_ldr_imm(0b11, 0b01, (src_offset + stack_size) / 8, A64_REG_SP, A64_REG_18))
-                    ADD_INSN(simd_str_imm(0b11, 0b00, target_offset / 8, A64_REG_SP, A64_REG_18))
-                    df64_argc_stack--;
-                } else {
-                    if (df64_reserved == 0) {
-                        df64_argc--;
-                        break;
-                    }
-
-                    if (df64_argc + df64_reserved <= 8) {
-                        ADD_INSN(simd_mov_vec(0, df64_argc - 1, df64_argc - 1, df64_argc - 1 + df64_reserved))
-                    } else {
-                        int i64_off = i64_argc + i64_reserved >= 8 ? (i64_argc + i64_reserved - 8) * 8 : 0;
-                        int target_offset = (df64_argc + df64_reserved - 8) * 8 + i64_off - 8;
-                        ADD_INSN(simd_str_imm(0b11, 0b00, target_offset / 8, A64_REG_SP, df64_argc - 1))
-                    }
-                    df64_argc--;
-                }
-                break;
-            case 'i':
-            case 'u':
-            case 'w':
-            case 'W':
-            case 'c':
-            case 'C':
-                if (i64_argc_stack > 0) {
-                    int src_offset = (i64_argc_stack + df64_argc_stack) * 8 - 8;
-                    int d64_off = df64_argc + df64_reserved >= 8 ? (df64_argc + df64_reserved - 8) * 8 : 0;
-                    int dst_offset = (i64_argc + i64_reserved - 8) * 8 + d64_off + src_offset;
-                    ADD_INSN(base_ldr_imm(A64_SF_32, (src_offset + stack_size) / 4, A64_REG_SP, A64_REG_18))
-                    ADD_INSN(base_str_imm(A64_SF_32, dst_offset / 4, A64_REG_SP, A64_REG_18))
-                    i64_argc_stack--;
-                } else {
-                    if (i64_reserved == 0) {
-                        i64_argc--;
-                        break;
-                    }
-
-                    if (i64_argc + i64_reserved <= 8) {
-                        ADD_INSN(base_mov_reg(A64_SF_32, i64_argc - 1, i64_argc - 1 + i64_reserved))
-                    } else {
-                        int d64_off = df64_argc + df64_reserved >= 8 ? (df64_argc + df64_reserved - 8) * 8 : 0;
-                        int offset = (i64_argc + i64_reserved - 8) * 8 + d64_off - 8;
-                        ADD_INSN(base_str_imm(A64_SF_32, offset / 4, A64_REG_SP, i64_argc - 1))
-                    }
-                    i64_argc--;
-                }
-                break;
-            case 'p':
-            case 'I':
-            case 'U':
-            case 'L':
-            case 'l':
-                if (i64_argc_stack > 0) {
-                    int src_offset = (i64_argc_stack + df64_argc_stack) * 8 - 8;
-                    int d64_off = df64_argc + df64_reserved >= 8 ? (df64_argc + df64_reserved - 8) * 8 : 0;
-                    int dst_offset = (i64_argc + i64_reserved - 8) * 8 + d64_off + src_offset;
-                    ADD_INSN(base_ldr_imm(A64_SF_64, (src_offset + stack_size) / 8, A64_REG_SP, A64_REG_18))
-                    ADD_INSN(base_str_imm(A64_SF_64, dst_offset / 8, A64_REG_SP, A64_REG_18))
-                    i64_argc_stack--;
-                } else {
-                    if (i64_reserved == 0) {
-                        i64_argc--;
-                        break;
-                    }
-
-                    if (i64_argc + i64_reserved <= 8) {
-                        ADD_INSN(base_mov_reg(A64_SF_64, i64_argc - 1, i64_argc - 1 + i64_reserved))
-                    } else {
-                        int d64_off = df64_argc + df64_reserved >= 8 ? (df64_argc + df64_reserved - 8) * 8 : 0;
-                        int offset = (i64_argc + i64_reserved - 8) * 8 + d64_off - 8;
-                        ADD_INSN(base_str_imm(A64_SF_64, offset / 8, A64_REG_SP, i64_argc - 1))
-                    }
-                    i64_argc--;
-                }
-                break;
-        }
+#undef SET_INT
+#undef SET_FLOAT
+#undef SET_DOUBLE
+
+typedef struct {
+    const char* signature;
+    uint64_t runner;
+} FastRunner;
+
+static const FastRunner fast_runners[] = {
+    {"pp", (uint64_t) &run_pp},
+    {"ppp", (uint64_t) &run_ppp},
+    {"ppi", (uint64_t) &run_ppi},
+    {"ppI", (uint64_t) &run_ppI},
+    {"ppC", (uint64_t) &run_ppC},
+    {"ppf", (uint64_t) &run_ppf},
+    {"ppd", (uint64_t) &run_ppd},
+    {"ppii", (uint64_t) &run_ppii},
+    {"ppip", (uint64_t) &run_ppip},
+    {"ppif", (uint64_t) &run_ppif},
+    {"ppff", (uint64_t) &run_ppff},
+    {"ppiii", (uint64_t) &run_ppiii},
+    {"ppiif", (uint64_t) &run_ppiif},
+    {"ppiff", (uint64_t) &run_ppiff},
+    {"ppfff", (uint64_t) &run_ppfff},
+    {"ppifff", (uint64_t) &run_ppifff},
+};
+
+static uint64_t find_fast_runner(const char* arg_types) {
+    for (size_t i = 0; i < sizeof(fast_runners) / sizeof(fast_runners[0]); i++) {
+        if (strcmp(fast_runners[i].signature, arg_types) == 0) return fast_runners[i].runner;
     }
+    return 0;
+}
 
-    // put first reserved arg - emulated function ptr
-    ADD_INSN(base_movz(A64_SF_64, 0, emulated_fn & 0xFFFF, A64_REG_0))
-    ADD_INSN(base_movk(A64_SF_64, 1, (emulated_fn >> 16) & 0xFFFF, A64_REG_0))
-    ADD_INSN(base_movk(A64_SF_64, 2, (emulated_fn >> 32) & 0xFFFF, A64_REG_0))
-    ADD_INSN(base_movk(A64_SF_64, 3, (emulated_fn >> 48) & 0xFFFF, A64_REG_0))
-
-    // put second reserved arg - emulated function signature
-    int signature_offset = fp_offset + 16;
-    for (int i = 0; signature[i] != 0;) {
-        if (i + 8 <= strlen(signature)) {
-            uint64_t chunk = *(uint64_t *)(signature + i);
-            ADD_INSN(base_movz(A64_SF_64, 0, chunk & 0xFFFF, A64_REG_18))
-            ADD_INSN(base_movk(A64_SF_64, 1, (chunk >> 16) & 0xFFFF, A64_REG_18))
-            ADD_INSN(base_movk(A64_SF_64, 2, (chunk >> 32) & 0xFFFF, A64_REG_18))
-            ADD_INSN(base_movk(A64_SF_64, 3, (chunk >> 48) & 0xFFFF, A64_REG_18))
-            ADD_INSN(base_str_imm(A64_SF_64, (signature_offset + i) / 8, A64_REG_SP, A64_REG_18))
-            i += 8;
-        } else if (i + 4 <= strlen(signature)) {
-            uint32_t chunk = *(uint32_t*)(signature + i);
-            ADD_INSN(base_movz(A64_SF_32, 0, chunk & 0xFFFF, A64_REG_18))
-            ADD_INSN(base_movk(A64_SF_32, 1, (chunk >> 16) & 0xFFFF, A64_REG_18))
-            ADD_INSN(base_str_imm(A64_SF_32, (signature_offset + i) / 4, A64_REG_SP, A64_REG_18))
-            i += 4;
-        } else {
-            ADD_INSN(base_movz(A64_SF_32, 0, signature[i], A64_REG_18))
-            ADD_INSN(base_strb_imm(signature_offset + i, A64_REG_SP, A64_REG_18))
-            i++;
+/**
+ * Maps a new arena chunk. Code is written through a read-write view and executed from a read-only executable view
+ * of the same memfd, so no page is ever writable and executable at once, and trampolines already handed out keep
+ * running while new ones are written next to them
+ */
+static int trampoline_chunk_map(TrampolineChunk* chunk, size_t size) {
+    int fd = memfd_create("zomdroid-trampolines", MFD_CLOEXEC);
+    if (fd >= 0 && ftruncate(fd, (off_t) size) == 0) {
+        void* rw = mmap(NULL, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+        void* rx = rw == MAP_FAILED ? MAP_FAILED : mmap(NULL, size, PROT_READ | PROT_EXEC, MAP_SHARED, fd, 0);
+        if (rx != MAP_FAILED) {
+            close(fd);
+            *chunk = (TrampolineChunk) {.rw = rw, .rx = rx, .size = size, .used = 0};
+            return 0;
         }
+        if (rw != MAP_FAILED) munmap(rw, size);
     }
-    ADD_INSN(base_movz(A64_SF_32, 0, 0, A64_REG_18))
-    ADD_INSN(base_strb_imm(signature_offset + strlen(signature), A64_REG_SP, A64_REG_18))
-    ADD_INSN(base_add_imm(A64_SF_64, 0, signature_offset, A64_REG_SP, A64_REG_1))
-
-/*    // put third reserved arg - emulated function return type
-    ADD_INSN(base_movz(A64_SF_32, 0, returnType, A64_REG_2))*/
-
-    // prepare and call RunFunctionFmt
-    ADD_INSN(base_movz(A64_SF_64, 0, (uint64_t) &RunFunctionFmt & 0xFFFF, A64_REG_18))
-    ADD_INSN(base_movk(A64_SF_64, 1, ((uint64_t) &RunFunctionFmt >> 16) & 0xFFFF, A64_REG_18))
-    ADD_INSN(base_movk(A64_SF_64, 2, ((uint64_t) &RunFunctionFmt >> 32) & 0xFFFF, A64_REG_18))
-    ADD_INSN(base_movk(A64_SF_64, 3, ((uint64_t) &RunFunctionFmt >> 48) & 0xFFFF, A64_REG_18))
-    ADD_INSN(base_blr(A64_REG_18))
-
-    // free stack
-    if (fp_offset > 0) {
-        ADD_INSN(base_ldp(A64_SF_64, fp_offset / 8, A64_REG_30, A64_REG_SP, A64_REG_29))
-        ADD_INSN(base_add_imm(A64_SF_64, 0, stack_size, A64_REG_SP, A64_REG_SP))
-    } else {
-        ADD_INSN(base_ldp_posti(A64_SF_64, stack_size / 8, A64_REG_30, A64_REG_SP, A64_REG_29))
+    if (!is_trampoline_fallback_logged) {
+        LOGW("Failed to map dual view trampoline arena (%s), falling back to writable executable memory", strerror(errno));
+        is_trampoline_fallback_logged = true;
     }
+    if (fd >= 0) close(fd);
 
-    // return
-    ADD_INSN(base_ret(A64_REG_30))
+    void* mem = mmap(NULL, size, PROT_READ | PROT_WRITE | PROT_EXEC, MAP_PRIVATE | MAP_ANONYMOUS, -1, 0);
+    if (mem == MAP_FAILED) {
+        LOGE("Failed to mmap memory: %s", strerror(errno));
+        return -1;
+    }
+    *chunk = (TrampolineChunk) {.rw = mem, .rx = mem, .size = size, .used = 0};
+    return 0;
 }
 
 void* zomdroid_emulation_bridge_jni_symbol(EmulatedLib *lib, uint64_t fn, const char* arg_types, char ret_type) {
-    uint32_t* code = NULL;
-    int code_size = 0;
-    assemble_box64_jni_trampoline(&code, &code_size, arg_types, ret_type, fn);
-
-    void* mem = NULL;
-
-    // find a page with enough space for the code
-    for (int i = 0; i < lib->page_count; i++) {
-        if (lib->page_code_size[i] + code_size <= page_size) {
-            mem = lib->mapped_pages[i] + lib->page_code_size[i];
-            lib->page_code_size[i] += code_size;
-            break;
-        }
-    }
-
-    // or allocate a new one
-    if (mem == NULL) {
-        mem = mmap(NULL, page_size, PROT_WRITE | PROT_EXEC, MAP_PRIVATE | MAP_ANONYMOUS, -1, 0);
-        if (mem == MAP_FAILED) {
-            LOGE("Failed to mmap memory: %s", strerror(errno));
-            free(code);
+    uint32_t code[TRAMPOLINE_MAX_INSNS];
+    int insn_count = 0;
+    uint64_t fast_runner = find_fast_runner(arg_types);
+    if (fast_runner != 0) {
+        if (zomdroid_trampoline_assemble_direct(code, TRAMPOLINE_MAX_INSNS, &insn_count, arg_types, fn,
+                                                g_wrapped_jni_env, fast_runner) != 0) {
+            LOGE("Failed to assemble direct trampoline for signature %s", arg_types);
             return NULL;
         }
-
-        int new_page_count = lib->page_count + 1;
-
-        void** new_mapped_pages = realloc(lib->mapped_pages, new_page_count * sizeof(*lib->mapped_pages));
-        int* new_page_code_size = realloc(lib->page_code_size, new_page_count * sizeof(*lib->page_code_size));
-
-        if (!new_mapped_pages || !new_page_code_size) {
-            LOGE("Failed to reallocate memory: %s", strerror(errno));
-
-            munmap(mem, page_size);
-
-            if (new_mapped_pages) lib->mapped_pages = new_mapped_pages;
-            if (new_page_code_size) lib->page_code_size = new_page_code_size;
-
-            free(code);
+    } else if (zomdroid_trampoline_assemble(code, TRAMPOLINE_MAX_INSNS, &insn_count, arg_types, fn, g_wrapped_jni_env,
+                                            (uint64_t) &RunFunctionFmt) != 0) {
+        LOGE("Trampoline for signature %s is longer than %d instructions", arg_types, TRAMPOLINE_MAX_INSNS);
+        return NULL;
+    }
+    size_t code_size = insn_count * sizeof(uint32_t);
+
+    pthread_mutex_lock(&trampoline_arena_mutex);
+    if (trampoline_chunk.used + code_size > trampoline_chunk.size) {
+        // the tail of the old chunk is abandoned, trampolines live as long as the process anyway
+        size_t chunk_size = (TRAMPOLINE_CHUNK_SIZE + page_size - 1) / page_size * page_size;
+        if (trampoline_chunk_map(&trampoline_chunk, chunk_size) != 0) {
+            pthread_mutex_unlock(&trampoline_arena_mutex);
             return NULL;
         }
-
-        lib->mapped_pages = new_mapped_pages;
-        lib->page_code_size = new_page_code_size;
-
-        lib->mapped_pages[lib->page_count] = mem;
-        lib->page_code_size[lib->page_count] = code_size;
-
-        lib->page_count = new_page_count;
     }
-
-    memcpy(mem, code, code_size);
-
-    free(code);
-
-    __builtin___clear_cache(mem, mem + code_size);
+    memcpy(trampoline_chunk.rw + trampoline_chunk.used, code, code_size);
+    uint8_t* mem = trampoline_chunk.rx + trampoline_chunk.used;
+    // keep every trampoline on its own cache line
+    trampoline_chunk.used = (trampoline_chunk.used + code_size + TRAMPOLINE_ALIGNMENT - 1) & ~(size_t) (TRAMPOLINE_ALIGNMENT - 1);
+    pthread_mutex_unlock(&trampoline_arena_mutex);
+
+    // single clean and invalidate over the executable view, same physical memory as the written one
+    __builtin___clear_cache((char*) mem, (char*) mem + code_size);
 
     return mem;
 }
@@ -2,13 +2,15 @@
 #define ZOMDROID_EMULATION_H
 
 #include "box64/src/include/box64context.h"
+#include "jni_sig_cache.h"
+#include "dynarec_cache.h"
 
 typedef struct  {
     const char* name;
     library_t* handle;
-    void** mapped_pages;
-    int page_count;
-    int* page_code_size;
+    uint64_t file_hash;
+    JniSigCache* sig_cache;
+    DynarecCache* dynarec_cache;
 } EmulatedLib;
 
 int zomdroid_emulation_init();
@@ -0,0 +1,380 @@
+#include <pthread.h>
+#include <stdbool.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "jni_resolver.h"
+#include "logger.h"
+#include "zomdroid_globals.h"
+
+#define LOG_TAG "zomdroid-jni-resolver"
+
+#define BUF_SIZE 1024
+#define ACC_NATIVE 0x0100
+#define CLASS_TABLE_INITIAL_CAPACITY 64
+
+typedef struct {
+    char* name;
+    char* sig;
+} NativeMethod;
+
+typedef struct {
+    /** NULL for empty slot */
+    char* class_sig;
+    uint32_t hash;
+    /** NULL unless the class has native methods */
+    NativeMethod* methods;
+    int method_count;
+    /** Was looked up, but isn't among classes of the main class loader as of the last pass */
+    bool is_missing;
+} ClassEntry;
+
+/** Open addressing table of class signature to its native methods, only ever grows */
+static ClassEntry* class_table;
+static uint32_t class_table_capacity;
+static uint32_t class_table_count;
+static pthread_mutex_t class_table_mutex = PTHREAD_MUTEX_INITIALIZER;
+/** Amount of classes the main class loader had on the last pass, -1 before the first one */
+static jint indexed_class_count = -1;
+
+uint32_t zomdroid_fnv1a(const char* str) {
+    uint32_t hash = 2166136261u;
+    while (*str) {
+        hash ^= (unsigned char) *str++;
+        hash *= 16777619u;
+    }
+    return hash;
+}
+
+static int hex_value(char c) {
+    if (c >= '0' && c <= '9') return c - '0';
+    if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+    if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+    return -1;
+}
+
+/** Decodes one mangled part into modified UTF-8, '_' becomes package separator. Returns 0 on success */
+static int decode_mangled(const char* src, size_t len, bool is_sig, char* out, size_t out_size) {
+    size_t o = 0;
+    for (size_t i = 0; i < len; i++) {
+        // longest output per input char is 3 bytes of an escaped code unit
+        if (o + 4 >= out_size) {
+            LOGE("Mangled name is more than %zu characters long", out_size);
+            return -1;
+        }
+        if (src[i] != '_') {
+            out[o++] = src[i];
+            continue;
+        }
+        if (i + 1 >= len) {
+            out[o++] = '/';
+            continue;
+        }
+        switch (src[i + 1]) {
+            case '1':
+                out[o++] = '_';
+                i++;
+                break;
+            case '2':
+            case '3':
+                if (!is_sig) {
+                    LOGE("Unexpected _%c outside of signature", src[i + 1]);
+                    return -1;
+                }
+                out[o++] = src[i + 1] == '2' ? ';' : '[';
+                i++;
+                break;
+            case '0': {
+                if (i + 5 >= len) {
+                    LOGE("Truncated _0 escape");
+                    return -1;
+                }
+                uint32_t unit = 0;
+                for (int h = 2; h < 6; h++) {
+                    int v = hex_value(src[i + h]);
+                    if (v < 0) {
+                        LOGE("Invalid _0 escape");
+                        return -1;
+                    }
+                    unit = unit << 4 | v;
+                }
+                // modified UTF-8, surrogate halves are encoded on their own just like the JVM does
+                if (unit != 0 && unit < 0x80) {
+                    out[o++] = (char) unit;
+                } else if (unit < 0x800) {
+                    out[o++] = (char) (0xC0 | unit >> 6);
+                    out[o++] = (char) (0x80 | (unit & 0x3F));
+                } else {
+                    out[o++] = (char) (0xE0 | unit >> 12);
+                    out[o++] = (char) (0x80 | (unit >> 6 & 0x3F));
+                    out[o++] = (char) (0x80 | (unit & 0x3F));
+                }
+                i += 5;
+                break;
+            }
+            default:
+                out[o++] = '/';
+                break;
+        }
+    }
+    out[o] = '\0';
+    return 0;
+}
+
+int zomdroid_jni_parse_symbol_name(const char* sym_name, JniSymbolName* out) {
+    memset(out, 0, sizeof(JniSymbolName));
+    if (strncmp(sym_name, "Java_", 5) != 0) {
+        LOGV("%s is not a JNI method name", sym_name);
+        return -1;
+    }
+    const char* body = sym_name + 5;
+
+    // split at the last plain '_' before "__", escapes are skipped so their digits are never mistaken for separators
+    const char* method_sep = NULL;
+    const char* sig_sep = NULL;
+    for (const char* p = body; *p; p++) {
+        if (*p != '_') continue;
+        char next = p[1];
+        if (next >= '1' && next <= '3') {
+            p++;
+        } else if (next == '0') {
+            for (int h = 2; h < 6; h++) {
+                if (hex_value(p[h]) < 0) {
+                    LOGE("Invalid _0 escape in %s", sym_name);
+                    return -1;
+                }
+            }
+            p += 5;
+        } else if (next == '_') {
+            sig_sep = p;
+            break;
+        } else {
+            method_sep = p;
+        }
+    }
+    if (method_sep == NULL) {
+        LOGE("JNI name %s doesn't contain method name", sym_name);
+        return -1;
+    }
+    const char* method_end = sig_sep != NULL ? sig_sep : body + strlen(body);
+
+    char buf[BUF_SIZE];
+    if (decode_mangled(body, method_sep - body, false, buf, BUF_SIZE) != 0) goto FAIL;
+    out->class_name = strdup(buf);
+    if (decode_mangled(method_sep + 1, method_end - method_sep - 1, false, buf, BUF_SIZE) != 0) goto FAIL;
+    out->method_name = strdup(buf);
+    if (sig_sep != NULL) {
+        buf[0] = '(';
+        if (decode_mangled(sig_sep + 2, strlen(sig_sep + 2), true, buf + 1, BUF_SIZE - 2) != 0) goto FAIL;
+        strcat(buf, ")");
+        out->arg_sig = strdup(buf);
+    }
+
+    LOGV("className=%s methodName=%s argSignature=%s", out->class_name, out->method_name,
+         out->arg_sig == NULL ? "<null>" : out->arg_sig);
+    return 0;
+FAIL:
+    zomdroid_jni_symbol_name_free(out);
+    return -1;
+}
+
+void zomdroid_jni_symbol_name_free(JniSymbolName* name) {
+    free(name->class_name);
+    free(name->method_name);
+    free(name->arg_sig);
+    memset(name, 0, sizeof(JniSymbolName));
+}
+
+static void jvmti_free(void* ptr) {
+    if (ptr == NULL) return;
+    jvmtiError jvmti_err = (*g_zomdroid_jvmti_env)->Deallocate(g_zomdroid_jvmti_env, (unsigned char*) ptr);
+    if (jvmti_err != JVMTI_ERROR_NONE) LOGW("Failed to deallocate JVM TI memory, error code: %d", jvmti_err);
+}
+
+static ClassEntry* find_class_entry(const char* class_sig, uint32_t hash) {
+    if (class_table_capacity == 0) return NULL;
+    for (uint32_t i = hash & (class_table_capacity - 1);; i = (i + 1) & (class_table_capacity - 1)) {
+        ClassEntry* entry = &class_table[i];
+        if (entry->class_sig == NULL) return NULL;
+        if (entry->hash == hash && strcmp(entry->class_sig, class_sig) == 0) return entry;
+    }
+}
+
+static ClassEntry* insert_class_entry(ClassEntry entry) {
+    if ((class_table_count + 1) * 2 > class_table_capacity) {
+        uint32_t new_capacity = class_table_capacity == 0 ? CLASS_TABLE_INITIAL_CAPACITY : class_table_capacity * 2;
+        ClassEntry* new_table = calloc(new_capacity, sizeof(ClassEntry));
+        for (uint32_t i = 0; i < class_table_capacity; i++) {
+            if (class_table[i].class_sig == NULL) continue;
+            uint32_t j = class_table[i].hash & (new_capacity - 1);
+            while (new_table[j].class_sig != NULL) j = (j + 1) & (new_capacity - 1);
+            new_table[j] = class_table[i];
+        }
+        free(class_table);
+        class_table = new_table;
+        class_table_capacity = new_capacity;
+    }
+    uint32_t i = entry.hash & (class_table_capacity - 1);
+    while (class_table[i].class_sig != NULL) i = (i + 1) & (class_table_capacity - 1);
+    class_table[i] = entry;
+    class_table_count++;
+    return &class_table[i];
+}
+
+/** Collects native methods of the class, names and signatures are copied out of JVM TI memory */
+static int collect_native_methods(jclass clazz, const char* class_sig, ClassEntry* entry) {
+    jint method_count = 0;
+    jmethodID* methods = NULL;
+    jvmtiError jvmti_err = (*g_zomdroid_jvmti_env)->GetClassMethods(g_zomdroid_jvmti_env, clazz, &method_count, &methods);
+    if (jvmti_err != JVMTI_ERROR_NONE) {
+        LOGE("Failed to get methods for class %s, error code: %d", class_sig, jvmti_err);
+        return -1;
+    }
+    entry->methods = NULL;
+    entry->method_count = 0;
+    for (int a = 0; a < method_count; a++) {
+        jint modifiers = 0;
+        jvmti_err = (*g_zomdroid_jvmti_env)->GetMethodModifiers(g_zomdroid_jvmti_env, methods[a], &modifiers);
+        if (jvmti_err != JVMTI_ERROR_NONE) {
+            LOGW("Failed to get method modifiers, error code %d", jvmti_err);
+            continue;
+        }
+        if (!(modifiers & ACC_NATIVE)) continue;
+
+        char* name = NULL;
+        char* sig = NULL;
+        jvmti_err = (*g_zomdroid_jvmti_env)->GetMethodName(g_zomdroid_jvmti_env, methods[a], &name, &sig, NULL);
+        if (jvmti_err != JVMTI_ERROR_NONE) {
+            LOGW("Failed to get method name, error code %d", jvmti_err);
+            continue;
+        }
+        // most classes have no natives at all, so nothing is allocated for them
+        if (entry->methods == NULL) entry->methods = calloc(method_count, sizeof(NativeMethod));
+        entry->methods[entry->method_count].name = strdup(name);
+        entry->methods[entry->method_count].sig = strdup(sig);
+        entry->method_count++;
+        jvmti_free(name);
+        jvmti_free(sig);
+    }
+    jvmti_free(methods);
+    return 0;
+}
+
+/**
+ * Indexes classes of the main class loader in a single pass. jclass references from JVM TI are local to the current
+ * call, so only plain strings are kept. Every class gets an entry, so a later pass only queries methods of classes
+ * loaded since, and the pass is skipped altogether while the loader has no new classes. Returns 0 on success
+ */
+static int index_loader_classes() {
+    jint class_count = 0;
+    jclass* classes = NULL;
+    jvmtiError jvmti_err = (*g_zomdroid_jvmti_env)->GetClassLoaderClasses(g_zomdroid_jvmti_env,
+                                                                         g_zomdroid_main_class_loader,
+                                                                         &class_count, &classes);
+    if (jvmti_err != JVMTI_ERROR_NONE) {
+        LOGE("Failed to get class loader classes, error code: %d", jvmti_err);
+        return -1;
+    }
+    if (class_count == indexed_class_count) {
+        jvmti_free(classes);
+        return 0;
+    }
+
+    int new_class_count = 0;
+    int new_native_class_count = 0;
+    for (int a = 0; a < class_count; a++) {
+        char* signature = NULL;
+        jvmti_err = (*g_zomdroid_jvmti_env)->GetClassSignature(g_zomdroid_jvmti_env, classes[a], &signature, NULL);
+        if (jvmti_err != JVMTI_ERROR_NONE) {
+            LOGW("Failed to get class signature, error code %d", jvmti_err);
+            continue;
+        }
+        uint32_t hash = zomdroid_fnv1a(signature);
+        ClassEntry* existing = find_class_entry(signature, hash);
+        if (existing != NULL && !existing->is_missing) {
+            jvmti_free(signature);
+            continue;
+        }
+        ClassEntry entry = {.hash = hash};
+        if (collect_native_methods(classes[a], signature, &entry) == 0) {
+            if (existing != NULL) {
+                // loaded after it was looked up
+                existing->methods = entry.methods;
+                existing->method_count = entry.method_count;
+                existing->is_missing = false;
+            } else {
+                entry.class_sig = strdup(signature);
+                insert_class_entry(entry);
+            }
+            new_class_count++;
+            if (entry.method_count > 0) new_native_class_count++;
+        }
+        jvmti_free(signature);
+    }
+    jvmti_free(classes);
+    indexed_class_count = class_count;
+    LOGD("Indexed %d new classes, %d of them with native methods", new_class_count, new_native_class_count);
+    return 0;
+}
+
+/** Returns NULL if the class isn't loaded, the miss is recorded so it's only checked again once new classes load */
+static ClassEntry* find_or_index_class(const char* class_sig, uint32_t hash) {
+    ClassEntry* entry = find_class_entry(class_sig, hash);
+    if (entry != NULL && !entry->is_missing) return entry;
+    if (index_loader_classes() != 0) return NULL;
+    entry = find_class_entry(class_sig, hash);
+    if (entry == NULL) {
+        ClassEntry missing = {.class_sig = strdup(class_sig), .hash = hash, .is_missing = true};
+        insert_class_entry(missing);
+        return NULL;
+    }
+    return entry->is_missing ? NULL : entry;
+}
+
+char* zomdroid_jni_resolve_method_signature(const char* sym_name) {
+    JniSymbolName name;
+    if (zomdroid_jni_parse_symbol_name(sym_name, &name) != 0) return NULL;
+
+    char class_sig[BUF_SIZE];
+    if (strlen(name.class_name) + 3 > BUF_SIZE) {
+        LOGE("Class name %s is too long", name.class_name);
+        zomdroid_jni_symbol_name_free(&name);
+        return NULL;
+    }
+    snprintf(class_sig, BUF_SIZE, "L%s;", name.class_name);
+    uint32_t hash = zomdroid_fnv1a(class_sig);
+    size_t arg_sig_len = name.arg_sig != NULL ? strlen(name.arg_sig) : 0;
+
+    char* method_sig = NULL;
+    pthread_mutex_lock(&class_table_mutex);
+    ClassEntry* entry = find_or_index_class(class_sig, hash);
+    if (entry == NULL) {
+        LOGE("Failed to find class %s by its signature %s", name.class_name, class_sig);
+    } else {
+        const NativeMethod* match = NULL;
+        int match_count = 0;
+        for (int a = 0; a < entry->method_count; a++) {
+            const NativeMethod* method = &entry->methods[a];
+            if (strcmp(method->name, name.method_name) != 0) continue;
+            if (name.arg_sig != NULL && strncmp(method->sig, name.arg_sig, arg_sig_len) != 0) continue;
+            if (match == NULL) match = method;
+            match_count++;
+        }
+        if (match_count > 1) {
+            // only the long name tells overloads apart, a short one exported for overloaded natives is a library bug
+            LOGW("Short name %s matches %d overloads, using %s", sym_name, match_count, match->sig);
+        }
+        if (match != NULL) {
+            method_sig = strdup(match->sig);
+        } else {
+            LOGE("Failed to find native method %s with signature %s in class %s", name.method_name,
+                 name.arg_sig == NULL ? "<null>" : name.arg_sig, name.class_name);
+        }
+    }
+    pthread_mutex_unlock(&class_table_mutex);
+
+    zomdroid_jni_symbol_name_free(&name);
+    return method_sig;
+}
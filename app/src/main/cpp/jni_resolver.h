@@ -0,0 +1,29 @@
+#ifndef ZOMDROID_JNI_RESOLVER_H
+#define ZOMDROID_JNI_RESOLVER_H
+
+#include <stdint.h>
+
+uint32_t zomdroid_fnv1a(const char* str);
+
+/** Decoded JNI symbol name. Strings are owned by the struct */
+typedef struct {
+    /** Internal form, e.g. zombie/core/Core */
+    char* class_name;
+    char* method_name;
+    /** Argument part of the signature with parentheses, only present for long names */
+    char* arg_sig;
+} JniSymbolName;
+
+/** Decodes Java_<class>_<method>[__<args>] symbol name, returns 0 on success */
+int zomdroid_jni_parse_symbol_name(const char* sym_name, JniSymbolName* out);
+void zomdroid_jni_symbol_name_free(JniSymbolName* name);
+
+/**
+ * Looks up full signature, e.g. (I[BLjava/lang/String;)J, of a native method in classes of the main class loader.
+ * Classes of the loader are indexed in one pass on the first lookup, and again only for lookups that miss while the
+ * loader has loaded new classes since.
+ * Returns malloc'ed string or NULL
+ */
+char* zomdroid_jni_resolve_method_signature(const char* sym_name);
+
+#endif //ZOMDROID_JNI_RESOLVER_H
@@ -0,0 +1,230 @@
+#include <errno.h>
+#include <inttypes.h>
+#include <pthread.h>
+#include <stdbool.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/stat.h>
+
+#include "jni_sig_cache.h"
+#include "jni_resolver.h"
+#include "logger.h"
+
+#define LOG_TAG "zomdroid-jni-sig-cache"
+
+#define SIG_CACHE_DIR_NAME "jni-sigs"
+#define SIG_CACHE_VERSION 1
+#define SIG_CACHE_INITIAL_CAPACITY 256
+
+typedef struct {
+    /** NULL for empty slot */
+    char* sym_name;
+    uint32_t hash;
+    char* arg_types;
+    char ret_type;
+} SigEntry;
+
+struct JniSigCache {
+    char* file_path;
+    char* header;
+    SigEntry* entries;
+    uint32_t capacity;
+    uint32_t count;
+    /** Opened for append once the file on disk is known to be valid */
+    FILE* file;
+    pthread_mutex_t mutex;
+};
+
+int zomdroid_jni_sig_cache_file_hash(const char* path, uint64_t* hash) {
+    struct stat st;
+    if (stat(path, &st) != 0) {
+        LOGW("Failed to stat %s: %s", path, strerror(errno));
+        return -1;
+    }
+    uint64_t values[] = {(uint64_t) st.st_size, (uint64_t) st.st_mtim.tv_sec, (uint64_t) st.st_mtim.tv_nsec,
+                         (uint64_t) st.st_ino};
+    uint64_t h = 14695981039346656037ull;
+    const unsigned char* bytes = (const unsigned char*) values;
+    for (size_t i = 0; i < sizeof(values); i++) {
+        h ^= bytes[i];
+        h *= 1099511628211ull;
+    }
+    *hash = h;
+    return 0;
+}
+
+static SigEntry* find_entry(JniSigCache* cache, const char* sym_name, uint32_t hash) {
+    if (cache->capacity == 0) return NULL;
+    for (uint32_t i = hash & (cache->capacity - 1);; i = (i + 1) & (cache->capacity - 1)) {
+        SigEntry* entry = &cache->entries[i];
+        if (entry->sym_name == NULL) return NULL;
+        if (entry->hash == hash && strcmp(entry->sym_name, sym_name) == 0) return entry;
+    }
+}
+
+static void insert_entry(JniSigCache* cache, const char* sym_name, uint32_t hash, const char* arg_types, char ret_type) {
+    if ((cache->count + 1) * 2 > cache->capacity) {
+        uint32_t new_capacity = cache->capacity == 0 ? SIG_CACHE_INITIAL_CAPACITY : cache->capacity * 2;
+        SigEntry* new_entries = calloc(new_capacity, sizeof(SigEntry));
+        for (uint32_t i = 0; i < cache->capacity; i++) {
+            if (cache->entries[i].sym_name == NULL) continue;
+            uint32_t j = cache->entries[i].hash & (new_capacity - 1);
+            while (new_entries[j].sym_name != NULL) j = (j + 1) & (new_capacity - 1);
+            new_entries[j] = cache->entries[i];
+        }
+        free(cache->entries);
+        cache->entries = new_entries;
+        cache->capacity = new_capacity;
+    }
+    uint32_t i = hash & (cache->capacity - 1);
+    while (cache->entries[i].sym_name != NULL) i = (i + 1) & (cache->capacity - 1);
+    cache->entries[i] = (SigEntry) {.sym_name = strdup(sym_name), .hash = hash, .arg_types = strdup(arg_types),
+                                    .ret_type = ret_type};
+    cache->count++;
+}
+
+static bool is_valid_type(char type, bool is_return) {
+    return strchr("pcWdfiIwC", type) != NULL || (is_return && type == 'v');
+}
+
+/** Parses "<symbol> <return type> <argument types>" in place */
+static bool parse_line(char* line, char** sym_name, char** arg_types, char* ret_type) {
+    char* space = strchr(line, ' ');
+    if (space == NULL || strncmp(line, "Java_", 5) != 0) return false;
+    *space = '\0';
+    *sym_name = line;
+    char* types = space + 1;
+    if (types[0] == '\0' || !is_valid_type(types[0], true) || types[1] != ' ') return false;
+    *ret_type = types[0];
+    *arg_types = types + 2;
+    // every bridged method gets JNIEnv* and jobject/jclass first
+    if (strncmp(*arg_types, "pp", 2) != 0) return false;
+    for (char* c = *arg_types; *c; c++) {
+        if (!is_valid_type(*c, false)) return false;
+    }
+    return true;
+}
+
+/** Returns false if anything in the file was unusable, so it gets written anew from what was kept */
+static bool load_file(JniSigCache* cache) {
+    FILE* file = fopen(cache->file_path, "r");
+    if (file == NULL) return false;
+
+    bool is_valid = true;
+    char* line = NULL;
+    size_t line_cap = 0;
+    ssize_t len = getline(&line, &line_cap, file);
+    if (len <= 0 || strcmp(line, cache->header) != 0) {
+        LOGI("Signature cache %s is for another game build or version, discarding", cache->file_path);
+        is_valid = false;
+    } else {
+        while ((len = getline(&line, &line_cap, file)) > 0) {
+            char* sym_name;
+            char* arg_types;
+            char ret_type;
+            // a line without newline is a write cut short by the process dying
+            if (line[len - 1] != '\n') {
+                is_valid = false;
+                break;
+            }
+            line[len - 1] = '\0';
+            if (!parse_line(line, &sym_name, &arg_types, &ret_type)) {
+                LOGW("Invalid line in signature cache %s", cache->file_path);
+                is_valid = false;
+                continue;
+            }
+            uint32_t hash = zomdroid_fnv1a(sym_name);
+            if (find_entry(cache, sym_name, hash) == NULL) insert_entry(cache, sym_name, hash, arg_types, ret_type);
+        }
+    }
+    free(line);
+    fclose(file);
+    return is_valid;
+}
+
+static int rewrite_file(JniSigCache* cache) {
+    size_t tmp_path_len = strlen(cache->file_path) + 5;
+    char* tmp_path = malloc(tmp_path_len);
+    snprintf(tmp_path, tmp_path_len, "%s.tmp", cache->file_path);
+    FILE* file = fopen(tmp_path, "w");
+    if (file == NULL) {
+        LOGW("Failed to create %s: %s", tmp_path, strerror(errno));
+        free(tmp_path);
+        return -1;
+    }
+    fputs(cache->header, file);
+    for (uint32_t i = 0; i < cache->capacity; i++) {
+        SigEntry* entry = &cache->entries[i];
+        if (entry->sym_name == NULL) continue;
+        fprintf(file, "%s %c %s\n", entry->sym_name, entry->ret_type, entry->arg_types);
+    }
+    bool is_written = fflush(file) == 0 && !ferror(file);
+    fclose(file);
+    if (!is_written || rename(tmp_path, cache->file_path) != 0) {
+        LOGW("Failed to write %s: %s", cache->file_path, strerror(errno));
+        remove(tmp_path);
+        free(tmp_path);
+        return -1;
+    }
+    free(tmp_path);
+    return 0;
+}
+
+JniSigCache* zomdroid_jni_sig_cache_open(const char* lib_name, uint64_t lib_hash) {
+    const char* cache_dir = getenv("ZOMDROID_CACHE_DIR");
+    const char* game_build = getenv("ZOMDROID_GAME_BUILD");
+    if (cache_dir == NULL || game_build == NULL) {
+        LOGW("ZOMDROID_CACHE_DIR or ZOMDROID_GAME_BUILD is not set, signature cache is off");
+        return NULL;
+    }
+
+    char path[1024];
+    snprintf(path, sizeof(path), "%s/%s", cache_dir, SIG_CACHE_DIR_NAME);
+    if (mkdir(path, 0700) != 0 && errno != EEXIST) {
+        LOGW("Failed to create %s: %s", path, strerror(errno));
+        return NULL;
+    }
+    // one file per library file, so instances sharing a library also share its cache
+    snprintf(path, sizeof(path), "%s/%s/%s-%016" PRIx64 ".sigs", cache_dir, SIG_CACHE_DIR_NAME, lib_name, lib_hash);
+
+    JniSigCache* cache = calloc(1, sizeof(JniSigCache));
+    cache->file_path = strdup(path);
+    size_t header_len = strlen(game_build) + 64;
+    cache->header = malloc(header_len);
+    snprintf(cache->header, header_len, "zomdroid-jni-sigs %d %s\n", SIG_CACHE_VERSION, game_build);
+    pthread_mutex_init(&cache->mutex, NULL);
+
+    if (!load_file(cache)) rewrite_file(cache);
+    cache->file = fopen(cache->file_path, "a");
+    if (cache->file == NULL) LOGW("Failed to open %s for append: %s", cache->file_path, strerror(errno));
+
+    LOGI("Loaded %u cached signatures for %s", cache->count, lib_name);
+    return cache;
+}
+
+int zomdroid_jni_sig_cache_get(JniSigCache* cache, const char* sym_name, char** arg_types, char* ret_type) {
+    if (cache == NULL) return -1;
+    pthread_mutex_lock(&cache->mutex);
+    SigEntry* entry = find_entry(cache, sym_name, zomdroid_fnv1a(sym_name));
+    if (entry != NULL) {
+        *arg_types = strdup(entry->arg_types);
+        *ret_type = entry->ret_type;
+    }
+    pthread_mutex_unlock(&cache->mutex);
+    return entry != NULL ? 0 : -1;
+}
+
+void zomdroid_jni_sig_cache_put(JniSigCache* cache, const char* sym_name, const char* arg_types, char ret_type) {
+    if (cache == NULL) return;
+    pthread_mutex_lock(&cache->mutex);
+    uint32_t hash = zomdroid_fnv1a(sym_name);
+    if (find_entry(cache, sym_name, hash) == NULL) {
+        insert_entry(cache, sym_name, hash, arg_types, ret_type);
+        if (cache->file != NULL) {
+            fprintf(cache->file, "%s %c %s\n", sym_name, ret_type, arg_types);
+            fflush(cache->file);
+        }
+    }
+    pthread_mutex_unlock(&cache->mutex);
+}
@@ -0,0 +1,25 @@
+#ifndef ZOMDROID_JNI_SIG_CACHE_H
+#define ZOMDROID_JNI_SIG_CACHE_H
+
+#include <stdint.h>
+
+/**
+ * Resolved bridge types of emulated JNI symbols, persisted in $ZOMDROID_CACHE_DIR/jni-sigs so later launches
+ * don't have to ask the JVM for signatures again. A cache file is only used for the exact library file and
+ * game build (ZOMDROID_GAME_BUILD) it was written for
+ */
+typedef struct JniSigCache JniSigCache;
+
+/** Identity of a library file from its size, mtime and inode. Returns 0 on success */
+int zomdroid_jni_sig_cache_file_hash(const char* path, uint64_t* hash);
+
+/** Loads cache for the library, or starts an empty one if there is no valid file. Returns NULL if caching is off */
+JniSigCache* zomdroid_jni_sig_cache_open(const char* lib_name, uint64_t lib_hash);
+
+/** Returns 0 and a malloc'ed copy of argument types if the symbol is cached. NULL cache is allowed */
+int zomdroid_jni_sig_cache_get(JniSigCache* cache, const char* sym_name, char** arg_types, char* ret_type);
+
+/** Adds the symbol and appends it to the cache file right away, so entries survive the game crashing later */
+void zomdroid_jni_sig_cache_put(JniSigCache* cache, const char* sym_name, const char* arg_types, char ret_type);
+
+#endif //ZOMDROID_JNI_SIG_CACHE_H
@@ -3,10 +3,13 @@
 #include <dlfcn.h>
 #include <android/dlext.h>
 #include <malloc.h>
+#include <stdbool.h>
 
 #include "logger.h"
 #include "emulation.h"
 #include "zomdroid_globals.h"
+#include "trace.h"
+#include "jni_resolver.h"
 
 #include "liblinkernsbypass/android_linker_ns.h"
 
@@ -29,6 +32,7 @@ static void* (*loader_android_dlopen_ext)(const char* filename,
                                             const void* caller_addr);
 static void* vulkan_driver_handle;
 static void* vulkan_loader_handle;
+static void (*glfw_swap_buffers)(void* window);
 
 static EmulatedLib jni_libs[] = {{.name = "PZClipper64"}, {.name = "PZBullet64"}, {.name = "PZBulletNoOpenGL64"}, {.name = "Lighting64"}, {.name = "PZPathFind64"}, {.name = "PZPopMan64"}, {.name = "fmodintegration64"}, { .name = "zomdroidtest"}, {.name = "RakNet64"}, {.name = "ZNetNoSteam64"}, {.name = "ZNetJNI64"} };
 static int jni_lib_count = sizeof (jni_libs) / sizeof (EmulatedLib);
@@ -56,10 +60,15 @@ void zomdroid_linker_set_proc_addrs(void* _loader_dlopen_fn, void* _loader_dlsym
 
 __attribute__((visibility("default"), used))
 int zomdroid_linker_init() {
+    uint64_t start_ns = zomdroid_trace_now();
     if (zomdroid_emulation_init() != 0) {
         LOGE("Failed to initialize emulation");
         return -1;
     }
+    zomdroid_trace_span("box64 init", start_ns, zomdroid_trace_now());
+
+    // logs whether it is on, launch goes on without it
+    zomdroid_dynarec_cache_init();
 
     return 0;
 }
@@ -131,106 +140,6 @@ int zomdroid_linker_init() {
     return type;
 }*/
 
-static void parse_jni_sym_name(const char* sym_name, char** class_name, char** method_name, char** method_sig_short) {
-    LOGV("Parsing %s", sym_name);
-
-    char buf[BUF_SIZE];
-
-    if (strncmp(sym_name, "Java_", 5) != 0) {
-        LOGE("Name doesn't start with Java_");
-        return;
-    }
-
-    sym_name += 5;
-
-    int i = 0;
-    int sig = 0;
-    int method = 0;
-    while (*sym_name != '\0') {
-        if (i + 1 >= BUF_SIZE) {
-            LOGE("Class + method name string is more than %d characters long", BUF_SIZE);
-            return;
-        }
-        switch (*sym_name) {
-            case '_':
-                sym_name++;
-                switch (*sym_name) {
-                    case '0':
-                        LOGE("Unexpected _0");
-                        return;
-                    case '1':
-                        buf[i] = '_';
-                        i++;
-                        sym_name++;
-                        break;
-                    case '2':
-                        if (!sig) {
-                            LOGE("Unexpected _2 not in signature");
-                            return;
-                        }
-                        buf[i] = ';';
-                        i++;
-                        sym_name++;
-                        break;
-                    case '3':
-                        if (!sig) {
-                            LOGE("Unexpected _3 not in signature");
-                            return;
-                        }
-                        buf[i] = '[';
-                        i++;
-                        sym_name++;
-                        break;
-                    case '_':
-                        sig = i + 1;
-                        buf[i] = '\0';
-                        i++;
-                        sym_name++;
-                        break;
-                    default:
-                        if (sig) {
-                            buf[i] = '/';
-                        } else  {
-                            if (method) buf[method - 1] = '/';
-                            buf[i] = '\0';
-                            method = i + 1;
-                        }
-                        i++;
-                        break;
-                }
-                break;
-            default:
-                buf[i] = *sym_name;
-                i++;
-                sym_name++;
-                break;
-        }
-    }
-    buf[i++] = '\0';
-    if (!method) {
-        LOGE("JNI name doesn't contain method name");
-        return;
-    }
-    *class_name = malloc(method);
-    strcpy(*class_name, buf);
-
-    if (sig) {
-        *method_name = malloc(sig - method);
-    } else {
-        *method_name = malloc(i - method);
-    }
-    strcpy(*method_name, &buf[method]);
-
-    if (sig) {
-        *method_sig_short = calloc(i - sig + 2, sizeof (char));
-        strcat(*method_sig_short, "(");
-        strcat(*method_sig_short, &buf[sig]);
-        strcat(*method_sig_short, ")");
-    }
-
-    LOGV("className=%s methodName=%s methodSignatureShort=%s", *class_name, *method_name, (*method_sig_short == NULL) ? "<null>" : *method_sig_short);
-}
-
 static int method_signature_to_types(char* sig, char** arg_types, char* return_type) {
     char buf[BUF_SIZE];
     int i = 0;
@@ -439,106 +348,6 @@ static int method_signature_to_types(char* sig, char** arg_types, char* return_t
     return 0;
 }
 
-// if we don't need return types there is a better and faster way to do this without JVMTI by just parsing JNI long name
-// LIAMELUI this function is unoptimized and experimental, should roll back to long name parsing asap or at least cache classes and methods
-static char* method_signature_from_symbol_name(const char* sym) {
-    char* class_name = NULL;
-    char* class_sig = NULL;
-    char* method_name = NULL;
-    char* method_sig = NULL; // argument types + return type
-    char* method_sig_short = NULL; // only argument types
-    jvmtiError jvmti_err = 0;
-    jint class_count = 0;
-    jclass* classes = NULL;
-    jclass target_class = NULL;
-    jint method_count = 0;
-    jmethodID *methods = NULL;
-    jmethodID target_method = NULL;
-
-    parse_jni_sym_name(sym, &class_name, &method_name, &method_sig_short);
-
-    class_sig = calloc(strlen(class_name) + 3, sizeof(char));
-    strcat(class_sig, "L");
-    strcat(class_sig, class_name);
-    strcat(class_sig, ";");
-
-
-    jvmti_err = (*g_zomdroid_jvmti_env)->GetClassLoaderClasses(g_zomdroid_jvmti_env, g_zomdroid_main_class_loader, &class_count, &classes);
-    if (jvmti_err != JVMTI_ERROR_NONE) {
-        LOGE("Failed to get class loader classes, error code: %d", jvmti_err);
-        goto FAIL;
-    }
-    for (int a = 0; a < class_count; a++) {
-        char* signature = NULL;
-        char match = false;
-        jvmti_err = (*g_zomdroid_jvmti_env)->GetClassSignature(g_zomdroid_jvmti_env, classes[a], &signature, NULL);
-        if (jvmti_err != JVMTI_ERROR_NONE) {
-            LOGW("Failed to get class methodSignatureShort, error code %d", jvmti_err);
-            continue;
-        }
-        if (strcmp(signature, class_sig) == 0) {
-            target_class = classes[a];
-            match = true;
-        }
-        jvmti_err = (*g_zomdroid_jvmti_env)->Deallocate(g_zomdroid_jvmti_env, (unsigned char*)signature);
-        if (jvmti_err != JVMTI_ERROR_NONE) LOGW("Failed to deallocate JVM TI memory, error code: %d", jvmti_err);
-        if (match) break;
-    }
-
-    jvmti_err = (*g_zomdroid_jvmti_env)->Deallocate(g_zomdroid_jvmti_env, (unsigned char*)classes);
-    if (jvmti_err != JVMTI_ERROR_NONE) LOGW("Failed to deallocate JVM TI memory, error code: %d", jvmti_err);
-
-    if (target_class == NULL) {
-        LOGE("Failed to find class %s by it's signature %s", class_name, class_sig);
-        goto FAIL;
-    }
-
-    jvmti_err = (*g_zomdroid_jvmti_env)->GetClassMethods(g_zomdroid_jvmti_env, target_class, &method_count, &methods);
-    if (jvmti_err != JVMTI_ERROR_NONE) {
-        LOGE("Failed to get methods for class %s", class_name);
-        goto FAIL;
-    }
-    for (int a = 0; a < method_count; a++) {
-        char* mName = NULL;
-        char* mSig = NULL;
-        char match = false;
-        jvmti_err = (*g_zomdroid_jvmti_env)->GetMethodName(g_zomdroid_jvmti_env, methods[a], &mName, &mSig, NULL);
-        if (jvmti_err != JVMTI_ERROR_NONE) {
-            LOGW("Failed to get method name, error code %d", jvmti_err);
-            continue;
-        }
-        if (strcmp(method_name, mName) == 0 && (method_sig_short == NULL || strstr(mSig, method_sig_short) != NULL)) {
-            target_method = methods[a];
-            method_sig = strdup(mSig);
-            match = true;
-        }
-        jvmti_err = (*g_zomdroid_jvmti_env)->Deallocate(g_zomdroid_jvmti_env, (unsigned char*)mName);
-        if (jvmti_err != JVMTI_ERROR_NONE) LOGW("Failed to deallocate JVM TI memory, error code: %d", jvmti_err);
-        jvmti_err = (*g_zomdroid_jvmti_env)->Deallocate(g_zomdroid_jvmti_env, (unsigned char*)mSig);
-        if (jvmti_err != JVMTI_ERROR_NONE) LOGW("Failed to deallocate JVM TI memory, error code: %d", jvmti_err);
-        if (match) break;
-    }
-
-    if (target_method == NULL) {
-        LOGE("Failed to find method %s with signature %s in class %s", method_name, (method_sig_short == NULL) ? "<null>" : method_sig_short, class_name);
-        goto FAIL;
-    }
-
-    free(class_name);
-    free(class_sig);
-    free(method_name);
-    free(method_sig_short);
-    return method_sig;
-FAIL:
-    free(class_name);
-    free(class_sig);
-    free(method_name);
-    free(method_sig);
-    free(method_sig_short);
-    return NULL;
-}
-
-
 __attribute__((visibility("default"), used))
 void *dlopen(const char* filename, int flags) {
     LOGD("dlopen(name=%s)", filename);
@@ -549,6 +358,7 @@ void *dlopen(const char* filename, int flags) {
         if (!strstr(filename, jni_libs[i].name)) continue;
 
         LOGI("Loading %s in box64...", filename);
+        uint64_t start_ns = zomdroid_trace_now();
         needed_libs_t* needed_lib = new_neededlib(1);
         needed_lib->names[0] = strdup(filename);
         int bindnow = (flags & 0x2) ? 1 : 0;
@@ -563,6 +373,17 @@ void *dlopen(const char* filename, int flags) {
         jni_libs[i].handle = needed_lib->libs[0];
         free_neededlib(needed_lib);
 
+        bool is_dynarec_cache_opened = false;
+        if ((jni_libs[i].sig_cache == NULL || jni_libs[i].dynarec_cache == NULL)
+                && zomdroid_jni_sig_cache_file_hash(filename, &jni_libs[i].file_hash) == 0) {
+            if (jni_libs[i].sig_cache == NULL)
+                jni_libs[i].sig_cache = zomdroid_jni_sig_cache_open(jni_libs[i].name, jni_libs[i].file_hash);
+            if (jni_libs[i].dynarec_cache == NULL) {
+                jni_libs[i].dynarec_cache = zomdroid_dynarec_cache_open(jni_libs[i].name, jni_libs[i].file_hash);
+                is_dynarec_cache_opened = jni_libs[i].dynarec_cache != NULL;
+            }
+        }
+
         int old_deferredInit = my_context->deferredInit;
         my_context->deferredInit = 1;
         elfheader_t** old_deferredInitList = my_context->deferredInitList;
@@ -576,6 +397,13 @@ void *dlopen(const char* filename, int flags) {
         my_context->deferredInitSz = old_deferredInitSz;
         my_context->deferredInitCap = old_deferredInitCap;
 
+        // only after init functions ran, translating code they patch would be wasted
+        if (is_dynarec_cache_opened) zomdroid_dynarec_cache_warm_up(jni_libs[i].dynarec_cache, jni_libs[i].handle);
+
+        char span_name[128];
+        snprintf(span_name, sizeof(span_name), "box64 dlopen %s", jni_libs[i].name);
+        zomdroid_trace_span(span_name, start_ns, zomdroid_trace_now());
+
         return jni_libs[i].handle;
     }
 
@@ -586,6 +414,11 @@ void *dlopen(const char* filename, int flags) {
     return loader_dlopen(filename, flags, __builtin_return_address(0));
 }
 
+static void traced_glfw_swap_buffers(void* window) {
+    glfw_swap_buffers(window);
+    zomdroid_trace_first_frame();
+}
+
 __attribute__((visibility("default"), used))
 void *dlsym(void *handle, const char *sym_name) {
     LOGD("dlsym(handle=%p name=%s)", handle, sym_name);
@@ -615,17 +448,20 @@ void *dlsym(void *handle, const char *sym_name) {
             }
         }
 
-        char* method_sig = method_signature_from_symbol_name(sym_name);
-
-        if (method_sig == NULL) return NULL;
-
         char* arg_types = NULL;
         char ret_type = 0;
-        if (method_signature_to_types(method_sig, &arg_types, &ret_type) != 0) {
+        if (zomdroid_jni_sig_cache_get(jni_libs[i].sig_cache, sym_name, &arg_types, &ret_type) != 0) {
+            char* method_sig = zomdroid_jni_resolve_method_signature(sym_name);
+
+            if (method_sig == NULL) return NULL;
+
+            if (method_signature_to_types(method_sig, &arg_types, &ret_type) != 0) {
+                free(method_sig);
+                return NULL;
+            }
             free(method_sig);
-            return NULL;
+            zomdroid_jni_sig_cache_put(jni_libs[i].sig_cache, sym_name, arg_types, ret_type);
         }
-        free(method_sig);
 
         void* sym = zomdroid_emulation_bridge_jni_symbol(&jni_libs[i], box64_sym,
                                                          arg_types, ret_type);
@@ -635,11 +471,19 @@ void *dlsym(void *handle, const char *sym_name) {
             return NULL;
         }
         free(arg_types);
+        // the JVM links natives on their first call, so every symbol bridged here is code the game runs
+        zomdroid_dynarec_cache_put(jni_libs[i].dynarec_cache, sym_name);
         LOGD("Successfully created emulation bridge for jni symbol %s at %p (target=%ld)", sym_name, sym, box64_sym);
         return sym;
     }
 
-    return loader_dlsym(handle, sym_name, __builtin_return_address(0));
+    void* sym = loader_dlsym(handle, sym_name, __builtin_return_address(0));
+    // LWJGL looks GLFW functions up through here, the first buffer swap ends startup trace whatever the renderer is
+    if (sym != NULL && sym_name != NULL && strcmp(sym_name, "glfwSwapBuffers") == 0) {
+        glfw_swap_buffers = sym;
+        return &traced_glfw_swap_buffers;
+    }
+    return sym;
 }
 
 __attribute__((visibility("default"), used))
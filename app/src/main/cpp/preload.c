@@ -0,0 +1,112 @@
+#include <errno.h>
+#include <fcntl.h>
+#include <pthread.h>
+#include <stdatomic.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#include "preload.h"
+#include "trace.h"
+#include "logger.h"
+
+#define LOG_TAG "zomdroid-preload"
+
+// storage gains little past a few outstanding requests, and the rest of the cores are busy starting the activity
+#define PRELOAD_THREADS_MAX 4
+
+typedef struct {
+    char** paths;
+    int count;
+    atomic_int next_index;
+    /** Workers plus the starting thread, the last one to release frees the job */
+    atomic_int ref_count;
+    atomic_llong bytes_total;
+    uint64_t start_ns;
+} PreloadJob;
+
+static void preload_job_free(PreloadJob* job) {
+    for (int i = 0; i < job->count; i++) {
+        free(job->paths[i]);
+    }
+    free(job->paths);
+    free(job);
+}
+
+static void preload_job_release(PreloadJob* job) {
+    if (atomic_fetch_sub(&job->ref_count, 1) != 1) return;
+    uint64_t end_ns = zomdroid_trace_now();
+    zomdroid_trace_span("preload native libraries", job->start_ns, end_ns);
+    LOGI("Preloaded %d files, %lld MB in %llu ms", job->count, atomic_load(&job->bytes_total) / (1024 * 1024),
+         (unsigned long long) ((end_ns - job->start_ns) / 1000000));
+    preload_job_free(job);
+}
+
+static long long preload_file(const char* path) {
+    int fd = open(path, O_RDONLY | O_CLOEXEC);
+    if (fd < 0) {
+        LOGW("Failed to open %s for preload: %s", path, strerror(errno));
+        return 0;
+    }
+    struct stat st;
+    if (fstat(fd, &st) != 0 || !S_ISREG(st.st_mode)) {
+        close(fd);
+        return 0;
+    }
+    // readahead blocks until the reads are queued, so the whole file is in flight once it returns
+    if (readahead(fd, 0, st.st_size) != 0) {
+        posix_fadvise(fd, 0, st.st_size, POSIX_FADV_WILLNEED);
+    }
+    close(fd);
+    return st.st_size;
+}
+
+static void* preload_worker(void* arg) {
+    PreloadJob* job = arg;
+    int index;
+    while ((index = atomic_fetch_add(&job->next_index, 1)) < job->count) {
+        uint64_t start_ns = zomdroid_trace_now();
+        long long size = preload_file(job->paths[index]);
+        atomic_fetch_add(&job->bytes_total, size);
+
+        const char* name = strrchr(job->paths[index], '/');
+        char span_name[96];
+        snprintf(span_name, sizeof(span_name), "preload %s", name != NULL ? name + 1 : job->paths[index]);
+        zomdroid_trace_span(span_name, start_ns, zomdroid_trace_now());
+    }
+    preload_job_release(job);
+    return NULL;
+}
+
+void zomdroid_preload_files(int count, const char** paths) {
+    if (count <= 0) return;
+
+    PreloadJob* job = calloc(1, sizeof(PreloadJob));
+    job->paths = malloc(count * sizeof(char*));
+    for (int i = 0; i < count; i++) {
+        job->paths[i] = strdup(paths[i]);
+    }
+    job->count = count;
+    job->start_ns = zomdroid_trace_now();
+
+    int thread_count = count < PRELOAD_THREADS_MAX ? count : PRELOAD_THREADS_MAX;
+    atomic_store(&job->ref_count, 1);
+
+    pthread_attr_t attr;
+    pthread_attr_init(&attr);
+    pthread_attr_setdetachstate(&attr, PTHREAD_CREATE_DETACHED);
+    for (int i = 0; i < thread_count; i++) {
+        pthread_t thread;
+        atomic_fetch_add(&job->ref_count, 1);
+        int err = pthread_create(&thread, &attr, preload_worker, job);
+        if (err != 0) {
+            // threads that did start pick up the remaining files, preload is only a hint anyway
+            LOGW("Failed to create preload thread: %s", strerror(err));
+            atomic_fetch_sub(&job->ref_count, 1);
+            break;
+        }
+    }
+    pthread_attr_destroy(&attr);
+    preload_job_release(job);
+}
@@ -0,0 +1,7 @@
+#ifndef ZOMDROID_PRELOAD_H
+#define ZOMDROID_PRELOAD_H
+
+/** Starts pulling given files into page cache on background threads and returns right away, paths are copied */
+void zomdroid_preload_files(int count, const char** paths);
+
+#endif //ZOMDROID_PRELOAD_H
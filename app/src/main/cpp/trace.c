@@ -0,0 +1,119 @@
+#include <pthread.h>
+#include <stdatomic.h>
+#include <stdbool.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include "trace.h"
+#include "logger.h"
+
+#define LOG_TAG "zomdroid-trace"
+
+#define TRACE_EVENTS_MAX 1024
+#define TRACE_NAME_MAX 96
+
+typedef struct {
+    char name[TRACE_NAME_MAX];
+    uint64_t start_ns;
+    uint64_t end_ns;
+    pid_t tid;
+    bool is_instant;
+    /** Set last, dump skips events that are still being written */
+    atomic_bool is_ready;
+} TraceEvent;
+
+static TraceEvent trace_events[TRACE_EVENTS_MAX];
+static atomic_int trace_event_count;
+static atomic_bool is_first_frame_traced;
+static pthread_mutex_t trace_dump_mutex = PTHREAD_MUTEX_INITIALIZER;
+
+uint64_t zomdroid_trace_now() {
+    struct timespec ts;
+    clock_gettime(CLOCK_BOOTTIME, &ts);
+    return (uint64_t) ts.tv_sec * 1000000000ull + (uint64_t) ts.tv_nsec;
+}
+
+static void trace_record(const char* name, uint64_t start_ns, uint64_t end_ns, pid_t tid, bool is_instant) {
+    int index = atomic_fetch_add(&trace_event_count, 1);
+    // startup has a few dozen events, anything past the buffer is dropped rather than allocated
+    if (index >= TRACE_EVENTS_MAX) return;
+
+    TraceEvent* event = &trace_events[index];
+    strncpy(event->name, name, TRACE_NAME_MAX - 1);
+    event->name[TRACE_NAME_MAX - 1] = '\0';
+    event->start_ns = start_ns;
+    event->end_ns = end_ns;
+    event->tid = tid;
+    event->is_instant = is_instant;
+    atomic_store_explicit(&event->is_ready, true, memory_order_release);
+}
+
+void zomdroid_trace_span(const char* name, uint64_t start_ns, uint64_t end_ns) {
+    trace_record(name, start_ns, end_ns, gettid(), false);
+}
+
+void zomdroid_trace_span_tid(const char* name, uint64_t start_ns, uint64_t end_ns, pid_t tid) {
+    trace_record(name, start_ns, end_ns, tid, false);
+}
+
+void zomdroid_trace_instant(const char* name) {
+    uint64_t now_ns = zomdroid_trace_now();
+    trace_record(name, now_ns, now_ns, gettid(), true);
+}
+
+void zomdroid_trace_first_frame() {
+    // called on every frame, keep it to a plain load once traced
+    if (atomic_load_explicit(&is_first_frame_traced, memory_order_relaxed)) return;
+    if (atomic_exchange(&is_first_frame_traced, true)) return;
+    zomdroid_trace_instant("first frame");
+    zomdroid_trace_dump();
+}
+
+static void write_escaped(FILE* file, const char* str) {
+    for (const char* c = str; *c != '\0'; c++) {
+        if (*c == '"' || *c == '\\') fputc('\\', file);
+        if ((unsigned char) *c < 0x20) continue;
+        fputc(*c, file);
+    }
+}
+
+void zomdroid_trace_dump() {
+    const char* path = getenv("ZOMDROID_TRACE_FILE");
+    if (path == NULL) return;
+
+    pthread_mutex_lock(&trace_dump_mutex);
+    FILE* file = fopen(path, "w");
+    if (file == NULL) {
+        LOGW("Failed to open trace file %s", path);
+        pthread_mutex_unlock(&trace_dump_mutex);
+        return;
+    }
+
+    int count = atomic_load(&trace_event_count);
+    if (count > TRACE_EVENTS_MAX) count = TRACE_EVENTS_MAX;
+    pid_t pid = getpid();
+    bool is_first = true;
+    fputs("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n", file);
+    for (int i = 0; i < count; i++) {
+        TraceEvent* event = &trace_events[i];
+        if (!atomic_load_explicit(&event->is_ready, memory_order_acquire)) continue;
+        if (!is_first) fputs(",\n", file);
+        is_first = false;
+        fputs("{\"name\":\"", file);
+        write_escaped(file, event->name);
+        if (event->is_instant) {
+            fprintf(file, "\",\"ph\":\"i\",\"s\":\"p\",\"ts\":%.3f,\"pid\":%d,\"tid\":%d}",
+                    event->start_ns / 1000.0, pid, event->tid);
+        } else {
+            fprintf(file, "\",\"ph\":\"X\",\"ts\":%.3f,\"dur\":%.3f,\"pid\":%d,\"tid\":%d}",
+                    event->start_ns / 1000.0, (event->end_ns - event->start_ns) / 1000.0, pid, event->tid);
+        }
+    }
+    fputs("\n]}\n", file);
+    fclose(file);
+    pthread_mutex_unlock(&trace_dump_mutex);
+
+    LOGI("Startup trace with %d events written to %s", count, path);
+}
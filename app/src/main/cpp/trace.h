@@ -0,0 +1,21 @@
+#ifndef ZOMDROID_TRACE_H
+#define ZOMDROID_TRACE_H
+
+#include <stdint.h>
+#include <sys/types.h>
+
+/** CLOCK_BOOTTIME in nanoseconds, same clock as SystemClock.elapsedRealtimeNanos() on Java side */
+uint64_t zomdroid_trace_now();
+
+/** Records a complete span on calling thread, name is copied */
+void zomdroid_trace_span(const char* name, uint64_t start_ns, uint64_t end_ns);
+void zomdroid_trace_span_tid(const char* name, uint64_t start_ns, uint64_t end_ns, pid_t tid);
+void zomdroid_trace_instant(const char* name);
+
+/** Called on every glfwSwapBuffers of the game. Records the first one and writes the timeline, later calls do nothing */
+void zomdroid_trace_first_frame();
+
+/** Writes all recorded events as Chrome trace JSON to ZOMDROID_TRACE_FILE, if set */
+void zomdroid_trace_dump();
+
+#endif //ZOMDROID_TRACE_H
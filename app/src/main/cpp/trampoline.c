@@ -0,0 +1,353 @@
+#include <string.h>
+
+#include "trampoline.h"
+
+#define A64_SF_32 0
+#define A64_SF_64 1
+#define A64_REG_0 0
+#define A64_REG_1 1
+#define A64_REG_2 2
+#define A64_REG_16 16
+#define A64_REG_18 18
+#define A64_REG_29 29
+#define A64_REG_30 30
+#define A64_REG_SP 31
+
+static uint32_t base_mov_reg(uint8_t sf, uint8_t Rm, uint8_t Rd) {
+    return ((sf & 0x1) << 31) | (0b0101010000 << 21) | ((Rm & 0x1F) << 16) | (0b00000011111 << 5) | (Rd & 0x1F);
+}
+
+static uint32_t base_mov_sp(uint8_t sf, uint8_t Rn, uint8_t Rd) {
+    return ((sf & 0x1) << 31) | (0b001000100000000000000 << 10) | ((Rn & 0x1F) << 5) | (Rd & 0x1F);
+}
+
+static uint32_t base_movz(uint8_t sf, uint8_t hw, uint16_t imm16, uint8_t rd) {
+    return ((sf & 0x1) << 31) | (0b10100101 << 23) | ((hw & 0x3) << 21) | ((imm16 & 0xFFFF) << 5) | (rd & 0x1F);
+}
+static uint32_t base_movk(uint8_t sf, uint8_t hw, uint16_t imm16, uint8_t rd) {
+    return ((sf & 0x1) << 31) | (0b11100101 << 23) | ((hw & 0x3) << 21) | ((imm16 & 0xFFFF) << 5) | (rd & 0x1F);
+}
+
+static uint32_t base_stp_prei(uint8_t sf, int8_t imm7, uint8_t Rt2, uint8_t Rn, uint8_t Rt) {
+    return ((sf & 0x1) << 31) | (0b010100110 << 22) | ((imm7 & 0x7F) << 15) | ((Rt2 & 0x1F) << 10) | ((Rn & 0x1F) << 5) | (Rt & 0x1F);
+}
+static uint32_t base_stp(uint8_t sf, int8_t imm7, uint8_t Rt2, uint8_t Rn, uint8_t Rt) {
+    return ((sf & 0x1) << 31) | (0b010100100 << 22) | ((imm7 & 0x7F) << 15) | ((Rt2 & 0x1F) << 10) | ((Rn & 0x1F) << 5) | (Rt & 0x1F);
+}
+
+static uint32_t base_ldp(uint8_t sf, int8_t imm7, uint8_t Rt2, uint8_t Rn, uint8_t Rt) {
+    return ((sf & 0x1) << 31) | (0b010100101 << 22) | ((imm7 & 0x7F) << 15) | ((Rt2 & 0x1F) << 10) | ((Rn & 0x1F) << 5) | (Rt & 0x1F);
+}
+
+static uint32_t base_ldp_posti(uint8_t sf, int8_t imm7, uint8_t Rt2, uint8_t Rn, uint8_t Rt) {
+    return ((sf & 0x1) << 31) | (0b010100011 << 22) | ((imm7 & 0x7F) << 15) | ((Rt2 & 0x1F) << 10) | ((Rn & 0x1F) << 5) | (Rt & 0x1F);
+}
+
+static uint32_t base_blr(uint8_t Rn) {
+    return (0b1101011000111111000000 << 10) | ((Rn & 0x1F) << 5);
+}
+
+static uint32_t base_br(uint8_t Rn) {
+    return (0b1101011000011111000000 << 10) | ((Rn & 0x1F) << 5);
+}
+
+static uint32_t base_ret(uint8_t Rn) {
+    return (0b1101011001011111000000 << 10 ) | ((Rn & 0x1F) << 5);
+}
+
+static uint32_t base_sub_imm(uint8_t sf, uint8_t sh, uint16_t imm12, uint8_t Rn, uint8_t Rd) {
+    return ((sf & 0x1) << 31) | (0b10100010 << 23) | ((sh & 0x1) << 22) | ((imm12 & 0xFFF) << 10) | ((Rn & 0x1F) << 5) | (Rd & 0x1F);
+}
+static uint32_t base_add_imm(uint8_t sf, uint8_t sh, uint16_t imm12, uint8_t Rn, uint8_t Rd) {
+    return ((sf & 0x1) << 31) | (0b00100010 << 23) | ((sh & 0x1) << 22) | ((imm12 & 0xFFF) << 10) | ((Rn & 0x1F) << 5) | (Rd & 0x1F);
+}
+
+static uint32_t base_str_imm(uint8_t sf, uint16_t imm12, uint8_t Rn, uint8_t Rt) {
+    return (0b1 << 31) | ((sf & 0x1) << 30) | (0b11100100 << 22) | ((imm12 & 0xFFF) << 10) | ((Rn & 0x1F) << 5) | (Rt & 0x1F);
+}
+
+static uint32_t base_ldr_imm(uint8_t sf, uint16_t imm12, uint8_t Rn, uint8_t Rd) {
+    uint32_t insn = (0b1 << 31) | ((sf & 0x1) << 30) | (0b11100101 << 22) | ((imm12 & 0xFFF) << 10) | ((Rn & 0x1F) << 5) | (Rd & 0x1F);
+    return  insn;
+}
+
+static uint32_t base_strb_imm(uint16_t imm12, uint8_t Rn, uint8_t Rt) {
+    return (0b0011100100 << 22) | ((imm12 & 0xFFF) << 10) | ((Rn & 0x1F) << 5) | (Rt & 0x1F);
+}
+
+static uint32_t simd_mov_vec(uint8_t Q, uint8_t Rm, uint8_t Rn, uint8_t Rd) {
+    return (0b0 << 31) | ((Q & 0x1) << 30) | (0b001110101 << 21) | ((Rm & 0x1F) << 16) | (0b000111 << 10) | ((Rn & 0x1F) << 5) | (Rd & 0x1F);
+}
+
+static uint32_t simd_str_imm(uint8_t size, uint8_t opc, uint16_t imm12, uint8_t Rn, uint8_t Rt) {
+    return ((size & 0x3) << 30) | (0b111101 << 24) | ((opc & 0b11) << 22) | ((imm12 & 0xFFF) << 10) | ((Rn & 0x1F) << 5) | (Rt & 0x1F);
+}
+
+static uint32_t simd_ldr_imm(uint8_t size, uint8_t opc, uint16_t imm12, uint8_t Rn, uint8_t Rt) {
+    return ((size & 0b11) << 30) | (0b111101 << 24) | ((opc & 0b11) << 22) | ((imm12 & 0xFFF) << 10) | ((Rn & 0x1F) << 5) | (Rt & 0x1F);
+}
+
+static uint32_t simd_fcvt(uint8_t ftype, uint8_t opc, uint8_t Rn, uint8_t Rd) {
+    return (0b00011110 << 24) | ((ftype & 0b11) << 22) | (0b10001 << 17) | ((opc & 0b11) << 15) | (0b10000 << 10) | ((Rn & 0x1F) << 5) | (Rd & 0x1F);
+}
+
+int zomdroid_trampoline_assemble(uint32_t* code, int code_capacity, int* insn_count, const char* signature,
+                                 uint64_t emulated_fn, uint64_t wrapped_jni_env, uint64_t run_function_fmt) {
+#define ADD_INSN(I) { if (*insn_count >= code_capacity) return -1; \
+                code[(*insn_count)++] = I; }
+
+    *insn_count = 0;
+
+    const int argc = (int)strlen(signature);
+
+    const int i64_reserved = 2; // RunFunctionFmtSpecial args
+    int i64_argc = 0;
+    int i64_argc_stack = 0;
+
+    const int df64_reserved = 0;
+    int df64_argc = 0;
+    int df64_argc_stack = 0;
+
+    // calculate how many arguments are in registers/stack
+    for (int i = 0; i < argc; i++) {
+        switch(signature[i]) {
+            case 'f':
+            case 'd':
+                if (df64_argc < 8) df64_argc++; else df64_argc_stack++;
+                break;
+            case 'p':
+            case 'i':
+            case 'u':
+            case 'I':
+            case 'U':
+            case 'L':
+            case 'l':
+            case 'w':
+            case 'W':
+            case 'c':
+            case 'C':
+                if (i64_argc < 8) i64_argc++; else i64_argc_stack++;
+                break;
+        }
+    }
+
+    // set up frame pointer if needed
+    int fp_offset = 0;
+    if (i64_argc > 8 - i64_reserved) fp_offset += (i64_argc + i64_reserved - 8) * 8;
+    if (df64_argc > 8 - df64_reserved) fp_offset += (df64_argc + df64_reserved - 8) * 8;
+    fp_offset += (i64_argc_stack + df64_argc_stack) * 8;
+
+    // allocate stack
+    int stack_size = fp_offset + 16 + argc + 1;
+    stack_size = (stack_size + 15) & ~15;
+    if (fp_offset > 0) {
+        ADD_INSN(base_sub_imm(A64_SF_64, 0, stack_size, A64_REG_SP, A64_REG_SP))
+        ADD_INSN(base_stp(A64_SF_64, (fp_offset) / 8, A64_REG_30, A64_REG_SP, A64_REG_29))
+        ADD_INSN(base_add_imm(A64_SF_64, 0, fp_offset, A64_REG_SP, A64_REG_29))
+    } else {
+        ADD_INSN(base_stp_prei(A64_SF_64, -stack_size / 8, A64_REG_30, A64_REG_SP, A64_REG_29))
+        ADD_INSN(base_mov_sp(A64_SF_64, A64_REG_SP, A64_REG_29))
+    }
+
+    // overwrite first arg (JNIEnv*) with our wrapper
+    ADD_INSN(base_movz(A64_SF_64, 0, wrapped_jni_env & 0xFFFF, A64_REG_0))
+    ADD_INSN(base_movk(A64_SF_64, 1, (wrapped_jni_env >> 16) & 0xFFFF, A64_REG_0))
+    ADD_INSN(base_movk(A64_SF_64, 2, (wrapped_jni_env >> 32) & 0xFFFF, A64_REG_0))
+    ADD_INSN(base_movk(A64_SF_64, 3, (wrapped_jni_env >> 48) & 0xFFFF, A64_REG_0))
+
+    // shift arguments to make space for reserved
+    for (int i = argc - 1; i >= 0; i--) {
+        switch(signature[i]) {
+            case 'f':
+                if (df64_argc_stack > 0) {
+                    int src_offset = (i64_argc_stack + df64_argc_stack) * 8 - 8;
+                    int i64_off = i64_argc + i64_reserved >= 8 ? (i64_argc + i64_reserved - 8) * 8 : 0;
+                    int target_offset = (df64_argc + df64_reserved - 8) * 8 + i64_off + src_offset;
+                    ADD_INSN(simd_ldr_imm(0b10, 0b01, (src_offset + stack_size) / 4, A64_REG_SP, A64_REG_18))
+                    ADD_INSN(simd_fcvt(0b00, 0b01, A64_REG_18, A64_REG_18))
+                    ADD_INSN(simd_str_imm(0b11, 0b00, target_offset / 8, A64_REG_SP, A64_REG_18))
+                    df64_argc_stack--;
+                } else {
+                    if (df64_argc + df64_reserved <= 8) {
+                        ADD_INSN(simd_fcvt(0b00, 0b01, df64_argc - 1, df64_argc - 1 + df64_reserved))
+                    } else {
+                        int i64_off = i64_argc + i64_reserved >= 8 ? (i64_argc + i64_reserved - 8) * 8 : 0;
+                        int target_offset = (df64_argc + df64_reserved - 8) * 8 + i64_off - 8;
+                        ADD_INSN(simd_fcvt(0b00, 0b01, df64_argc - 1, A64_REG_18))
+                        ADD_INSN(simd_str_imm(0b11, 0b00, target_offset / 8, A64_REG_SP, A64_REG_18))
+                    }
+                    df64_argc--;
+                }
+                break;
+            case 'd':
+                if (df64_argc_stack > 0) {
+                    int src_offset = (i64_argc_stack + df64_argc_stack) * 8 - 8;
+                    int i64_off = i64_argc + i64_reserved >= 8 ? (i64_argc + i64_reserved - 8) * 8 : 0;
+                    int target_offset = (df64_argc + df64_reserved - 8) * 8 + i64_off + src_offset;
+                    ADD_INSN(simd_ldr_imm(0b11, 0b01, (src_offset + stack_size) / 8, A64_REG_SP, A64_REG_18))
+                    ADD_INSN(simd_str_imm(0b11, 0b00, target_offset / 8, A64_REG_SP, A64_REG_18))
+                    df64_argc_stack--;
+                } else {
+                    if (df64_reserved == 0) {
+                        df64_argc--;
+                        break;
+                    }
+
+                    if (df64_argc + df64_reserved <= 8) {
+                        ADD_INSN(simd_mov_vec(0, df64_argc - 1, df64_argc - 1, df64_argc - 1 + df64_reserved))
+                    } else {
+                        int i64_off = i64_argc + i64_reserved >= 8 ? (i64_argc + i64_reserved - 8) * 8 : 0;
+                        int target_offset = (df64_argc + df64_reserved - 8) * 8 + i64_off - 8;
+                        ADD_INSN(simd_str_imm(0b11, 0b00, target_offset / 8, A64_REG_SP, df64_argc - 1))
+                    }
+                    df64_argc--;
+                }
+                break;
+            case 'i':
+            case 'u':
+            case 'w':
+            case 'W':
+            case 'c':
+            case 'C':
+                if (i64_argc_stack > 0) {
+                    int src_offset = (i64_argc_stack + df64_argc_stack) * 8 - 8;
+                    int d64_off = df64_argc + df64_reserved >= 8 ? (df64_argc + df64_reserved - 8) * 8 : 0;
+                    int dst_offset = (i64_argc + i64_reserved - 8) * 8 + d64_off + src_offset;
+                    ADD_INSN(base_ldr_imm(A64_SF_32, (src_offset + stack_size) / 4, A64_REG_SP, A64_REG_18))
+                    ADD_INSN(base_str_imm(A64_SF_32, dst_offset / 4, A64_REG_SP, A64_REG_18))
+                    i64_argc_stack--;
+                } else {
+                    if (i64_reserved == 0) {
+                        i64_argc--;
+                        break;
+                    }
+
+                    if (i64_argc + i64_reserved <= 8) {
+                        ADD_INSN(base_mov_reg(A64_SF_32, i64_argc - 1, i64_argc - 1 + i64_reserved))
+                    } else {
+                        int d64_off = df64_argc + df64_reserved >= 8 ? (df64_argc + df64_reserved - 8) * 8 : 0;
+                        int offset = (i64_argc + i64_reserved - 8) * 8 + d64_off - 8;
+                        ADD_INSN(base_str_imm(A64_SF_32, offset / 4, A64_REG_SP, i64_argc - 1))
+                    }
+                    i64_argc--;
+                }
+                break;
+            case 'p':
+            case 'I':
+            case 'U':
+            case 'L':
+            case 'l':
+                if (i64_argc_stack > 0) {
+                    int src_offset = (i64_argc_stack + df64_argc_stack) * 8 - 8;
+                    int d64_off = df64_argc + df64_reserved >= 8 ? (df64_argc + df64_reserved - 8) * 8 : 0;
+                    int dst_offset = (i64_argc + i64_reserved - 8) * 8 + d64_off + src_offset;
+                    ADD_INSN(base_ldr_imm(A64_SF_64, (src_offset + stack_size) / 8, A64_REG_SP, A64_REG_18))
+                    ADD_INSN(base_str_imm(A64_SF_64, dst_offset / 8, A64_REG_SP, A64_REG_18))
+                    i64_argc_stack--;
+                } else {
+                    if (i64_reserved == 0) {
+                        i64_argc--;
+                        break;
+                    }
+
+                    if (i64_argc + i64_reserved <= 8) {
+                        ADD_INSN(base_mov_reg(A64_SF_64, i64_argc - 1, i64_argc - 1 + i64_reserved))
+                    } else {
+                        int d64_off = df64_argc + df64_reserved >= 8 ? (df64_argc + df64_reserved - 8) * 8 : 0;
+                        int offset = (i64_argc + i64_reserved - 8) * 8 + d64_off - 8;
+                        ADD_INSN(base_str_imm(A64_SF_64, offset / 8, A64_REG_SP, i64_argc - 1))
+                    }
+                    i64_argc--;
+                }
+                break;
+        }
+    }
+
+    // put first reserved arg - emulated function ptr
+    ADD_INSN(base_movz(A64_SF_64, 0, emulated_fn & 0xFFFF, A64_REG_0))
+    ADD_INSN(base_movk(A64_SF_64, 1, (emulated_fn >> 16) & 0xFFFF, A64_REG_0))
+    ADD_INSN(base_movk(A64_SF_64, 2, (emulated_fn >> 32) & 0xFFFF, A64_REG_0))
+    ADD_INSN(base_movk(A64_SF_64, 3, (emulated_fn >> 48) & 0xFFFF, A64_REG_0))
+
+    // put second reserved arg - emulated function signature
+    int signature_offset = fp_offset + 16;
+    for (int i = 0; signature[i] != 0;) {
+        if (i + 8 <= strlen(signature)) {
+            uint64_t chunk = *(uint64_t *)(signature + i);
+            ADD_INSN(base_movz(A64_SF_64, 0, chunk & 0xFFFF, A64_REG_18))
+            ADD_INSN(base_movk(A64_SF_64, 1, (chunk >> 16) & 0xFFFF, A64_REG_18))
+            ADD_INSN(base_movk(A64_SF_64, 2, (chunk >> 32) & 0xFFFF, A64_REG_18))
+            ADD_INSN(base_movk(A64_SF_64, 3, (chunk >> 48) & 0xFFFF, A64_REG_18))
+            ADD_INSN(base_str_imm(A64_SF_64, (signature_offset + i) / 8, A64_REG_SP, A64_REG_18))
+            i += 8;
+        } else if (i + 4 <= strlen(signature)) {
+            uint32_t chunk = *(uint32_t*)(signature + i);
+            ADD_INSN(base_movz(A64_SF_32, 0, chunk & 0xFFFF, A64_REG_18))
+            ADD_INSN(base_movk(A64_SF_32, 1, (chunk >> 16) & 0xFFFF, A64_REG_18))
+            ADD_INSN(base_str_imm(A64_SF_32, (signature_offset + i) / 4, A64_REG_SP, A64_REG_18))
+            i += 4;
+        } else {
+            ADD_INSN(base_movz(A64_SF_32, 0, signature[i], A64_REG_18))
+            ADD_INSN(base_strb_imm(signature_offset + i, A64_REG_SP, A64_REG_18))
+            i++;
+        }
+    }
+    ADD_INSN(base_movz(A64_SF_32, 0, 0, A64_REG_18))
+    ADD_INSN(base_strb_imm(signature_offset + strlen(signature), A64_REG_SP, A64_REG_18))
+    ADD_INSN(base_add_imm(A64_SF_64, 0, signature_offset, A64_REG_SP, A64_REG_1))
+
+    // prepare and call RunFunctionFmt
+    ADD_INSN(base_movz(A64_SF_64, 0, run_function_fmt & 0xFFFF, A64_REG_18))
+    ADD_INSN(base_movk(A64_SF_64, 1, (run_function_fmt >> 16) & 0xFFFF, A64_REG_18))
+    ADD_INSN(base_movk(A64_SF_64, 2, (run_function_fmt >> 32) & 0xFFFF, A64_REG_18))
+    ADD_INSN(base_movk(A64_SF_64, 3, (run_function_fmt >> 48) & 0xFFFF, A64_REG_18))
+    ADD_INSN(base_blr(A64_REG_18))
+
+    // free stack
+    if (fp_offset > 0) {
+        ADD_INSN(base_ldp(A64_SF_64, fp_offset / 8, A64_REG_30, A64_REG_SP, A64_REG_29))
+        ADD_INSN(base_add_imm(A64_SF_64, 0, stack_size, A64_REG_SP, A64_REG_SP))
+    } else {
+        ADD_INSN(base_ldp_posti(A64_SF_64, stack_size / 8, A64_REG_30, A64_REG_SP, A64_REG_29))
+    }
+
+    // return
+    ADD_INSN(base_ret(A64_REG_30))
+    return 0;
+#undef ADD_INSN
+}
+
+int zomdroid_trampoline_assemble_direct(uint32_t* code, int code_capacity, int* insn_count, const char* signature,
+                                        uint64_t emulated_fn, uint64_t wrapped_jni_env, uint64_t runner) {
+#define ADD_INSN(I) { if (*insn_count >= code_capacity) return -1; \
+                code[(*insn_count)++] = I; }
+
+    *insn_count = 0;
+
+    int i64_argc = 0;
+    for (int i = 0; signature[i] != 0; i++) {
+        if (signature[i] != 'f' && signature[i] != 'd') i64_argc++;
+    }
+    // emulated function ptr goes into the first free general purpose register
+    if (i64_argc >= 8) return -1;
+
+    // overwrite first arg (JNIEnv*) with our wrapper
+    ADD_INSN(base_movz(A64_SF_64, 0, wrapped_jni_env & 0xFFFF, A64_REG_0))
+    ADD_INSN(base_movk(A64_SF_64, 1, (wrapped_jni_env >> 16) & 0xFFFF, A64_REG_0))
+    ADD_INSN(base_movk(A64_SF_64, 2, (wrapped_jni_env >> 32) & 0xFFFF, A64_REG_0))
+    ADD_INSN(base_movk(A64_SF_64, 3, (wrapped_jni_env >> 48) & 0xFFFF, A64_REG_0))
+
+    ADD_INSN(base_movz(A64_SF_64, 0, emulated_fn & 0xFFFF, i64_argc))
+    ADD_INSN(base_movk(A64_SF_64, 1, (emulated_fn >> 16) & 0xFFFF, i64_argc))
+    ADD_INSN(base_movk(A64_SF_64, 2, (emulated_fn >> 32) & 0xFFFF, i64_argc))
+    ADD_INSN(base_movk(A64_SF_64, 3, (emulated_fn >> 48) & 0xFFFF, i64_argc))
+
+    // tail call, runner returns straight to the JNI caller
+    ADD_INSN(base_movz(A64_SF_64, 0, runner & 0xFFFF, A64_REG_16))
+    ADD_INSN(base_movk(A64_SF_64, 1, (runner >> 16) & 0xFFFF, A64_REG_16))
+    ADD_INSN(base_movk(A64_SF_64, 2, (runner >> 32) & 0xFFFF, A64_REG_16))
+    ADD_INSN(base_movk(A64_SF_64, 3, (runner >> 48) & 0xFFFF, A64_REG_16))
+    ADD_INSN(base_br(A64_REG_16))
+    return 0;
+#undef ADD_INSN
+}
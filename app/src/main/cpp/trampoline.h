@@ -0,0 +1,25 @@
+#ifndef ZOMDROID_TRAMPOLINE_H
+#define ZOMDROID_TRAMPOLINE_H
+
+#include <stdint.h>
+
+// the longest JNI signature, 255 arguments, takes under 700 instructions
+#define TRAMPOLINE_MAX_INSNS 1536
+
+/**
+ * Emits AArch64 code that takes native JNI arguments, swaps JNIEnv* for the wrapped one and calls
+ * run_function_fmt(emulated_fn, signature, args...). Depends on nothing but libc, so it also builds for the host.
+ * Returns -1 if the code doesn't fit into code_capacity instructions
+ */
+int zomdroid_trampoline_assemble(uint32_t* code, int code_capacity, int* insn_count, const char* signature,
+                                 uint64_t emulated_fn, uint64_t wrapped_jni_env, uint64_t run_function_fmt);
+
+/**
+ * Emits AArch64 code that swaps JNIEnv* for the wrapped one, puts emulated_fn into the first general purpose register
+ * after the integer arguments of the signature and branches to runner, which is called with the original arguments
+ * otherwise untouched. Returns -1 if there is no free register for emulated_fn or the code doesn't fit
+ */
+int zomdroid_trampoline_assemble_direct(uint32_t* code, int code_capacity, int* insn_count, const char* signature,
+                                        uint64_t emulated_fn, uint64_t wrapped_jni_env, uint64_t runner);
+
+#endif //ZOMDROID_TRAMPOLINE_H
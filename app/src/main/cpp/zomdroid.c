@@ -15,6 +15,7 @@
 #include <sys/sysinfo.h>
 #include <asm-generic/fcntl.h>
 #include "logger.h"
+#include "trace.h"
 
 #define LOG_TAG "zomdroid-main"
 
@@ -124,11 +125,13 @@ _Noreturn void handle_abort() {
 }
 
 static void create_jvm_and_launch_main(int jvm_argc, const char** jvm_argv, const char* main_class_name, int argc, const char** argv) {
+    uint64_t start_ns = zomdroid_trace_now();
     void* libjvm = linkernsbypass_namespace_dlopen("libjvm.so", RTLD_GLOBAL, zomdroid_ns);
     if (libjvm == NULL) {
         LOGE("%s", dlerror());
         return;
     }
+    zomdroid_trace_span("dlopen libjvm.so", start_ns, zomdroid_trace_now());
 
     jint(*JNI_CreateJavaVM)(JavaVM**, void**, void*) = dlsym(libjvm, "JNI_CreateJavaVM");
 
@@ -146,11 +149,13 @@ static void create_jvm_and_launch_main(int jvm_argc, const char** jvm_argv, cons
     vm_args.nOptions = jvm_argc;
     vm_args.ignoreUnrecognized = JNI_FALSE;
 
+    start_ns = zomdroid_trace_now();
     jint res = JNI_CreateJavaVM(&jvm, (void**)&env, &vm_args);
     if (res != JNI_OK) {
         LOGE("Failed to create JVM, error code: %d", res);
         return;
     }
+    zomdroid_trace_span("JNI_CreateJavaVM", start_ns, zomdroid_trace_now());
 
     jvmtiEnv* jvmtiEnv = NULL;
     res = (*jvm)->GetEnv(jvm, (void**)&jvmtiEnv, JVMTI_VERSION_11);
@@ -197,11 +202,13 @@ static void create_jvm_and_launch_main(int jvm_argc, const char** jvm_argv, cons
 
     g_zomdroid_jvm = jvm;
 
+    start_ns = zomdroid_trace_now();
     jclass main_class = (*env)->FindClass(env, main_class_name);
     if (main_class == NULL) {
         LOGE("Failed to load main class");
         goto FINISH;
     }
+    zomdroid_trace_span("load main class", start_ns, zomdroid_trace_now());
 
     jobject classLoader = NULL;
     if ((err = (*jvmtiEnv)->GetClassLoader(jvmtiEnv, main_class, &classLoader)) != JVMTI_ERROR_NONE) {
@@ -225,6 +232,7 @@ static void create_jvm_and_launch_main(int jvm_argc, const char** jvm_argv, cons
         }
     }
 
+    zomdroid_trace_instant("main");
     (*env)->CallStaticVoidMethod(env, main_class, main_method, main_class_args);
 
     FINISH:
@@ -315,6 +323,9 @@ void zomdroid_start_game(const char* game_dir_path, const char* library_dir_path
 
     signal(SIGABRT, handle_abort);
 
+    // game usually leaves through System.exit, so write the timeline on exit in case GLFW never reported a frame
+    atexit(zomdroid_trace_dump);
+
     pthread_t logging_thread;
     if (pthread_create(&logging_thread, NULL, (void *(*)(void *)) &monitor_stdio_and_memory, NULL) != 0) {
         LOGW("Failed to create stdout logging thread");
@@ -322,15 +333,19 @@ void zomdroid_start_game(const char* game_dir_path, const char* library_dir_path
         pthread_detach(logging_thread);
     }
 
+    uint64_t start_ns = zomdroid_trace_now();
     if (init_zomdroid_namespace(library_dir_path) != 0) {
         LOGE("Failed to initialize zomdroid namespace");
         return;
     }
+    zomdroid_trace_span("init_zomdroid_namespace", start_ns, zomdroid_trace_now());
 
+    start_ns = zomdroid_trace_now();
     if (load_linker_hook() != 0) {
         LOGE("Failed to load linker hook");
         return;
     }
+    zomdroid_trace_span("load_linker_hook", start_ns, zomdroid_trace_now());
 
     if (chdir(game_dir_path) != 0) {
         LOGE("Failed to change cwd with error: %s", strerror(errno));
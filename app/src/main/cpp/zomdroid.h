@@ -2,6 +2,7 @@
 #define ZOMDROID_ZOMDROID_H
 
 #include "android/native_window.h"
+#include "trace.h"
 
 void zomdroid_set_art_vm(void* vm);
 
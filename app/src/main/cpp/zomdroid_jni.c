@@ -1,5 +1,6 @@
 #include <jni.h>
 #include "zomdroid.h"
+#include "preload.h"
 #include <stdlib.h>
 #include <string.h>
 #include <android/native_window.h>
@@ -66,6 +67,25 @@ Java_com_zomdroid_GameLauncher_startGame(JNIEnv *env, jobject clazz, jstring j_g
     }
 }
 
+JNIEXPORT void JNICALL
+Java_com_zomdroid_GameLauncher_preloadLibraries(JNIEnv *env, jclass clazz, jobjectArray j_paths) {
+    int count = (*env)->GetArrayLength(env, j_paths);
+    if (count <= 0) return;
+    const char** paths = malloc(count * sizeof(char*));
+    jstring* path_strings = malloc(count * sizeof(jstring));
+    for (int i = 0; i < count; i++) {
+        path_strings[i] = (*env)->GetObjectArrayElement(env, j_paths, i);
+        paths[i] = (*env)->GetStringUTFChars(env, path_strings[i], NULL);
+    }
+    zomdroid_preload_files(count, paths);
+    for (int i = 0; i < count; i++) {
+        (*env)->ReleaseStringUTFChars(env, path_strings[i], paths[i]);
+        (*env)->DeleteLocalRef(env, path_strings[i]);
+    }
+    free(path_strings);
+    free(paths);
+}
+
 JNIEXPORT void JNICALL
 Java_com_zomdroid_GameLauncher_destroyZomdroidWindow(JNIEnv *env, jobject clazz) {
     zomdroid_deinit();
@@ -129,4 +149,12 @@ Java_com_zomdroid_input_InputNativeInterface_sendJoystickButton(JNIEnv *env, jcl
 JNIEXPORT void JNICALL
 Java_com_zomdroid_input_InputNativeInterface_sendJoystickConnected(JNIEnv *env, jclass clazz) {
     zomdroid_event_joystick_connected();
-}
\ No newline at end of file
+}
+
+JNIEXPORT void JNICALL
+Java_com_zomdroid_StartupTracer_nativeAddSpan(JNIEnv *env, jclass clazz, jstring j_name, jlong start_ns,
+                                              jlong end_ns, jint tid) {
+    const char* name = (*env)->GetStringUTFChars(env, j_name, NULL);
+    zomdroid_trace_span_tid(name, (uint64_t) start_ns, (uint64_t) end_ns, tid);
+    (*env)->ReleaseStringUTFChars(env, j_name, name);
+}
@@ -139,6 +139,15 @@ public class AppStorageProvider extends DocumentsProvider {
     public ParcelFileDescriptor openDocument(final String documentId, String mode, CancellationSignal signal) throws FileNotFoundException {
         final File file = getFileForDocId(documentId);
         final int accessMode = ParcelFileDescriptor.parseMode(mode);
+        if ((accessMode & (ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_READ_WRITE)) != 0) {
+            // game files may be hardlinks shared with other instances, writes must not go through to them
+            try {
+                GameFileStore.unshare(file);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to unshare " + file, e);
+                throw new FileNotFoundException("Failed to open " + documentId + " for writing");
+            }
+        }
         return ParcelFileDescriptor.open(file, accessMode);
     }
 
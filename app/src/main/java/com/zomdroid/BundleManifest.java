@@ -0,0 +1,111 @@
+package com.zomdroid;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * List of files inside a bundle, one {@code path\tsize\tsha256} line per file, generated by tools/make_bundles.sh.
+ * Comparing manifest of installed bundle with the new one tells which files actually need to be rewritten
+ */
+class BundleManifest {
+    final HashMap<String, Entry> entries = new HashMap<>();
+
+    static class Entry {
+        final long size;
+        final String sha256;
+
+        Entry(long size, String sha256) {
+            this.size = size;
+            this.sha256 = sha256;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Entry)) return false;
+            Entry entry = (Entry) o;
+            return size == entry.size && sha256.equals(entry.sha256);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(size, sha256);
+        }
+    }
+
+    @NonNull
+    static BundleManifest read(@NonNull InputStream inStream) throws IOException {
+        BundleManifest manifest = new BundleManifest();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inStream, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) continue;
+            String[] parts = line.split("\t");
+            if (parts.length != 3) throw new IOException("Malformed manifest line: " + line);
+            try {
+                manifest.entries.put(normalizePath(parts[0]), new Entry(Long.parseLong(parts[1]), parts[2]));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed manifest line: " + line, e);
+            }
+        }
+        return manifest;
+    }
+
+    @Nullable
+    static BundleManifest readFromFile(@NonNull File file) {
+        if (!file.isFile()) return null;
+        try (InputStream inStream = new FileInputStream(file)) {
+            return read(inStream);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Strips leading "./" that tar adds to entry names
+     */
+    @NonNull
+    static String normalizePath(@NonNull String path) {
+        while (path.startsWith("./")) path = path.substring(2);
+        return path;
+    }
+
+    /**
+     * @return paths of files that are in this manifest but are missing or differ in the installed bundle
+     */
+    @NonNull
+    Set<String> getChangedPaths(@NonNull BundleManifest installed, @NonNull String installedPath) {
+        Set<String> changedPaths = new HashSet<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            File file = new File(installedPath + "/" + entry.getKey());
+            if (!entry.getValue().equals(installed.entries.get(entry.getKey()))
+                    || !file.isFile() || file.length() != entry.getValue().size) {
+                changedPaths.add(entry.getKey());
+            }
+        }
+        return changedPaths;
+    }
+
+    /**
+     * @return paths of files that were in the installed bundle but are gone from this manifest
+     */
+    @NonNull
+    Set<String> getRemovedPaths(@NonNull BundleManifest installed) {
+        Set<String> removedPaths = new HashSet<>(installed.entries.keySet());
+        removedPaths.removeAll(entries.keySet());
+        return removedPaths;
+    }
+}
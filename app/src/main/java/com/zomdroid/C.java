@@ -33,6 +33,9 @@ public class C {
         public static final String BUNDLES_JRE25 = BUNDLES + "/jre25.tar.xz";
         public static final String BUNDLES_LIBS = BUNDLES + "/libs.tar.xz";
         public static final String BUNDLES_JARS = BUNDLES + "/jars.tar";
+        public static final String BUNDLES_JRE_MANIFEST = BUNDLES + "/jre.manifest";
+        public static final String BUNDLES_LIBS_MANIFEST = BUNDLES + "/libs.manifest";
+        public static final String BUNDLES_JARS_MANIFEST = BUNDLES + "/jars.manifest";
         public static final String DEFAULT_CONTROLS = "default_controls.json";
     }
 
@@ -48,6 +51,7 @@ public class C {
             public static final String GAME_INSTANCES = "gameInstances";
             public static final String LAUNCHER_PREFS = "launcherPrefs";
             public static final String INSTALLED_BUNDLES = "installedBundles";
+            public static final String INSTALLED_BUNDLES_FINGERPRINTS = "installedBundlesFingerprints";
             public static final String ARE_DEPENDENCIES_INSTALLED = "areDependenciesInstalled";
             public static final String IS_LEGAL_NOTICE_ACCEPTED = "isLegalNoticeAccepted";
         }
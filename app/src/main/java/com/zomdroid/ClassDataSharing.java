@@ -0,0 +1,123 @@
+package com.zomdroid;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.zomdroid.game.GameInstance;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Launcher managed AppCDS. The first launch for a given classpath and JRE dumps a dynamic archive of loaded classes
+ * when the JVM exits, later launches map that archive instead of loading and verifying the same classes again.
+ * Archive is regenerated when any classpath jar or the JRE changes. Only works for classpaths made of jars, loose game
+ * classes are packed by {@link GameClassesJar} for that
+ */
+class ClassDataSharing {
+    private static final String LOG_TAG = ClassDataSharing.class.getName();
+    private static final String CDS_DIR_NAME = "cds";
+    // dump only happens on a clean JVM exit, stop training if it never gets there, e.g. no base archive in the JRE
+    private static final int MAX_TRAINING_ATTEMPTS = 3;
+
+    static void addJvmArgs(@NonNull GameInstance gameInstance, @NonNull String jreFolder, @NonNull List<String> jvmArgs) {
+        for (String arg : jvmArgs) {
+            if (arg.startsWith("-XX:SharedArchiveFile") || arg.startsWith("-XX:ArchiveClassesAtExit")
+                    || arg.startsWith("-Xshare")) {
+                Log.i(LOG_TAG, "Class data sharing is configured by user, skipping");
+                return;
+            }
+        }
+
+        // HotSpot refuses to dump with a non-empty directory on the classpath and exits with an error instead of
+        // writing the archive, "." of the game directory is only left there if game classes could not be packed
+        for (File file : gameInstance.getClassPathFiles()) {
+            String[] children = file.list();
+            if (children != null && children.length > 0) {
+                Log.i(LOG_TAG, "Classpath has non-empty directory " + file.getAbsolutePath()
+                        + ", class data sharing is not supported, skipping");
+                return;
+            }
+        }
+
+        File cdsDir = new File(gameInstance.getHomePath() + "/" + CDS_DIR_NAME);
+        String jreName = new File(jreFolder).getName();
+        File archiveFile = new File(cdsDir, jreName + ".jsa");
+        File stampFile = new File(cdsDir, jreName + ".stamp");
+
+        String key = buildKey(gameInstance, jreFolder);
+        String[] stamp = readStamp(stampFile);
+        boolean isSameKey = stamp != null && stamp[1].equals(key);
+        if (isSameKey && archiveFile.isFile()) {
+            jvmArgs.add("-XX:SharedArchiveFile=" + archiveFile.getAbsolutePath());
+            return;
+        }
+
+        int attempts = 0;
+        if (isSameKey) {
+            try {
+                attempts = Integer.parseInt(stamp[0]);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        if (attempts >= MAX_TRAINING_ATTEMPTS) {
+            Log.w(LOG_TAG, "Class data sharing archive was not created after " + attempts + " launches, giving up");
+            return;
+        }
+
+        try {
+            Files.deleteIfExists(archiveFile.toPath());
+            if (!cdsDir.isDirectory() && !cdsDir.mkdirs())
+                throw new IOException("Failed to create directory " + cdsDir.getAbsolutePath());
+            Files.write(stampFile.toPath(), ((attempts + 1) + "\n" + key).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to prepare class data sharing archive", e);
+            return;
+        }
+        jvmArgs.add("-XX:ArchiveClassesAtExit=" + archiveFile.getAbsolutePath());
+    }
+
+    /**
+     * JVM validates the archive against the classpath on its own, but silently ignores a stale one,
+     * so the launcher needs its own key to know when to dump a new archive
+     */
+    private static String buildKey(GameInstance gameInstance, String jreFolder) {
+        StringBuilder keyBuilder = new StringBuilder();
+        appendFileKey(keyBuilder, new File(jreFolder + "/lib/modules"));
+        appendFileKey(keyBuilder, new File(jreFolder + "/lib/server/libjvm.so"));
+        for (File file : gameInstance.getClassPathFiles()) {
+            // only empty directories get here, they hold no classes
+            if (file.isDirectory()) continue;
+            appendFileKey(keyBuilder, file);
+        }
+        return keyBuilder.toString();
+    }
+
+    private static void appendFileKey(StringBuilder keyBuilder, File file) {
+        keyBuilder.append(file.getAbsolutePath()).append('\t')
+                .append(file.length()).append('\t')
+                .append(file.lastModified()).append('\n');
+    }
+
+    /**
+     * @return attempts and key, or null if there is no valid stamp
+     */
+    @Nullable
+    private static String[] readStamp(File stampFile) {
+        if (!stampFile.isFile()) return null;
+        try {
+            String content = new String(Files.readAllBytes(stampFile.toPath()), StandardCharsets.UTF_8);
+            int newline = content.indexOf('\n');
+            if (newline < 0) return null;
+            return new String[]{content.substring(0, newline), content.substring(newline + 1)};
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to read class data sharing stamp", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.zomdroid;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Read-only channel over a region of a file, e.g. an uncompressed asset inside the APK.
+ * Uses positional reads only, so the underlying channel can be shared
+ */
+class FileRegionChannel implements SeekableByteChannel {
+    private final FileChannel channel;
+    private final long start;
+    private final long length;
+    private long position = 0;
+    private boolean isOpen = true;
+
+    FileRegionChannel(@NonNull FileChannel channel, long start, long length) {
+        this.channel = channel;
+        this.start = start;
+        this.length = length;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (position >= length) return -1;
+        int limit = dst.limit();
+        if (dst.remaining() > length - position)
+            dst.limit(dst.position() + (int) (length - position));
+        try {
+            int bytesRead = channel.read(dst, start + position);
+            if (bytesRead > 0) position += bytesRead;
+            return bytesRead;
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        if (newPosition < 0) throw new IOException("Negative position " + newPosition);
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() {
+        return length;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return isOpen;
+    }
+
+    @Override
+    public void close() {
+        // underlying channel is owned by the caller
+        isOpen = false;
+    }
+}
@@ -0,0 +1,64 @@
+package com.zomdroid;
+
+import androidx.annotation.NonNull;
+
+import org.tukaani.xz.SeekableInputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Seekable view of a region of a file, e.g. an uncompressed asset inside the APK. Uses positional reads only,
+ * so multiple instances can share the same channel across threads
+ */
+class FileRegionInputStream extends SeekableInputStream {
+    private final FileChannel channel;
+    private final long start;
+    private final long length;
+    private long position = 0;
+
+    FileRegionInputStream(@NonNull FileChannel channel, long start, long length) {
+        this.channel = channel;
+        this.start = start;
+        this.length = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (position >= length) return -1;
+        int count = (int) Math.min(len, length - position);
+        int bytesRead = channel.read(ByteBuffer.wrap(b, off, count), start + position);
+        if (bytesRead <= 0) return -1;
+        position += bytesRead;
+        return bytesRead;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        if (pos < 0) throw new IOException("Negative seek position " + pos);
+        position = pos;
+    }
+
+    @Override
+    public void close() {
+        // channel is owned by the caller
+    }
+}
@@ -3,6 +3,8 @@ package com.zomdroid;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
@@ -10,48 +12,279 @@ import android.os.Environment;
 import android.provider.DocumentsContract;
 import android.provider.MediaStore;
 import android.provider.OpenableColumns;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarFile;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
 import org.apache.commons.io.IOUtils;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
 import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
 
 public class FileUtils {
+    private static final int EXTRACTION_THREAD_COUNT = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final int XZ_DECODER_THREAD_COUNT = Math.min(4, EXTRACTION_THREAD_COUNT);
+    private static final int PIPELINE_WRITER_COUNT = 2;
+    private static final int PIPELINE_BUFFER_COUNT = 16;
+    private static final int PIPELINE_BUFFER_SIZE = 512 * 1024;
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+    private static final long PREALLOCATION_THRESHOLD = 256 * 1024;
+    // reused across entries, allocating a big buffer for each of tens of thousands small files adds up
+    private static final ThreadLocal<byte[]> copyBuffer = ThreadLocal.withInitial(() -> new byte[COPY_BUFFER_SIZE]);
+
+    /**
+     * Extracts tar.xz bundle from assets. Bundles stored uncompressed in the APK are opened directly,
+     * which allows decoding multi-block XZ in parallel, otherwise falls back to plain streaming
+     */
+    static void extractTarXzAssetToDisk(@NonNull Context context, @NonNull String assetPath, @NonNull String destPath,
+                                        @Nullable Predicate<String> entryFilter,
+                                        TaskProgressListener taskProgressListener) throws IOException {
+        AssetFileDescriptor assetFd;
+        try {
+            assetFd = context.getAssets().openFd(assetPath);
+        } catch (FileNotFoundException e) {
+            assetFd = null; // asset is compressed
+        }
+
+        if (assetFd != null) {
+            try (AssetFileDescriptor fd = assetFd;
+                 FileInputStream apkInStream = fd.createInputStream();
+                 ParallelXZInputStream xzInStream = new ParallelXZInputStream(apkInStream.getChannel(),
+                         fd.getStartOffset(), fd.getLength(), XZ_DECODER_THREAD_COUNT)) {
+                extractTarToDiskPipelined(xzInStream, destPath, entryFilter, taskProgressListener,
+                        xzInStream.getUncompressedSize());
+            }
+            return;
+        }
+
+        try (InputStream assetInStream = context.getAssets().open(assetPath)) {
+            XZCompressorInputStream xzCompressorInStream = new XZCompressorInputStream(new BufferedInputStream(assetInStream, 1024 * 1024));
+            extractTarToDiskPipelined(xzCompressorInStream, destPath, entryFilter, taskProgressListener, 0);
+        }
+    }
 
     static void extractTarXzToDisk(@NonNull InputStream inStream, @NonNull String destPath,
                                    TaskProgressListener taskProgressListener, long tarXzSize) throws IOException {
-        XZCompressorInputStream xzCompressorInStream = new XZCompressorInputStream(inStream);
-        extractTarToDisk(xzCompressorInStream, destPath, taskProgressListener, tarXzSize);
-/*        TarArchiveInputStream tarArchiveInStream = new TarArchiveInputStream(xzCompressorInStream);
-        TarArchiveEntry entry;
-        while ((entry = tarArchiveInStream.getNextEntry()) != null) {
-            extractArchiveEntry(tarArchiveInStream, entry, destPath);
-        }*/
+        XZCompressorInputStream xzCompressorInStream = new XZCompressorInputStream(new BufferedInputStream(inStream, 1024 * 1024));
+        extractTarToDiskPipelined(xzCompressorInStream, destPath, null, taskProgressListener, tarXzSize);
+    }
+
+    /**
+     * Same as {@link #extractTarToDisk} but decouples reading the tar stream from writing files, calling thread
+     * only decodes entries into pooled buffers, while writer threads drain them to disk. Useful when the source
+     * stream is expensive to decode, like XZ, so decoding never waits for disk and vice versa.
+     * Files whose entry name is rejected by {@code entryFilter} are skipped, directories are always created
+     */
+    static void extractTarToDiskPipelined(@NonNull InputStream inStream, @NonNull String destPath,
+                                          @Nullable Predicate<String> entryFilter,
+                                          TaskProgressListener taskProgressListener, long tarSize) throws IOException {
+        TarArchiveInputStream tarArchiveInStream = new TarArchiveInputStream(new BufferedInputStream(inStream, 1024 * 1024));
+        TarPipelineWriter[] writers = new TarPipelineWriter[PIPELINE_WRITER_COUNT];
+        // total amount of buffers bounds memory used by the pipeline, decoding blocks once all of them are in flight
+        BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(PIPELINE_BUFFER_COUNT);
+        for (int i = 0; i < PIPELINE_BUFFER_COUNT; i++) {
+            freeBuffers.add(new byte[PIPELINE_BUFFER_SIZE]);
+        }
+        AtomicReference<IOException> writeError = new AtomicReference<>();
+        Set<String> knownDirectories = new HashSet<>();
+        ExecutorService executor = Executors.newFixedThreadPool(writers.length);
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new TarPipelineWriter(freeBuffers, writeError);
+            executor.execute(writers[i]);
+        }
+
+        try {
+            TarArchiveEntry entry;
+            int entryIndex = 0;
+            while ((entry = tarArchiveInStream.getNextEntry()) != null) {
+                if (!tarArchiveInStream.canReadEntryData(entry)) {
+                    throw new IOException("Failed to read archive entry " + entry.getName());
+                }
+                File file = new File(destPath + "/" + entry.getName());
+                if (entry.isDirectory()) {
+                    makeDirectories(file, knownDirectories);
+                } else if (entryFilter == null || entryFilter.test(entry.getName())) {
+                    File parent = file.getParentFile();
+                    if (parent != null) makeDirectories(parent, knownDirectories);
+                    // all chunks of a single file must go through the same writer to keep them in order
+                    TarPipelineWriter writer = writers[entryIndex++ % writers.length];
+                    boolean isLast;
+                    do {
+                        byte[] buffer = takeBuffer(freeBuffers, writeError);
+                        int length = IOUtils.read(tarArchiveInStream, buffer);
+                        isLast = length < buffer.length;
+                        writer.chunks.add(new TarPipelineChunk(file, entry.getSize(), buffer, length, isLast));
+                    } while (!isLast);
+                }
+                if (taskProgressListener != null) {
+                    int progress = -1;
+                    if (tarSize > 0)
+                        progress = (int) ((tarArchiveInStream.getBytesRead() / (float) tarSize) * 100);
+                    taskProgressListener.onProgressUpdate(null, progress, 100);
+                }
+            }
+        } finally {
+            for (TarPipelineWriter writer : writers) {
+                writer.chunks.add(TarPipelineChunk.END);
+            }
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS))
+                    throw new IOException("Timed out waiting for tar writers");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Tar extraction was interrupted", e);
+            }
+        }
+
+        if (writeError.get() != null) throw writeError.get();
+    }
+
+    private static byte[] takeBuffer(BlockingQueue<byte[]> freeBuffers, AtomicReference<IOException> writeError) throws IOException {
+        try {
+            byte[] buffer;
+            while ((buffer = freeBuffers.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                if (writeError.get() != null) throw writeError.get();
+            }
+            if (writeError.get() != null) throw writeError.get();
+            return buffer;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Tar extraction was interrupted", e);
+        }
+    }
+
+    private static class TarPipelineChunk {
+        static final TarPipelineChunk END = new TarPipelineChunk(null, 0, null, 0, true);
+        final File file;
+        final long fileSize;
+        final byte[] buffer;
+        final int length;
+        final boolean isLast;
+
+        TarPipelineChunk(File file, long fileSize, byte[] buffer, int length, boolean isLast) {
+            this.file = file;
+            this.fileSize = fileSize;
+            this.buffer = buffer;
+            this.length = length;
+            this.isLast = isLast;
+        }
+    }
+
+    private static class TarPipelineWriter implements Runnable {
+        final BlockingQueue<TarPipelineChunk> chunks = new LinkedBlockingQueue<>();
+        private final BlockingQueue<byte[]> freeBuffers;
+        private final AtomicReference<IOException> writeError;
+        private FileOutputStream fileOutStream;
+
+        TarPipelineWriter(BlockingQueue<byte[]> freeBuffers, AtomicReference<IOException> writeError) {
+            this.freeBuffers = freeBuffers;
+            this.writeError = writeError;
+        }
+
+        @Override
+        public void run() {
+            try {
+                TarPipelineChunk chunk;
+                while ((chunk = chunks.take()) != TarPipelineChunk.END) {
+                    // after a failure keep draining, so the decoding thread is never left waiting for buffers
+                    if (writeError.get() == null) {
+                        try {
+                            write(chunk);
+                        } catch (IOException e) {
+                            writeError.compareAndSet(null, e);
+                        }
+                    }
+                    freeBuffers.add(chunk.buffer);
+                }
+            } catch (InterruptedException e) {
+                writeError.compareAndSet(null, new IOException("Tar writer was interrupted", e));
+            } finally {
+                IOUtils.closeQuietly(fileOutStream);
+            }
+        }
+
+        private void write(TarPipelineChunk chunk) throws IOException {
+            if (fileOutStream == null) {
+                fileOutStream = new FileOutputStream(chunk.file);
+                preallocate(fileOutStream, chunk.fileSize);
+            }
+            fileOutStream.write(chunk.buffer, 0, chunk.length);
+            if (chunk.isLast) {
+                FileOutputStream out = fileOutStream;
+                fileOutStream = null;
+                out.close();
+            }
+        }
     }
 
     static void extractTarToDisk(@NonNull InputStream inStream, @NonNull String destPath,
                                  TaskProgressListener taskProgressListener, long tarSize) throws IOException {
+        extractTarToDisk(inStream, destPath, null, taskProgressListener, tarSize);
+    }
+
+    static void extractTarToDisk(@NonNull InputStream inStream, @NonNull String destPath,
+                                 @Nullable Predicate<String> entryFilter,
+                                 TaskProgressListener taskProgressListener, long tarSize) throws IOException {
         TarArchiveInputStream tarArchiveInStream = new TarArchiveInputStream(new BufferedInputStream(inStream, 1024 * 1024));
+        Set<String> knownDirectories = new HashSet<>();
         TarArchiveEntry entry;
         while ((entry = tarArchiveInStream.getNextEntry()) != null) {
-            extractArchiveEntry(tarArchiveInStream, entry, destPath);
+            if (entry.isDirectory() || entryFilter == null || entryFilter.test(entry.getName()))
+                extractArchiveEntry(tarArchiveInStream, entry, destPath, knownDirectories, null);
             if (taskProgressListener != null) {
                 int progress = -1;
                 if (tarSize > 0)
@@ -63,39 +296,344 @@ public class FileUtils {
 
     static void extractZipToDisk(@NonNull InputStream inStream, @NonNull String destPath,
                                  TaskProgressListener taskProgressListener, long zipSize) throws IOException {
+        extractZipToDisk(inStream, destPath, null, null, taskProgressListener, zipSize);
+    }
+
+    /**
+     * Entries recorded in {@code journal} are not written again, newly written entries are appended to it
+     */
+    static void extractZipToDisk(@NonNull InputStream inStream, @NonNull String destPath, @Nullable InstallJournal journal,
+                                 @Nullable InstallStats stats, TaskProgressListener taskProgressListener,
+                                 long zipSize) throws IOException {
+        if (stats != null) {
+            stats.setMode("streaming", 1);
+            inStream = new TimedInputStream(inStream, stats);
+        }
         ZipArchiveInputStream zipArchiveInStream = new ZipArchiveInputStream(new BufferedInputStream(inStream, 1024 * 1024));
+        Set<String> knownDirectories = new HashSet<>();
         ZipArchiveEntry entry;
         while ((entry = zipArchiveInStream.getNextEntry()) != null) {
-            extractArchiveEntry(zipArchiveInStream, entry, destPath);
+            // stream still has to be read past skipped entries, but nothing is written
+            if (journal == null || entry.isDirectory() || !journal.isCompleted(entry.getName(), entry.getSize(),
+                    entry.getCrc(), new File(destPath + "/" + entry.getName()))) {
+                extractArchiveEntry(zipArchiveInStream, entry, destPath, knownDirectories, stats);
+                // size and crc may only be known after the data descriptor has been read
+                if (journal != null && !entry.isDirectory())
+                    journal.markCompleted(entry.getName(), entry.getSize(), entry.getCrc());
+            } else if (stats != null) {
+                stats.filesSkipped.increment();
+            }
             if (taskProgressListener != null) {
                 int progress = -1;
                 if (zipSize > 0)
                     progress = (int) ((zipArchiveInStream.getBytesRead() / (float) zipSize) * 100);
+                if (stats != null) taskProgressListener.onInstallStatsUpdate(stats);
                 taskProgressListener.onProgressUpdate(null, progress, 100);
             }
         }
     }
 
-    static void extractArchiveEntry(ArchiveInputStream<?> archiveInStream, ArchiveEntry archiveEntry, String destPath) throws IOException {
+    /**
+     * Extracts zip entries concurrently. Requires a seekable channel, since every worker reads its entry
+     * with positional reads straight from the central directory offsets. Entries recorded in {@code journal}
+     * are skipped, newly written entries are appended to it
+     */
+    static void extractZipToDisk(@NonNull FileChannel zipChannel, @NonNull String destPath, @Nullable InstallJournal journal,
+                                 @Nullable InstallStats stats, TaskProgressListener taskProgressListener) throws IOException {
+        if (stats != null) stats.setMode("parallel", EXTRACTION_THREAD_COUNT);
+        try (ZipFile zipFile = ZipFile.builder().setSeekableByteChannel(zipChannel).get()) {
+            ArrayList<ZipArchiveEntry> fileEntries = new ArrayList<>();
+            Set<String> knownDirectories = ConcurrentHashMap.newKeySet();
+            long totalSize = 0;
+            long skippedSize = 0;
+            // create directories upfront so workers only have to deal with files
+            for (ZipArchiveEntry entry : Collections.list(zipFile.getEntriesInPhysicalOrder())) {
+                if (entry.isDirectory()) {
+                    makeDirectories(new File(destPath + "/" + entry.getName()), knownDirectories);
+                } else {
+                    if (!zipFile.canReadEntryData(entry)) {
+                        throw new IOException("Failed to read archive entry " + entry.getName());
+                    }
+                    totalSize += Math.max(entry.getCompressedSize(), 0);
+                    if (journal != null && journal.isCompleted(entry.getName(), entry.getSize(), entry.getCrc(),
+                            new File(destPath + "/" + entry.getName()))) {
+                        skippedSize += Math.max(entry.getCompressedSize(), 0);
+                        if (stats != null) stats.filesSkipped.increment();
+                        continue;
+                    }
+                    fileEntries.add(entry);
+                }
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(EXTRACTION_THREAD_COUNT);
+            try {
+                CompletionService<ZipArchiveEntry> completionService = new ExecutorCompletionService<>(executor);
+                for (ZipArchiveEntry entry : fileEntries) {
+                    completionService.submit(() -> {
+                        if (entry.getMethod() == ZipEntry.STORED && entry.getSize() >= 0) {
+                            // stored data is the file itself, let the kernel copy it
+                            transferArchiveEntry(zipChannel, getZipEntryDataOffset(zipChannel, entry), entry,
+                                    destPath, knownDirectories, stats);
+                        } else {
+                            try (InputStream entryInStream = zipFile.getInputStream(entry)) {
+                                extractArchiveEntry(entryInStream, entry, destPath, knownDirectories, stats);
+                            }
+                        }
+                        if (stats != null) stats.bytesRead.add(Math.max(entry.getCompressedSize(), 0));
+                        return entry;
+                    });
+                }
+
+                long extractedSize = skippedSize;
+                for (int i = 0; i < fileEntries.size(); i++) {
+                    ZipArchiveEntry entry = completionService.take().get();
+                    if (journal != null)
+                        journal.markCompleted(entry.getName(), entry.getSize(), entry.getCrc());
+                    extractedSize += Math.max(entry.getCompressedSize(), 0);
+                    if (taskProgressListener != null) {
+                        int progress = -1;
+                        if (totalSize > 0)
+                            progress = (int) ((extractedSize / (float) totalSize) * 100);
+                        if (stats != null) taskProgressListener.onInstallStatsUpdate(stats);
+                        taskProgressListener.onProgressUpdate(null, progress, 100);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Zip extraction was interrupted", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                throw new IOException(cause);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Uncompressed tar bundle from assets. If the asset is stored uncompressed in the APK, file contents are copied
+     * straight from the APK with {@link FileChannel#transferTo}, otherwise falls back to plain streaming
+     */
+    static void extractTarAssetToDisk(@NonNull Context context, @NonNull String assetPath, @NonNull String destPath,
+                                      @Nullable Predicate<String> entryFilter,
+                                      TaskProgressListener taskProgressListener) throws IOException {
+        AssetFileDescriptor assetFd;
+        try {
+            assetFd = context.getAssets().openFd(assetPath);
+        } catch (FileNotFoundException e) {
+            assetFd = null; // asset is compressed
+        }
+
+        if (assetFd == null) {
+            try (InputStream assetInStream = context.getAssets().open(assetPath)) {
+                extractTarToDisk(assetInStream, destPath, entryFilter, taskProgressListener, 0);
+            }
+            return;
+        }
+
+        try (AssetFileDescriptor fd = assetFd;
+             FileInputStream apkInStream = fd.createInputStream();
+             TarFile tarFile = new TarFile(new FileRegionChannel(apkInStream.getChannel(), fd.getStartOffset(), fd.getLength()))) {
+            FileChannel apkChannel = apkInStream.getChannel();
+            Set<String> knownDirectories = new HashSet<>();
+            long extractedSize = 0;
+            for (TarArchiveEntry entry : tarFile.getEntries()) {
+                if (entry.isDirectory()) {
+                    makeDirectories(new File(destPath + "/" + entry.getName()), knownDirectories);
+                } else if (entryFilter == null || entryFilter.test(entry.getName())) {
+                    if (entry.isFile() && !entry.isSparse()) {
+                        transferArchiveEntry(apkChannel, fd.getStartOffset() + entry.getDataOffset(), entry,
+                                destPath, knownDirectories, null);
+                    } else {
+                        try (InputStream entryInStream = tarFile.getInputStream(entry)) {
+                            extractArchiveEntry(entryInStream, entry, destPath, knownDirectories, null);
+                        }
+                    }
+                }
+                extractedSize += entry.getSize();
+                if (taskProgressListener != null) {
+                    taskProgressListener.onProgressUpdate(null, (int) ((extractedSize / (float) fd.getLength()) * 100), 100);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes entry whose data is stored as is at {@code dataOffset} of {@code srcChannel}, copying it in kernel
+     * without going through Java heap. Only positional reads are used, so source channel can be shared between threads
+     */
+    private static void transferArchiveEntry(FileChannel srcChannel, long dataOffset, ArchiveEntry archiveEntry,
+                                             String destPath, @Nullable Set<String> knownDirectories,
+                                             @Nullable InstallStats stats) throws IOException {
+        File file = new File(destPath + "/" + archiveEntry.getName());
+        File parent = file.getParentFile();
+        if (parent != null) makeDirectories(parent, knownDirectories);
+        // file may be a hardlink shared with other instances, never overwrite it in place
+        Files.deleteIfExists(file.toPath());
+        long startNanos = System.nanoTime();
+        try (FileOutputStream fileOutStream = new FileOutputStream(file)) {
+            long size = archiveEntry.getSize();
+            preallocate(fileOutStream, size);
+            FileChannel fileChannel = fileOutStream.getChannel();
+            long transferred = 0;
+            while (transferred < size) {
+                long count = srcChannel.transferTo(dataOffset + transferred, size - transferred, fileChannel);
+                if (count <= 0)
+                    throw new IOException("Unexpected end of archive while extracting " + archiveEntry.getName());
+                transferred += count;
+            }
+        }
+        if (stats != null) {
+            stats.writeNanos.add(System.nanoTime() - startNanos);
+            stats.bytesInflated.add(archiveEntry.getSize());
+            stats.bytesWritten.add(archiveEntry.getSize());
+            stats.filesWritten.increment();
+        }
+    }
+
+    /**
+     * Offset of entry data, right after its local file header. Computed from the header directly
+     * if zip file didn't resolve it
+     */
+    private static long getZipEntryDataOffset(FileChannel zipChannel, ZipArchiveEntry entry) throws IOException {
+        long dataOffset = entry.getDataOffset();
+        if (dataOffset >= 0) return dataOffset;
+        // local file header is 30 bytes followed by name and extra field, their lengths are at offset 26
+        ByteBuffer lengths = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        long lengthsOffset = entry.getLocalHeaderOffset() + 26;
+        while (lengths.hasRemaining()) {
+            if (zipChannel.read(lengths, lengthsOffset + lengths.position()) < 0)
+                throw new IOException("Truncated local file header of " + entry.getName());
+        }
+        return entry.getLocalHeaderOffset() + 30 + (lengths.getShort(0) & 0xFFFF) + (lengths.getShort(2) & 0xFFFF);
+    }
+
+    static void extractArchiveEntry(ArchiveInputStream<?> archiveInStream, ArchiveEntry archiveEntry, String destPath,
+                                    @Nullable Set<String> knownDirectories, @Nullable InstallStats stats) throws IOException {
         if (!archiveInStream.canReadEntryData(archiveEntry)) {
             throw new RuntimeException("Failed to read archive entry");
         }
+        extractArchiveEntry((InputStream) archiveInStream, archiveEntry, destPath, knownDirectories, stats);
+    }
+
+    /**
+     * @param knownDirectories directories already created during this extraction, shared between entries
+     *                         so parent directory isn't checked again for every file
+     */
+    static void extractArchiveEntry(InputStream entryInStream, ArchiveEntry archiveEntry, String destPath,
+                                    @Nullable Set<String> knownDirectories, @Nullable InstallStats stats) throws IOException {
         File file = new File(destPath + "/" + archiveEntry.getName());
         if (archiveEntry.isDirectory()) {
-            if (!file.isDirectory() && !file.mkdirs()) {
-                throw new IOException("Failed to create directory " + file);
-            }
+            makeDirectories(file, knownDirectories);
         } else {
             File parent = file.getParentFile();
-            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
-                throw new IOException("Failed to create directory " + parent);
-            }
-            try (OutputStream fileOutStream = new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024)) {
-                IOUtils.copy(archiveInStream, fileOutStream);
+            if (parent != null) makeDirectories(parent, knownDirectories);
+            // file may be a hardlink shared with other instances, never overwrite it in place
+            Files.deleteIfExists(file.toPath());
+            try (FileOutputStream fileOutStream = new FileOutputStream(file)) {
+                long size = archiveEntry.getSize();
+                boolean isPreallocated = preallocate(fileOutStream, size);
+                long written = stats == null ? copy(entryInStream, fileOutStream, copyBuffer.get())
+                        : copyTimed(entryInStream, fileOutStream, copyBuffer.get(), stats);
+                // preallocation extends the file, don't leave zeroes behind if the entry lied about its size
+                if (isPreallocated && written < size)
+                    fileOutStream.getChannel().truncate(written);
             }
+            if (stats != null) stats.filesWritten.increment();
+        }
+    }
+
+    /**
+     * Fills the buffer before every write. Inflating streams return a few kilobytes per read, writing each of them
+     * straight to an unbuffered file would cost a syscall per chunk, this way small files take a single write
+     */
+    private static long copy(InputStream inStream, OutputStream outStream, byte[] buffer) throws IOException {
+        long total = 0;
+        while (true) {
+            int bytesRead = IOUtils.read(inStream, buffer);
+            if (bytesRead > 0) outStream.write(buffer, 0, bytesRead);
+            total += bytesRead;
+            if (bytesRead < buffer.length) return total;
+        }
+    }
+
+    private static long copyTimed(InputStream inStream, OutputStream outStream, byte[] buffer,
+                                  @NonNull InstallStats stats) throws IOException {
+        long total = 0;
+        while (true) {
+            long readStartNanos = System.nanoTime();
+            int bytesRead = IOUtils.read(inStream, buffer);
+            long writeStartNanos = System.nanoTime();
+            stats.inflateNanos.add(writeStartNanos - readStartNanos);
+            if (bytesRead == 0) return total;
+            outStream.write(buffer, 0, bytesRead);
+            stats.writeNanos.add(System.nanoTime() - writeStartNanos);
+            stats.bytesInflated.add(bytesRead);
+            stats.bytesWritten.add(bytesRead);
+            total += bytesRead;
+            if (bytesRead < buffer.length) return total;
+        }
+    }
+
+    /**
+     * Counts bytes read from the archive source and time spent blocked on it
+     */
+    private static class TimedInputStream extends FilterInputStream {
+        private final InstallStats stats;
+
+        TimedInputStream(InputStream inStream, InstallStats stats) {
+            super(inStream);
+            this.stats = stats;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long startNanos = System.nanoTime();
+            int b = super.read();
+            stats.sourceReadNanos.add(System.nanoTime() - startNanos);
+            if (b != -1) stats.bytesRead.increment();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long startNanos = System.nanoTime();
+            int bytesRead = super.read(b, off, len);
+            stats.sourceReadNanos.add(System.nanoTime() - startNanos);
+            if (bytesRead > 0) stats.bytesRead.add(bytesRead);
+            return bytesRead;
         }
     }
 
+    /**
+     * Reserves space for a file of known size upfront, so the filesystem can allocate it in one go
+     * instead of growing it with every write. Only a hint, failures are ignored
+     */
+    private static boolean preallocate(FileOutputStream fileOutStream, long size) {
+        if (size < PREALLOCATION_THRESHOLD) return false;
+        try {
+            Os.posix_fallocate(fileOutStream.getFD(), 0, size);
+            return true;
+        } catch (ErrnoException | IOException e) {
+            return false;
+        }
+    }
+
+    private static void makeDirectories(File directory) throws IOException {
+        makeDirectories(directory, null);
+    }
+
+    private static void makeDirectories(File directory, @Nullable Set<String> knownDirectories) throws IOException {
+        String path = directory.getPath();
+        if (knownDirectories != null && knownDirectories.contains(path)) return;
+        // directory may be created concurrently by another worker, so recheck if mkdirs fails
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Failed to create directory " + directory);
+        }
+        if (knownDirectories != null) knownDirectories.add(path);
+    }
+
     public static long queryFileSize(ContentResolver contentResolver, Uri uri) {
         try (Cursor cursor = contentResolver.query(uri, null, null, null, null)) {
             if (cursor == null)
@@ -129,6 +667,226 @@ public class FileUtils {
         }
     }
 
+    /**
+     * Recreates directory tree of {@code srcDir} in {@code destDir} with every regular file hardlinked instead of copied,
+     * symlinks are recreated as is. Files are shared with the source, so they must be replaced rather than
+     * modified in place afterwards
+     */
+    static void linkDirectory(@NonNull File srcDir, @NonNull File destDir, TaskProgressListener taskProgressListener) throws IOException {
+        ArrayList<File> srcFiles = new ArrayList<>();
+        collectFiles(srcDir, srcFiles);
+        String srcRoot = srcDir.getAbsolutePath();
+        String destRoot = destDir.getAbsolutePath();
+        makeDirectories(destDir);
+        for (int i = 0; i < srcFiles.size(); i++) {
+            File srcFile = srcFiles.get(i);
+            String destPath = destRoot + srcFile.getAbsolutePath().substring(srcRoot.length());
+            try {
+                StructStat stat = Os.lstat(srcFile.getPath());
+                if (OsConstants.S_ISDIR(stat.st_mode)) {
+                    makeDirectories(new File(destPath));
+                } else if (OsConstants.S_ISLNK(stat.st_mode)) {
+                    Os.symlink(Os.readlink(srcFile.getPath()), destPath);
+                } else {
+                    Os.link(srcFile.getPath(), destPath);
+                }
+            } catch (ErrnoException e) {
+                throw new IOException("Failed to link " + srcFile.getAbsolutePath(), e);
+            }
+            if (taskProgressListener != null)
+                taskProgressListener.onProgressUpdate(null, i + 1, srcFiles.size());
+        }
+    }
+
+    /**
+     * Collects files and directories in pre-order, parents always come before their children. Symlinks are not followed
+     */
+    private static void collectFiles(File directory, ArrayList<File> files) {
+        File[] children = directory.listFiles();
+        if (children == null) return;
+        for (File child : children) {
+            files.add(child);
+            if (child.isDirectory() && !Files.isSymbolicLink(child.toPath()))
+                collectFiles(child, files);
+        }
+    }
+
+    /**
+     * Deletes directory tree on a fork/join pool, every subdirectory is a separate task while files of a directory
+     * are deleted in one batch by the task that listed them. Symlinks are deleted, never followed.
+     * {@code progressConsumer} periodically receives amount of deleted entries on the calling thread
+     */
+    static void deleteDirectoryParallel(@NonNull File directory, @Nullable LongConsumer progressConsumer) throws IOException {
+        AtomicLong deletedCount = new AtomicLong();
+        ForkJoinPool pool = new ForkJoinPool(EXTRACTION_THREAD_COUNT);
+        try {
+            ForkJoinTask<Void> task = pool.submit(new DeleteDirectoryTask(directory, deletedCount));
+            while (true) {
+                try {
+                    task.get(500, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    if (progressConsumer != null) progressConsumer.accept(deletedCount.get());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Directory deletion was interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+            throw new IOException(cause);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static class DeleteDirectoryTask extends RecursiveAction {
+        private final File directory;
+        private final AtomicLong deletedCount;
+
+        DeleteDirectoryTask(File directory, AtomicLong deletedCount) {
+            this.directory = directory;
+            this.deletedCount = deletedCount;
+        }
+
+        @Override
+        protected void compute() {
+            File[] children = directory.listFiles();
+            if (children != null) {
+                ArrayList<DeleteDirectoryTask> subtasks = new ArrayList<>();
+                for (File child : children) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(child.toPath(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    if (attributes.isDirectory()) {
+                        subtasks.add(new DeleteDirectoryTask(child, deletedCount));
+                    } else {
+                        delete(child);
+                    }
+                }
+                invokeAll(subtasks);
+            }
+            delete(directory);
+        }
+
+        private void delete(File file) {
+            if (!file.delete() && Files.exists(file.toPath(), LinkOption.NOFOLLOW_LINKS))
+                throw new UncheckedIOException(new IOException("Failed to delete " + file.getAbsolutePath()));
+            deletedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Flushes every file and directory of the tree to storage. Extraction never syncs individual files,
+     * so this single pass is the durability barrier for the whole tree. Regular files are synced first, then
+     * directories level by level from the deepest one up, so a directory entry is only made durable after what it
+     * points to. Each batch runs in parallel since each fsync mostly waits for the device, which lets it merge the flushes
+     */
+    static void syncDirectory(@NonNull File directory, TaskProgressListener taskProgressListener) throws IOException {
+        ArrayList<File> regularFiles = new ArrayList<>();
+        ArrayList<ArrayList<File>> directoriesByDepth = new ArrayList<>();
+        collectSyncTargets(directory, 0, regularFiles, directoriesByDepth);
+        int total = regularFiles.size();
+        for (ArrayList<File> directories : directoriesByDepth) total += directories.size();
+
+        ExecutorService executor = Executors.newFixedThreadPool(EXTRACTION_THREAD_COUNT);
+        try {
+            int synced = fsyncAll(executor, regularFiles, 0, total, taskProgressListener);
+            for (int depth = directoriesByDepth.size() - 1; depth >= 0; depth--) {
+                synced = fsyncAll(executor, directoriesByDepth.get(depth), synced, total, taskProgressListener);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Symlinks are skipped, they are neither synced nor followed
+     */
+    private static void collectSyncTargets(File directory, int depth, ArrayList<File> regularFiles,
+                                           ArrayList<ArrayList<File>> directoriesByDepth) {
+        if (directoriesByDepth.size() == depth) directoriesByDepth.add(new ArrayList<>());
+        directoriesByDepth.get(depth).add(directory);
+        File[] children = directory.listFiles();
+        if (children == null) return;
+        for (File child : children) {
+            if (Files.isSymbolicLink(child.toPath())) continue;
+            if (child.isDirectory())
+                collectSyncTargets(child, depth + 1, regularFiles, directoriesByDepth);
+            else
+                regularFiles.add(child);
+        }
+    }
+
+    /**
+     * Returns amount of synced files so far, including {@code synced} from the previous batches
+     */
+    private static int fsyncAll(ExecutorService executor, ArrayList<File> files, int synced, int total,
+                                TaskProgressListener taskProgressListener) throws IOException {
+        CompletionService<File> completionService = new ExecutorCompletionService<>(executor);
+        for (File file : files) {
+            completionService.submit(() -> {
+                fsync(file);
+                return file;
+            });
+        }
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                completionService.take().get();
+                synced++;
+                if (taskProgressListener != null)
+                    taskProgressListener.onProgressUpdate(null, synced, total);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Sync was interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        }
+        return synced;
+    }
+
+    /**
+     * Replaces file with new content so that it's either fully old or fully new after a crash or power loss
+     */
+    static void writeFileAtomically(@NonNull File file, @NonNull byte[] content) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileOutStream = new FileOutputStream(tmpFile)) {
+            fileOutStream.write(content);
+            fileOutStream.getFD().sync();
+        }
+        try {
+            Os.rename(tmpFile.getPath(), file.getPath());
+        } catch (ErrnoException e) {
+            throw new IOException("Failed to rename " + tmpFile + " to " + file, e);
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) fsync(parent);
+    }
+
+    static void fsync(@NonNull File file) throws IOException {
+        FileDescriptor fd = null;
+        try {
+            fd = Os.open(file.getPath(), OsConstants.O_RDONLY | OsConstants.O_CLOEXEC, 0);
+            Os.fsync(fd);
+        } catch (ErrnoException e) {
+            throw new IOException("Failed to sync " + file, e);
+        } finally {
+            if (fd != null) {
+                try {
+                    Os.close(fd);
+                } catch (ErrnoException ignored) {
+                }
+            }
+        }
+    }
+
     public static boolean deleteDirectory(File directory) {
         if (directory.exists()) {
             File[] files = directory.listFiles();
@@ -157,6 +915,31 @@ public class FileUtils {
         return crc32.getValue();
     }
 
+    /**
+     * Cheap identity of an asset: APK path, APK update time and asset length. Assets can't change without
+     * changing one of these, so a matching fingerprint means a previously computed hash is still valid
+     */
+    public static String getAssetFingerprint(@NonNull Context context, @NonNull String assetPath) throws IOException {
+        long lastUpdateTime;
+        try {
+            lastUpdateTime = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            throw new IOException(e);
+        }
+
+        long assetLength;
+        try (AssetFileDescriptor assetFd = context.getAssets().openFd(assetPath)) {
+            assetLength = assetFd.getLength();
+        } catch (FileNotFoundException e) {
+            // compressed asset, available() reports its uncompressed length without reading it
+            try (InputStream assetInStream = context.getAssets().open(assetPath)) {
+                assetLength = assetInStream.available();
+            }
+        }
+
+        return context.getApplicationInfo().sourceDir + ":" + lastUpdateTime + ":" + assetLength;
+    }
+
     public static boolean isValidFilenameStrict(String filename) {
         if (filename == null || filename.trim().isEmpty()) return false;
 
@@ -34,10 +34,14 @@ import com.zomdroid.game.GameInstanceManager;
 
 import org.fmod.FMOD;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
 public class GameActivity extends AppCompatActivity
         implements GamepadManager.GamepadListener, KeyboardManager.KeyboardListener {
 
     public static final String EXTRA_GAME_INSTANCE_NAME = "com.zomdroid.GameActivity.EXTRA_GAME_INSTANCE_NAME";
+    public static final String EXTRA_LAUNCH_REQUESTED_NS = "com.zomdroid.GameActivity.EXTRA_LAUNCH_REQUESTED_NS";
     private static final String LOG_TAG = GameActivity.class.getName();
 
     private ActivityGameBinding binding;
@@ -60,6 +64,10 @@ public class GameActivity extends AppCompatActivity
     @SuppressLint({"UnsafeDynamicallyLoadedCode", "ClickableViewAccessibility"})
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        long onCreateStartNs = StartupTracer.now();
+        long launchRequestedNs = getIntent().getLongExtra(EXTRA_LAUNCH_REQUESTED_NS, 0);
+        if (launchRequestedNs > 0)
+            StartupTracer.span("launcher to GameActivity", launchRequestedNs, onCreateStartNs);
         super.onCreate(savedInstanceState);
 
         binding = ActivityGameBinding.inflate(getLayoutInflater());
@@ -110,12 +118,21 @@ public class GameActivity extends AppCompatActivity
         if (gameInstance == null)
             throw new RuntimeException("Game instance with name " + gameInstanceName + " not found");
 
+        long startNs = StartupTracer.now();
         System.loadLibrary("zomdroid");
+        StartupTracer.span("System.loadLibrary(zomdroid)", startNs, StartupTracer.now());
+        StartupTracer.onNativeLoaded();
+
+        Future<LaunchCommand> launchCommand = GameLauncher.preload(gameInstance);
 
+        startNs = StartupTracer.now();
         System.load(AppStorage.requireSingleton().getHomePath() + "/" + gameInstance.getFmodLibraryPath() + "/libfmod.so");
         System.load(AppStorage.requireSingleton().getHomePath() + "/" + gameInstance.getFmodLibraryPath() + "/libfmodstudio.so");
+        StartupTracer.span("load FMOD libraries", startNs, StartupTracer.now());
 
+        startNs = StartupTracer.now();
         FMOD.init(this);
+        StartupTracer.span("FMOD.init", startNs, StartupTracer.now());
 
         getOnBackPressedDispatcher().addCallback(this, new OnBackPressedCallback(true) {
             @Override
@@ -150,8 +167,8 @@ public class GameActivity extends AppCompatActivity
                 if (!isGameStarted) {
                     gameThread = new Thread(() -> {
                         try {
-                            GameLauncher.launch(gameInstance);
-                        } catch (ErrnoException e) {
+                            GameLauncher.launch(gameInstance, launchCommand.get());
+                        } catch (ErrnoException | ExecutionException | InterruptedException e) {
                             throw new RuntimeException(e);
                         }
                     });
@@ -236,6 +253,8 @@ public class GameActivity extends AppCompatActivity
                 return false;
             }
         });
+
+        StartupTracer.span("GameActivity.onCreate", onCreateStartNs, StartupTracer.now());
     }
 
     @Override
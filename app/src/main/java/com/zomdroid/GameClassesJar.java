@@ -0,0 +1,85 @@
+package com.zomdroid;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.zomdroid.game.GameInstance;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Game classes ship as loose files in the game directory, which is on the classpath as ".". HotSpot can't dump
+ * a class data sharing archive with a non-empty directory on the classpath, so the classes are packed into a jar
+ * that takes the place of "." (see {@link GameInstance#getClassPathFiles}). Resources next to classes are packed
+ * too, everything else stays where it is since the game reads it from the working directory
+ */
+class GameClassesJar {
+    private static final String LOG_TAG = GameClassesJar.class.getName();
+
+    /**
+     * Packs classes of the game directory into {@link GameInstance#getGameClassesJarPath}, replacing the old jar
+     */
+    static void pack(@NonNull GameInstance gameInstance) throws IOException {
+        long startMs = System.currentTimeMillis();
+        Path gameDir = new File(gameInstance.getGamePath()).toPath();
+        ArrayList<Path> files = new ArrayList<>();
+        collectFiles(gameDir, gameDir, files);
+        // same files give the same jar, entry order follows listing order otherwise
+        Collections.sort(files);
+
+        File jarFile = new File(gameInstance.getGameClassesJarPath());
+        File tmpFile = new File(jarFile.getPath() + ".tmp");
+        try (ZipOutputStream zipOutStream = new ZipOutputStream(new FileOutputStream(tmpFile))) {
+            // written once, read on every launch that has no archive yet, speed matters more than size
+            zipOutStream.setLevel(Deflater.BEST_SPEED);
+            for (Path file : files) {
+                ZipEntry entry = new ZipEntry(gameDir.relativize(file).toString().replace(File.separatorChar, '/'));
+                entry.setTime(Files.getLastModifiedTime(file).toMillis());
+                zipOutStream.putNextEntry(entry);
+                Files.copy(file, zipOutStream);
+                zipOutStream.closeEntry();
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tmpFile.toPath());
+            throw e;
+        }
+        Files.move(tmpFile.toPath(), jarFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Log.i(LOG_TAG, "Packed " + files.size() + " game class files into " + jarFile.getAbsolutePath() + " in "
+                + (System.currentTimeMillis() - startMs) + " ms");
+    }
+
+    /**
+     * Adds every file of a directory that holds classes, only class files of the game directory itself,
+     * since it also holds jars and native libraries
+     */
+    private static void collectFiles(Path gameDir, Path dir, ArrayList<Path> files) throws IOException {
+        File[] children = dir.toFile().listFiles();
+        if (children == null) throw new IOException("Failed to list " + dir);
+        boolean hasClasses = false;
+        for (File child : children) {
+            if (child.isFile() && child.getName().endsWith(".class")) {
+                hasClasses = true;
+                break;
+            }
+        }
+        for (File child : children) {
+            if (Files.isSymbolicLink(child.toPath())) continue;
+            if (child.isDirectory()) {
+                collectFiles(gameDir, child.toPath(), files);
+            } else if (child.isFile() && hasClasses && (!dir.equals(gameDir) || child.getName().endsWith(".class"))) {
+                files.add(child.toPath());
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.zomdroid;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Content-addressed store that keeps identical game files of different instances only once. Every distinct file
+ * is stored as store/xx/sha256 and instances reference it through hardlinks, so the link count of a blob is its
+ * reference count, blob with a single link is used by no instance and can be removed.
+ * Files in the game directory must never be modified in place, since the change would be visible to every instance,
+ * writers have to delete the file first or {@link #unshare} it to break the link
+ */
+class GameFileStore {
+    private static final String STORE_DIR_NAME = "store";
+    private static final String LINK_TMP_SUFFIX = ".zdlink";
+    private static final int HASHING_THREAD_COUNT = Math.max(2, Runtime.getRuntime().availableProcessors());
+    /** Held while a blob gains a link or is deleted for having none, so garbage collection can run during installs */
+    private static final Object linkLock = new Object();
+    private static final ThreadLocal<ByteBuffer> hashBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocate(1024 * 1024));
+
+    @NonNull
+    static String getStorePath() {
+        return AppStorage.requireSingleton().getHomePath() + "/" + STORE_DIR_NAME;
+    }
+
+    /**
+     * Replaces regular files of the directory with hardlinks to store blobs, files that are not in the store yet
+     * become new blobs. Files that already have more than one link are assumed to be in the store
+     */
+    static void ingestDirectory(@NonNull File directory, TaskProgressListener taskProgressListener) throws IOException {
+        ArrayList<File> files = new ArrayList<>();
+        collectRegularFiles(directory, files);
+
+        ExecutorService executor = Executors.newFixedThreadPool(HASHING_THREAD_COUNT);
+        try {
+            CompletionService<File> completionService = new ExecutorCompletionService<>(executor);
+            for (File file : files) {
+                completionService.submit(() -> {
+                    ingestFile(file);
+                    return file;
+                });
+            }
+            for (int i = 0; i < files.size(); i++) {
+                completionService.take().get();
+                if (taskProgressListener != null)
+                    taskProgressListener.onProgressUpdate(null, i + 1, files.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Game file deduplication was interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Gives a file its own copy of the content if it is linked to a blob, so it can be modified in place
+     * without the change showing up in other instances
+     */
+    static void unshare(@NonNull File file) throws IOException {
+        try {
+            StructStat stat;
+            try {
+                stat = Os.lstat(file.getPath());
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.ENOENT) return;
+                throw e;
+            }
+            if (!OsConstants.S_ISREG(stat.st_mode) || stat.st_nlink <= 1) return;
+            File copy = new File(file.getPath() + LINK_TMP_SUFFIX);
+            Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.COPY_ATTRIBUTES);
+            Os.rename(copy.getPath(), file.getPath());
+        } catch (ErrnoException e) {
+            throw new IOException("Failed to unshare " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Removes blobs that are no longer referenced by any instance
+     */
+    static void collectGarbage() throws IOException {
+        File[] buckets = new File(getStorePath()).listFiles();
+        if (buckets == null) return;
+        for (File bucket : buckets) {
+            File[] blobs = bucket.listFiles();
+            if (blobs == null) continue;
+            for (File blob : blobs) {
+                synchronized (linkLock) {
+                    try {
+                        if (Os.lstat(blob.getPath()).st_nlink <= 1 && !blob.delete())
+                            throw new IOException("Failed to delete " + blob.getAbsolutePath());
+                    } catch (ErrnoException e) {
+                        if (e.errno != OsConstants.ENOENT) throw new IOException(e);
+                    }
+                }
+            }
+            synchronized (linkLock) {
+                String[] left = bucket.list();
+                if (left != null && left.length == 0)
+                    bucket.delete();
+            }
+        }
+    }
+
+    private static void collectRegularFiles(File directory, ArrayList<File> files) throws IOException {
+        File[] children = directory.listFiles();
+        if (children == null) return;
+        for (File child : children) {
+            StructStat stat;
+            try {
+                stat = Os.lstat(child.getPath());
+            } catch (ErrnoException e) {
+                throw new IOException(e);
+            }
+            if (OsConstants.S_ISDIR(stat.st_mode)) {
+                collectRegularFiles(child, files);
+            } else if (OsConstants.S_ISREG(stat.st_mode) && stat.st_nlink == 1 && stat.st_size > 0
+                    && !child.getName().endsWith(LINK_TMP_SUFFIX)) {
+                files.add(child);
+            }
+        }
+    }
+
+    private static void ingestFile(File file) throws IOException {
+        String hash = sha256(file);
+        File bucket = new File(getStorePath() + "/" + hash.substring(0, 2));
+        String blobPath = bucket.getPath() + "/" + hash;
+        try {
+            synchronized (linkLock) {
+                if (!bucket.mkdirs() && !bucket.isDirectory())
+                    throw new IOException("Failed to create directory " + bucket.getAbsolutePath());
+                try {
+                    Os.link(file.getPath(), blobPath);
+                    return; // first copy of this content, file itself becomes the blob
+                } catch (ErrnoException e) {
+                    if (e.errno != OsConstants.EEXIST) throw e;
+                }
+            }
+            String tmpPath = file.getPath() + LINK_TMP_SUFFIX;
+            boolean isBlobIntact = isBlobIntact(blobPath, hash, file.length());
+            synchronized (linkLock) {
+                if (isBlobIntact) {
+                    try {
+                        // same content is already stored, swap the file for a link to the blob atomically
+                        replaceLink(blobPath, tmpPath, file.getPath());
+                        return;
+                    } catch (ErrnoException e) {
+                        // garbage collected since it was checked, the file becomes the blob instead
+                        if (e.errno != OsConstants.ENOENT) throw e;
+                    }
+                }
+                // blob was damaged after it was stored, the file takes its place so nothing links to it anymore
+                if (!bucket.mkdirs() && !bucket.isDirectory())
+                    throw new IOException("Failed to create directory " + bucket.getAbsolutePath());
+                replaceLink(file.getPath(), tmpPath, blobPath);
+            }
+        } catch (ErrnoException e) {
+            throw new IOException("Failed to link " + file.getAbsolutePath() + " to store", e);
+        }
+    }
+
+    /**
+     * Atomically replaces dest with a hardlink to source
+     */
+    private static void replaceLink(String source, String tmpPath, String dest) throws ErrnoException {
+        try {
+            Os.remove(tmpPath);
+        } catch (ErrnoException e) {
+            if (e.errno != OsConstants.ENOENT) throw e;
+        }
+        Os.link(source, tmpPath);
+        Os.rename(tmpPath, dest);
+    }
+
+    private static boolean isBlobIntact(String blobPath, String hash, long size) throws IOException {
+        File blob = new File(blobPath);
+        return blob.length() == size && sha256(blob).equals(hash);
+    }
+
+    /**
+     * Takes damaged files out of the store. Blobs sharing an inode with any of the files are deleted, so the next
+     * install stores fresh copies instead of linking good files to broken content. Links of other instances
+     * are left alone, their own verification will find them
+     */
+    static void removeBlobsOf(@NonNull Collection<File> files) throws IOException {
+        HashSet<Long> inodes = new HashSet<>();
+        for (File file : files) {
+            try {
+                StructStat stat = Os.lstat(file.getPath());
+                if (stat.st_nlink > 1) inodes.add(stat.st_ino);
+            } catch (ErrnoException e) {
+                if (e.errno != OsConstants.ENOENT) throw new IOException(e);
+            }
+        }
+        if (inodes.isEmpty()) return;
+
+        File[] buckets = new File(getStorePath()).listFiles();
+        if (buckets == null) return;
+        for (File bucket : buckets) {
+            File[] blobs = bucket.listFiles();
+            if (blobs == null) continue;
+            for (File blob : blobs) {
+                try {
+                    if (inodes.contains(Os.lstat(blob.getPath()).st_ino) && !blob.delete())
+                        throw new IOException("Failed to delete " + blob.getAbsolutePath());
+                } catch (ErrnoException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+    }
+
+    private static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        ByteBuffer buffer = hashBuffer.get();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer.clear();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
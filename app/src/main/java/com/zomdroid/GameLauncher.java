@@ -9,118 +9,127 @@ import com.zomdroid.input.InputNativeInterface;
 import com.zomdroid.game.GameInstance;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 public class GameLauncher {
     private static final String LOG_TAG = GameLauncher.class.getName();
 
-    public static void launch(GameInstance gameInstance) throws ErrnoException {
+    public static void launch(GameInstance gameInstance, LaunchCommand command) throws ErrnoException {
+        long startNs = StartupTracer.now();
         LauncherPreferences prefs = LauncherPreferences.requireSingleton();
 
-        Os.setenv("LIBGL_MIPMAP", "1", false);
+        LinkedHashMap<String, String> envVars = new LinkedHashMap<>(command.envVars);
+        envVars.putIfAbsent("ZOMDROID_GAME_BUILD", getGameBuildId(gameInstance));
 
-        Os.setenv("BOX64_LOG", "1", false);
-        Os.setenv("BOX64_SHOWBT", "1", false);
-
-        Os.setenv("BOX64_LD_LIBRARY_PATH", gameInstance.getLdLibraryPathForEmulation(), false);
+        for (Map.Entry<String, String> env : envVars.entrySet()) {
+            Os.setenv(env.getKey(), env.getValue(), true);
+            Log.d(LOG_TAG, "Env: " + env.getKey() + "=" + env.getValue());
+        }
 
-        Os.setenv("GALLIUM_DRIVER", "zink", false);
+        initZomdroidWindow();
+        InputNativeInterface.sendJoystickConnected();
 
-        Os.setenv("ZOMDROID_CACHE_DIR", AppStorage.requireSingleton().getCachePath(), false);
-        Os.setenv("ZOMDROID_RENDERER", prefs.getRenderer().name(), false);
+        ArrayList<String> jvmArgs = new ArrayList<>(command.jvmArgs);
 
-        switch (prefs.getRenderer()) {
-            case ZINK_ZFA:
-            case ZINK_OSMESA:
-                String vulkanDriverName = prefs.getVulkanDriver().libName;
-                if (vulkanDriverName != null) {
-                    Os.setenv("ZOMDROID_VULKAN_DRIVER_NAME", vulkanDriverName, false);
-                }
-                Os.setenv("ZOMDROID_GLES_MAJOR", "3", false);
-                Os.setenv("ZOMDROID_GLES_MINOR", "1", false);
-                break;
-            default:
-                Os.setenv("ZOMDROID_GLES_MAJOR", "2", false);
-                Os.setenv("ZOMDROID_GLES_MINOR", "1", false);
-                break;
+        if (prefs.isJvmAutoSizingEnabled()) {
+            jvmArgs.addAll(JvmAutoSizing.computeJvmArgs(gameInstance, command.renderer, jvmArgs));
         }
 
-        Os.setenv("ZOMDROID_AUDIO_API", prefs.getAudioAPI().name(), false);
-
-        if (prefs.isDebug()) {
-            Os.setenv("BOX64_LOG", "3", true);
-            Os.setenv("MESA_DEBUG", "1", false);
-        }
+        ClassDataSharing.addJvmArgs(gameInstance, command.jreFolder, jvmArgs);
+        StartupTracer.span("GameLauncher.launch", startNs, StartupTracer.now());
+        GameLauncher.startGame(gameInstance.getGamePath(), command.ldLibraryPath, jvmArgs.toArray(new String[0]),
+                gameInstance.getMainClassName(), command.args.toArray(new String[0]));
+    }
 
-        // Apply user-defined environment variables
-        String userEnvVars = prefs.getEnvVars();
-        if (userEnvVars != null && !userEnvVars.isEmpty()) {
-            for (String line : userEnvVars.split("\n")) {
-                line = line.trim();
-                int eq = line.indexOf('=');
-                if (eq > 0) {
-                    String key = line.substring(0, eq).trim();
-                    String val = line.substring(eq + 1).trim();
-                    if (!key.isEmpty()) {
-                        Os.setenv(key, val, true);
-                        Log.d(LOG_TAG, "User env: " + key + "=" + val);
-                    }
+    /**
+     * Resolves the launch command and warms page cache for libraries loaded on the game thread later, so cold storage
+     * reads overlap with activity startup instead of stalling JVM creation and emulated library loading. Both run on a
+     * background thread, returns right away with the command to pass to {@link #launch}
+     */
+    public static Future<LaunchCommand> preload(GameInstance gameInstance) {
+        FutureTask<LaunchCommand> task = new FutureTask<>(() -> {
+            long startNs = StartupTracer.now();
+            // instances installed before game classes were packed get their jar on the next launch
+            if (!gameInstance.hasGameClassesJar()) {
+                try {
+                    GameClassesJar.pack(gameInstance);
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Failed to pack game classes", e);
                 }
             }
-        }
-
-        initZomdroidWindow();
-        InputNativeInterface.sendJoystickConnected();
-
-        ArrayList<String> jvmArgs = gameInstance.getJvmArgsAsList();
+            LaunchCommand command = LaunchCommand.resolve(gameInstance, LauncherPreferences.requireSingleton());
+            preloadLibraries(collectPreloadPaths(gameInstance, command));
+            StartupTracer.span("GameLauncher.preload", startNs, StartupTracer.now());
+            return command;
+        });
+        new Thread(task, "zomdroid-preload").start();
+        return task;
+    }
 
-        // Apply user-defined JVM arguments
-        String userJvmArgs = prefs.getJvmArgs();
-        if (userJvmArgs != null && !userJvmArgs.isEmpty()) {
-            for (String arg : userJvmArgs.split("\n")) {
-                arg = arg.trim();
-                if (!arg.isEmpty()) {
-                    jvmArgs.add(arg);
-                }
+    private static String[] collectPreloadPaths(GameInstance gameInstance, LaunchCommand command) {
+        ArrayList<String> paths = new ArrayList<>();
+
+        // libjvm goes first, it is needed earliest
+        addFiles(paths, new File(command.jreFolder + "/lib/server"), ".so");
+        paths.add(command.jreFolder + "/lib/modules");
+        addFiles(paths, new File(command.jreFolder + "/lib"), ".so");
+
+        String vulkanDriverName = command.envVars.get("ZOMDROID_VULKAN_DRIVER_NAME");
+        for (String dir : command.ldLibraryPath.split(":")) {
+            if (dir.startsWith("/system/")) continue;
+            for (String name : new String[]{command.renderer.libName, vulkanDriverName}) {
+                if (name == null) continue;
+                File file = new File(dir, name);
+                if (file.isFile()) paths.add(file.getPath());
             }
         }
 
-        jvmArgs.add("-Dorg.lwjgl.opengl.libname=" + prefs.getRenderer().libName);
-        jvmArgs.add("-Dzomdroid.renderer=" + prefs.getRenderer().name());
-        jvmArgs.add("-Dzomboid.steam=0");
-        jvmArgs.add("-Dzomboid.znetlog=1");
-        jvmArgs.add("-XX:ErrorFile=/dev/stdout");
-
-        ArrayList<String> args = gameInstance.getArgsAsList();
-
-        String homePath = AppStorage.requireSingleton().getHomePath();
+        addFiles(paths, new File(gameInstance.getGamePath()), "64.so");
+        for (String dir : gameInstance.getLdLibraryPathForEmulation().split(":")) {
+            if (!dir.equals(".")) addFiles(paths, new File(dir), ".so");
+        }
 
-        // Select JRE version: GL4ES (Build 41) uses JRE21, newer renderers use JRE25
-        String jreFolder = selectJreFolder(homePath, prefs.getRenderer());
-        String ldLibraryPath = AppStorage.requireSingleton().getLibraryPath() + ":/system/lib64:"
-                + jreFolder + "/lib:" + jreFolder + "/lib/server:" + gameInstance.getJavaLibraryPath();
-        GameLauncher.startGame(gameInstance.getGamePath(), ldLibraryPath, jvmArgs.toArray(new String[0]),
-                gameInstance.getMainClassName(), args.toArray(new String[0]));
+        return paths.toArray(new String[0]);
     }
 
-    private static String selectJreFolder(String homePath, LauncherPreferences.Renderer renderer) {
-        boolean preferJre21 = isLegacyRendererNeedingJre21(renderer);
-        String preferredPath = homePath + "/" + (preferJre21 ? C.deps.JRE_21 : C.deps.JRE_25);
-        if (new File(preferredPath).exists()) {
-            return preferredPath;
-        }
-        // Fallback to legacy JRE path if versioned folders don't exist yet
-        String legacyPath = homePath + "/" + C.deps.JRE_ROOT;
-        if (new File(legacyPath).exists()) {
-            return legacyPath;
+    /**
+     * Changes whenever game classes do, so native caches of JNI signatures are dropped after a game update. Paths are
+     * taken relative to the game or home directory, so cloned instances of the same build share the id
+     */
+    private static String getGameBuildId(GameInstance gameInstance) {
+        Path gameDir = Paths.get(gameInstance.getGamePath()).toAbsolutePath().normalize();
+        Path homeDir = Paths.get(AppStorage.requireSingleton().getHomePath()).toAbsolutePath().normalize();
+        ArrayList<File> files = gameInstance.getClassPathFiles();
+        files.add(new File(gameInstance.getGamePath() + "/" + gameInstance.getMainClassName() + ".class"));
+        StringBuilder keyBuilder = new StringBuilder();
+        for (File file : files) {
+            if (!file.isFile()) continue;
+            Path path = file.toPath().toAbsolutePath().normalize();
+            Path relativePath = path.startsWith(gameDir) ? gameDir.relativize(path) : homeDir.relativize(path);
+            keyBuilder.append(relativePath).append('\t')
+                    .append(file.length()).append('\t')
+                    .append(file.lastModified()).append('\n');
         }
-        return preferredPath;
+        return gameInstance.getPresetName() + "-" + LaunchCommand.sha256(keyBuilder.toString()).substring(0, 16);
     }
 
-    private static boolean isLegacyRendererNeedingJre21(LauncherPreferences.Renderer renderer) {
-        return renderer == LauncherPreferences.Renderer.GL4ES;
+    private static void addFiles(ArrayList<String> paths, File dir, String suffix) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (file.isFile() && file.getName().endsWith(suffix)) paths.add(file.getPath());
+        }
     }
 
+    private static native void preloadLibraries(String[] paths);
+
     public static native int initZomdroidWindow();
 
     public static native void destroyZomdroidWindow();
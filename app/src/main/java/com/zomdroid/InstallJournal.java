@@ -0,0 +1,87 @@
+package com.zomdroid;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Append-only record of archive entries that were fully written to disk, one {@code name\tsize\tcrc} line per entry.
+ * Lets an interrupted installation skip entries that are already in place instead of starting over
+ */
+class InstallJournal implements Closeable {
+    static final String FILENAME = "install.journal";
+    private final HashMap<String, Record> records = new HashMap<>();
+    private final Writer writer;
+
+    static class Record {
+        final long size;
+        final long crc;
+
+        Record(long size, long crc) {
+            this.size = size;
+            this.crc = crc;
+        }
+    }
+
+    InstallJournal(@NonNull File file) throws IOException {
+        if (file.isFile()) records.putAll(readRecords(file));
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    @NonNull
+    static HashMap<String, Record> readRecords(@NonNull File file) throws IOException {
+        HashMap<String, Record> records = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                // last line may be incomplete if process was killed while writing it
+                if (parts.length != 3) continue;
+                try {
+                    records.put(parts[0], new Record(Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return true if entry was recorded as written and the file on disk still has the expected size
+     */
+    synchronized boolean isCompleted(@NonNull String name, long size, long crc, @NonNull File file) {
+        if (size < 0 || crc < 0) return false;
+        Record record = records.get(name);
+        return record != null && record.size == size && record.crc == crc
+                && file.isFile() && file.length() == size;
+    }
+
+    synchronized void markCompleted(@NonNull String name, long size, long crc) throws IOException {
+        if (size < 0 || crc < 0) return;
+        records.put(name, new Record(size, crc));
+        writer.write(name + "\t" + size + "\t" + crc + "\n");
+        // no fsync, the goal is to survive the process being killed, not a power loss
+        writer.flush();
+    }
+
+    @NonNull
+    synchronized HashMap<String, Record> getRecords() {
+        return new HashMap<>(records);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
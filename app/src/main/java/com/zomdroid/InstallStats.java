@@ -0,0 +1,107 @@
+package com.zomdroid;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput counters of a single extraction task, updated concurrently by extraction workers.
+ * Time is accumulated per stage across all threads, so with parallel extraction it can exceed wall time:
+ * <ul>
+ * <li>sourceRead - blocked on reading the archive itself, e.g. SAF provider, only measured for streamed archives</li>
+ * <li>inflate - reading entry data, includes decompression and source reads</li>
+ * <li>write - writing files, including kernel copies of stored entries</li>
+ * </ul>
+ */
+public class InstallStats {
+    public static final String REPORT_FILENAME = "install-report.json";
+    final LongAdder bytesRead = new LongAdder();
+    final LongAdder bytesInflated = new LongAdder();
+    final LongAdder bytesWritten = new LongAdder();
+    final LongAdder filesWritten = new LongAdder();
+    final LongAdder filesSkipped = new LongAdder();
+    final LongAdder sourceReadNanos = new LongAdder();
+    final LongAdder inflateNanos = new LongAdder();
+    final LongAdder writeNanos = new LongAdder();
+    private final long startNanos = System.nanoTime();
+    private final String task;
+    private volatile String mode;
+    private volatile int threadCount = 1;
+
+    public InstallStats(@NonNull String task) {
+        this.task = task;
+    }
+
+    void setMode(@NonNull String mode, int threadCount) {
+        this.mode = mode;
+        this.threadCount = threadCount;
+    }
+
+    public double getElapsedSeconds() {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    public double getFilesPerSecond() {
+        double elapsed = getElapsedSeconds();
+        return elapsed > 0 ? filesWritten.sum() / elapsed : 0;
+    }
+
+    public double getWrittenMegabytesPerSecond() {
+        double elapsed = getElapsedSeconds();
+        return elapsed > 0 ? bytesWritten.sum() / (1024. * 1024.) / elapsed : 0;
+    }
+
+    public void writeReport(@NonNull File file, @Nullable String error) throws IOException {
+        Report report = new Report();
+        report.task = task;
+        report.mode = mode;
+        report.threadCount = threadCount;
+        report.succeeded = error == null;
+        report.error = error;
+        report.elapsedSeconds = getElapsedSeconds();
+        report.bytesRead = bytesRead.sum();
+        report.bytesInflated = bytesInflated.sum();
+        report.bytesWritten = bytesWritten.sum();
+        report.filesWritten = filesWritten.sum();
+        report.filesSkipped = filesSkipped.sum();
+        report.filesPerSecond = getFilesPerSecond();
+        report.writtenMegabytesPerSecond = getWrittenMegabytesPerSecond();
+        report.sourceReadSeconds = sourceReadNanos.sum() / 1e9;
+        report.inflateSeconds = inflateNanos.sum() / 1e9;
+        report.writeSeconds = writeNanos.sum() / 1e9;
+
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            gson.toJson(report, writer);
+        }
+    }
+
+    private static class Report {
+        String task;
+        String mode;
+        int threadCount;
+        boolean succeeded;
+        String error;
+        double elapsedSeconds;
+        long bytesRead;
+        long bytesInflated;
+        long bytesWritten;
+        long filesWritten;
+        long filesSkipped;
+        double filesPerSecond;
+        double writtenMegabytesPerSecond;
+        double sourceReadSeconds;
+        double inflateSeconds;
+        double writeSeconds;
+    }
+}
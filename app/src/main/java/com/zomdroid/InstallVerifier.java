@@ -0,0 +1,123 @@
+package com.zomdroid;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Checks installed files against the sizes and CRC32s recorded in the {@link InstallJournal} at install time
+ */
+class InstallVerifier {
+    private static final int THREAD_COUNT = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final long MAP_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    static class Result {
+        final ArrayList<String> missing = new ArrayList<>();
+        final ArrayList<String> corrupted = new ArrayList<>();
+        int checkedCount;
+
+        boolean isIntact() {
+            return missing.isEmpty() && corrupted.isEmpty();
+        }
+    }
+
+    private enum Status {
+        INTACT,
+        MISSING,
+        CORRUPTED
+    }
+
+    private static class FileCheck {
+        final String name;
+        final long size;
+        Status status;
+
+        FileCheck(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+    }
+
+    @NonNull
+    static Result verify(@NonNull String destPath, @NonNull Map<String, InstallJournal.Record> records,
+                         TaskProgressListener taskProgressListener) throws IOException {
+        ArrayList<FileCheck> checks = new ArrayList<>(records.size());
+        long totalSize = 0;
+        for (Map.Entry<String, InstallJournal.Record> entry : records.entrySet()) {
+            checks.add(new FileCheck(entry.getKey(), entry.getValue().size));
+            totalSize += entry.getValue().size;
+        }
+        // largest files first, so a big file picked up last doesn't leave the other workers idle
+        checks.sort((a, b) -> Long.compare(b.size, a.size));
+
+        Result result = new Result();
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        try {
+            CompletionService<FileCheck> completionService = new ExecutorCompletionService<>(executor);
+            for (FileCheck check : checks) {
+                InstallJournal.Record record = records.get(check.name);
+                completionService.submit(() -> {
+                    check.status = checkFile(new File(destPath + "/" + check.name), record);
+                    return check;
+                });
+            }
+
+            long checkedSize = 0;
+            for (int i = 0; i < checks.size(); i++) {
+                FileCheck check = completionService.take().get();
+                if (check.status == Status.MISSING) result.missing.add(check.name);
+                else if (check.status == Status.CORRUPTED) result.corrupted.add(check.name);
+                result.checkedCount++;
+                checkedSize += check.size;
+                if (taskProgressListener != null) {
+                    int progress = totalSize > 0 ? (int) ((checkedSize / (float) totalSize) * 100) : -1;
+                    taskProgressListener.onProgressUpdate(null, progress, 100);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Verification was interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    private static Status checkFile(File file, InstallJournal.Record record) throws IOException {
+        if (!file.isFile()) return Status.MISSING;
+        if (file.length() != record.size) return Status.CORRUPTED;
+        return computeCrc32(file) == record.crc ? Status.INTACT : Status.CORRUPTED;
+    }
+
+    /**
+     * Hashes straight from the page cache through a mapping instead of copying into a heap buffer
+     */
+    private static long computeCrc32(File file) throws IOException {
+        CRC32 crc32 = new CRC32();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_WINDOW_SIZE) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAP_WINDOW_SIZE, size - position));
+                crc32.update(buffer);
+            }
+        }
+        return crc32.getValue();
+    }
+}
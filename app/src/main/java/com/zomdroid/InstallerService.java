@@ -6,6 +6,7 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.ContentResolver;
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
@@ -14,8 +15,10 @@ import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.core.app.ActivityCompat;
 import androidx.core.app.NotificationCompat;
@@ -30,27 +33,42 @@ import com.zomdroid.game.GameInstance;
 import com.zomdroid.game.GameInstanceManager;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.StringJoiner;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.Predicate;
 
 public class InstallerService extends Service implements TaskProgressListener {
     private static final String LOG_TAG = InstallerService.class.getName();
     private static final String CHANNEL_ID = "com.zomdroid.InstallerService.NOTIFICATION_CHANNEL";
     private static final int NOTIFICATION_ID = 1;
+    private static final int PURGE_NOTIFICATION_ID = 2;
+    private static final String TRASH_DIR_NAME = "trash";
+    private static final int MAX_LISTED_BROKEN_FILES = 10;
     public static final String ACTION_STARTED = "com.zomdroid.InstallerService.ACTION_STARTED";
     public static final String EXTRA_COMMAND = "com.zomdroid.InstallerService.EXTRA_COMMAND";
     public static final String EXTRA_GAME_INSTANCE_NAME = "com.zomdroid.InstallerService.EXTRA_GAME_INSTANCE_NAME";
     public static final String EXTRA_ARCHIVE_URI = "com.zomdroid.InstallerService.EXTRA_ARCHIVE_URI";
+    public static final String EXTRA_NEW_GAME_INSTANCE_NAME = "com.zomdroid.InstallerService.EXTRA_NEW_GAME_INSTANCE_NAME";
     private final IBinder binder = new LocalBinder();
     private static final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    private static final ExecutorService purgeExecutorService = Executors.newSingleThreadExecutor();
     private NotificationManagerCompat notificationManager;
     private NotificationCompat.Builder notificationBuilder;
     private final Handler handler = new Handler(Looper.getMainLooper());
     private long lastProgressUpdateMs;
+    private volatile InstallStats installStats;
     private final MutableLiveData<TaskState> taskState = new MutableLiveData<>();
 
     @Override
@@ -75,6 +93,15 @@ public class InstallerService extends Service implements TaskProgressListener {
             }
             case INSTALL_DEPENDENCIES: {
                 doInstallDependencies(intent);
+                break;
+            }
+            case CLONE_GAME_INSTANCE: {
+                doCloneGameInstance(intent);
+                break;
+            }
+            case VERIFY_GAME_INSTANCE: {
+                doVerifyGameInstance(intent);
+                break;
             }
         }
 
@@ -115,6 +142,22 @@ public class InstallerService extends Service implements TaskProgressListener {
                 return;
             }
 
+            if (LauncherPreferences.requireSingleton().isGameFilesDeduplicationEnabled()) {
+                try {
+                    GameFileStore.ingestDirectory(new File(gameInstance.getGamePath()), this);
+                } catch (IOException e) {
+                    // instance is still usable with its own copies
+                    Log.w(LOG_TAG, "Failed to deduplicate game files", e);
+                }
+            }
+
+            try {
+                commitInstallation(gameInstance);
+            } catch (Exception e) {
+                finishWithError(getString(R.string.dialog_title_failed_to_create_instance), e.toString());
+                return;
+            }
+
             GameInstanceManager.requireSingleton().markInstallationFinished(gameInstance);
 
             finish(getString(R.string.dialog_title_instance_created), null);
@@ -142,84 +185,236 @@ public class InstallerService extends Service implements TaskProgressListener {
         }
 
         executorService.submit(() -> {
+            // move instance out of the way first, so it's gone from the list and its name is free right away
+            File trashDir = new File(AppStorage.requireSingleton().getHomePath() + "/" + TRASH_DIR_NAME);
+            File homeDir = new File(gameInstance.getHomePath());
             try {
-                FileUtils.deleteDirectory(new File(gameInstance.getHomePath()));
+                if (homeDir.exists()) {
+                    if (!trashDir.mkdirs() && !trashDir.isDirectory())
+                        throw new IOException("Failed to create directory " + trashDir.getAbsolutePath());
+                    File trashedHomeDir = new File(trashDir, gameInstance.getName() + "-" + System.nanoTime());
+                    Files.move(homeDir.toPath(), trashedHomeDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
             } catch (Exception e) {
                 finishWithError(getString(R.string.dialog_title_failed_to_delete_instance), e.toString());
                 return;
             }
 
             GameInstanceManager.requireSingleton().unregisterInstance(gameInstance);
-
             finish(getString(R.string.dialog_title_instance_deleted), null);
+
+            // the instance is gone for the user already, actual deletion doesn't need to hold the dialog
+            purgeTrash(getApplicationContext(), trashDir);
         });
     }
 
-    private void doInstallDependencies(Intent intent) {
-        String taskTitle = getString(R.string.dialog_title_installing_dependencies);
+    /**
+     * Deletes trashed instance homes and blobs nobody links to anymore on a background thread. The service is
+     * stopped once the task finishes, so progress goes to a notification of its own. Anything left when the process
+     * dies is purged after the next deletion
+     */
+    private static void purgeTrash(Context context, File trashDir) {
+        purgeExecutorService.submit(() -> {
+            NotificationManagerCompat notificationManager = NotificationManagerCompat.from(context);
+            NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(context, CHANNEL_ID)
+                    .setContentTitle(context.getString(R.string.notification_title_purging_trash))
+                    .setOngoing(true)
+                    .setCategory(NotificationCompat.CATEGORY_PROGRESS)
+                    .setSmallIcon(R.mipmap.ic_launcher_foreground)
+                    .setProgress(0, 0, true);
+            boolean canNotify = ActivityCompat.checkSelfPermission(context, android.Manifest.permission.POST_NOTIFICATIONS)
+                    == PackageManager.PERMISSION_GRANTED;
+            if (canNotify) notificationManager.notify(PURGE_NOTIFICATION_ID, notificationBuilder.build());
+
+            // also purges leftovers of deletions that were interrupted before. Trash dir itself stays, a deletion
+            // running meanwhile may be moving the next instance into it
+            File[] trashedHomeDirs = trashDir.listFiles();
+            if (trashedHomeDirs != null) {
+                for (File trashedHomeDir : trashedHomeDirs) {
+                    try {
+                        FileUtils.deleteDirectoryParallel(trashedHomeDir, deletedCount -> {
+                            if (!canNotify) return;
+                            notificationBuilder.setContentText(context.getString(R.string.files_deleted, deletedCount));
+                            notificationManager.notify(PURGE_NOTIFICATION_ID, notificationBuilder.build());
+                        });
+                    } catch (IOException e) {
+                        Log.w(LOG_TAG, "Failed to purge " + trashedHomeDir.getAbsolutePath(), e);
+                    }
+                }
+            }
+
+            // blobs only the deleted instances were linking to are now unreferenced
+            try {
+                GameFileStore.collectGarbage();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to clean up game file store", e);
+            }
+
+            notificationManager.cancel(PURGE_NOTIFICATION_ID);
+        });
+    }
+
+    private void doCloneGameInstance(Intent intent) {
+        String taskTitle = getString(R.string.dialog_title_cloning_game_instance);
 
         startForeground(NOTIFICATION_ID, buildNotification(taskTitle));
 
         this.taskState.postValue(new TaskState(taskTitle, null, -1, 0, false, false));
 
+        String gameInstanceName = intent.getStringExtra(EXTRA_GAME_INSTANCE_NAME);
+        String newGameInstanceName = intent.getStringExtra(EXTRA_NEW_GAME_INSTANCE_NAME);
+        if (gameInstanceName == null || newGameInstanceName == null) {
+            finishWithError(getString(R.string.dialog_title_failed_to_clone_instance),
+                    "Game instance name intent extra is missing");
+            return;
+        }
+        GameInstance sourceGameInstance = GameInstanceManager.requireSingleton().getInstanceByName(gameInstanceName);
+        if (sourceGameInstance == null) {
+            finishWithError(getString(R.string.dialog_title_failed_to_clone_instance),
+                    "Game instance with name " + gameInstanceName + " not found");
+            return;
+        }
+        if (!GameInstance.isValidName(newGameInstanceName) || !GameInstance.isUniqueName(newGameInstanceName)) {
+            finishWithError(getString(R.string.dialog_title_failed_to_clone_instance),
+                    "Game instance name " + newGameInstanceName + " is invalid or already taken");
+            return;
+        }
+
         executorService.submit(() -> {
-            SharedPreferences prefs = getSharedPreferences(C.shprefs.NAME, MODE_PRIVATE);
-            Gson gson = new Gson();
+            GameInstance gameInstance;
+            try {
+                gameInstance = new GameInstance(newGameInstanceName, sourceGameInstance);
+            } catch (Exception e) {
+                finishWithError(getString(R.string.dialog_title_failed_to_clone_instance), e.toString());
+                return;
+            }
+            // registered before linking, so an interrupted clone can still be deleted from the launcher
+            GameInstanceManager.requireSingleton().registerInstance(gameInstance);
 
-            String bundlesJson = prefs.getString(C.shprefs.keys.INSTALLED_BUNDLES, "[]");
+            try {
+                FileUtils.linkDirectory(new File(sourceGameInstance.getGamePath()), new File(gameInstance.getGamePath()), this);
+                File journalFile = new File(sourceGameInstance.getHomePath() + "/" + InstallJournal.FILENAME);
+                if (journalFile.isFile()) {
+                    Files.copy(journalFile.toPath(), new File(gameInstance.getHomePath() + "/" + InstallJournal.FILENAME).toPath());
+                }
+                commitInstallation(gameInstance);
+            } catch (Exception e) {
+                finishWithError(getString(R.string.dialog_title_failed_to_clone_instance), e.toString());
+                return;
+            }
 
-            Type mapType = new TypeToken<HashMap<String, Long>>() {
-            }.getType();
-            HashMap<String, Long> oldBundlesHashesMap = gson.fromJson(bundlesJson, mapType);
+            GameInstanceManager.requireSingleton().markInstallationFinished(gameInstance);
 
-            HashMap<String, Long> newBundlesHashesMap = new HashMap<>();
+            finish(getString(R.string.dialog_title_instance_cloned), null);
+        });
+    }
 
-            Long jreHashOld = oldBundlesHashesMap.get(C.assets.BUNDLES_JRE);
-            try {
-                Long jreHashNew = FileUtils.generateCRC32ForAsset(this, C.assets.BUNDLES_JRE);
-                newBundlesHashesMap.put(C.assets.BUNDLES_JRE, jreHashNew);
-                if (jreHashOld == null || !jreHashOld.equals(jreHashNew)) {
-                    String jrePath = AppStorage.requireSingleton().getHomePath() + "/" + C.deps.JRE;
-                    File jreDir = new File(jrePath);
-                    if (jreDir.exists())
-                        FileUtils.deleteDirectory(jreDir);
-                    InputStream libsBundleInStream = getAssets().open(C.assets.BUNDLES_JRE);
-                    FileUtils.extractTarXzToDisk(libsBundleInStream, jrePath, this, 0);
-                }
-            } catch (IOException e) {
-                finishWithError(getString(R.string.dialog_title_failed_to_install_dependencies), e.toString());
+    private void doVerifyGameInstance(Intent intent) {
+        String taskTitle = getString(R.string.dialog_title_verifying_game_instance);
+
+        startForeground(NOTIFICATION_ID, buildNotification(taskTitle));
+
+        this.taskState.postValue(new TaskState(taskTitle, null, -1, 0, false, false));
+
+        String gameInstanceName = intent.getStringExtra(EXTRA_GAME_INSTANCE_NAME);
+        if (gameInstanceName == null) {
+            finishWithError(getString(R.string.dialog_title_failed_to_verify_instance),
+                    "Game instance name intent extra is missing");
+            return;
+        }
+        GameInstance gameInstance = GameInstanceManager.requireSingleton().getInstanceByName(gameInstanceName);
+        if (gameInstance == null) {
+            finishWithError(getString(R.string.dialog_title_failed_to_verify_instance),
+                    "Game instance with name " + gameInstanceName + " not found");
+            return;
+        }
+
+        executorService.submit(() -> {
+            // journal holds size and crc of every file written during install, so it doubles as the manifest
+            File journalFile = new File(gameInstance.getHomePath() + "/" + InstallJournal.FILENAME);
+            if (!journalFile.isFile()) {
+                finishWithError(getString(R.string.dialog_title_failed_to_verify_instance),
+                        getString(R.string.verify_manifest_missing));
                 return;
             }
 
-            Long libsHashOld = oldBundlesHashesMap.get(C.assets.BUNDLES_LIBS);
+            InstallVerifier.Result result;
             try {
-                Long libsHashNew = FileUtils.generateCRC32ForAsset(this, C.assets.BUNDLES_LIBS);
-                newBundlesHashesMap.put(C.assets.BUNDLES_LIBS, libsHashNew);
-                if (libsHashOld == null || !libsHashOld.equals(libsHashNew)) {
-                    String libsPath = AppStorage.requireSingleton().getHomePath() + "/" + C.deps.LIBS;
-                    File libsDir = new File(libsPath);
-                    if (libsDir.exists())
-                        FileUtils.deleteDirectory(libsDir);
-                    InputStream libsBundleInStream = getAssets().open(C.assets.BUNDLES_LIBS);
-                    FileUtils.extractTarXzToDisk(libsBundleInStream, libsPath, this, 0);
+                result = InstallVerifier.verify(gameInstance.getGamePath(), InstallJournal.readRecords(journalFile), this);
+                if (!result.isIntact()) {
+                    // journal only checks sizes on resume, so damaged files are removed to make resuming
+                    // the installation from the archive rewrite exactly the broken ones
+                    Files.deleteIfExists(gameInstance.getInstallationCommitFile().toPath());
+                    ArrayList<File> corruptedFiles = new ArrayList<>();
+                    for (String name : result.corrupted) {
+                        corruptedFiles.add(new File(gameInstance.getGamePath() + "/" + name));
+                    }
+                    GameFileStore.removeBlobsOf(corruptedFiles);
+                    for (File file : corruptedFiles) {
+                        Files.deleteIfExists(file.toPath());
+                    }
                 }
-            } catch (IOException e) {
-                finishWithError(getString(R.string.dialog_title_failed_to_install_dependencies), e.toString());
+            } catch (Exception e) {
+                finishWithError(getString(R.string.dialog_title_failed_to_verify_instance), e.toString());
                 return;
             }
 
-            Long jarsHashOld = oldBundlesHashesMap.get(C.assets.BUNDLES_JARS);
+            if (result.isIntact()) {
+                finish(getString(R.string.dialog_title_game_files_verified),
+                        getString(R.string.game_files_intact, result.checkedCount));
+                return;
+            }
+
+            GameInstanceManager.requireSingleton().markInstallationUnfinished(gameInstance);
+
+            ArrayList<String> brokenFiles = new ArrayList<>(result.missing);
+            brokenFiles.addAll(result.corrupted);
+            for (String name : brokenFiles) {
+                Log.w(LOG_TAG, "Broken game file: " + name);
+            }
+            StringJoiner brokenFilesList = new StringJoiner("\n");
+            for (int i = 0; i < Math.min(brokenFiles.size(), MAX_LISTED_BROKEN_FILES); i++) {
+                brokenFilesList.add(brokenFiles.get(i));
+            }
+            if (brokenFiles.size() > MAX_LISTED_BROKEN_FILES) brokenFilesList.add("...");
+            finishWithError(getString(R.string.dialog_title_game_files_damaged),
+                    getString(R.string.game_files_damaged, result.missing.size(), result.corrupted.size(),
+                            brokenFilesList.toString()));
+        });
+    }
+
+    private void doInstallDependencies(Intent intent) {
+        String taskTitle = getString(R.string.dialog_title_installing_dependencies);
+
+        startForeground(NOTIFICATION_ID, buildNotification(taskTitle));
+
+        this.taskState.postValue(new TaskState(taskTitle, null, -1, 0, false, false));
+
+        executorService.submit(() -> {
+            SharedPreferences prefs = getSharedPreferences(C.shprefs.NAME, MODE_PRIVATE);
+            Gson gson = new Gson();
+
+            String bundlesJson = prefs.getString(C.shprefs.keys.INSTALLED_BUNDLES, "[]");
+            String fingerprintsJson = prefs.getString(C.shprefs.keys.INSTALLED_BUNDLES_FINGERPRINTS, "{}");
+
+            Type hashesMapType = new TypeToken<HashMap<String, Long>>() {
+            }.getType();
+            Type fingerprintsMapType = new TypeToken<HashMap<String, String>>() {
+            }.getType();
+            HashMap<String, Long> oldBundlesHashesMap = gson.fromJson(bundlesJson, hashesMapType);
+            HashMap<String, String> oldBundlesFingerprintsMap = gson.fromJson(fingerprintsJson, fingerprintsMapType);
+
+            HashMap<String, Long> newBundlesHashesMap = new HashMap<>();
+            HashMap<String, String> newBundlesFingerprintsMap = new HashMap<>();
+
             try {
-                Long jarsHashNew = FileUtils.generateCRC32ForAsset(this, C.assets.BUNDLES_JARS);
-                newBundlesHashesMap.put(C.assets.BUNDLES_JARS, jarsHashNew);
-                if (jarsHashOld == null || !jarsHashOld.equals(jarsHashNew)) {
-                    String jarsPath = AppStorage.requireSingleton().getHomePath() + "/" + C.deps.JARS;
-                    File jarsDir = new File(jarsPath);
-                    if (jarsDir.exists())
-                        FileUtils.deleteDirectory(jarsDir);
-                    InputStream jarsBundleInStream = getAssets().open(C.assets.BUNDLES_JARS);
-                    FileUtils.extractTarToDisk(jarsBundleInStream, jarsPath, this, 0);
-                }
+                String homePath = AppStorage.requireSingleton().getHomePath();
+                installBundle(C.assets.BUNDLES_JRE, C.assets.BUNDLES_JRE_MANIFEST, homePath + "/" + C.deps.JRE,
+                        oldBundlesHashesMap, oldBundlesFingerprintsMap, newBundlesHashesMap, newBundlesFingerprintsMap);
+                installBundle(C.assets.BUNDLES_LIBS, C.assets.BUNDLES_LIBS_MANIFEST, homePath + "/" + C.deps.LIBS,
+                        oldBundlesHashesMap, oldBundlesFingerprintsMap, newBundlesHashesMap, newBundlesFingerprintsMap);
+                installBundle(C.assets.BUNDLES_JARS, C.assets.BUNDLES_JARS_MANIFEST, homePath + "/" + C.deps.JARS,
+                        oldBundlesHashesMap, oldBundlesFingerprintsMap, newBundlesHashesMap, newBundlesFingerprintsMap);
             } catch (IOException e) {
                 finishWithError(getString(R.string.dialog_title_failed_to_install_dependencies), e.toString());
                 return;
@@ -228,6 +423,7 @@ public class InstallerService extends Service implements TaskProgressListener {
             bundlesJson = gson.toJson(newBundlesHashesMap);
             prefs.edit()
                     .putString(C.shprefs.keys.INSTALLED_BUNDLES, bundlesJson)
+                    .putString(C.shprefs.keys.INSTALLED_BUNDLES_FINGERPRINTS, gson.toJson(newBundlesFingerprintsMap))
                     .putBoolean(C.shprefs.keys.ARE_DEPENDENCIES_INSTALLED, true)
                     .apply();
 
@@ -235,6 +431,68 @@ public class InstallerService extends Service implements TaskProgressListener {
         });
     }
 
+    private void installBundle(String assetPath, String manifestAssetPath, String destPath,
+                               HashMap<String, Long> oldHashesMap, HashMap<String, String> oldFingerprintsMap,
+                               HashMap<String, Long> newHashesMap, HashMap<String, String> newFingerprintsMap) throws IOException {
+        Long hashOld = oldHashesMap.get(assetPath);
+        String fingerprint = FileUtils.getAssetFingerprint(this, assetPath);
+        newFingerprintsMap.put(assetPath, fingerprint);
+
+        // same APK as last time, skip reading the whole bundle
+        if (hashOld != null && fingerprint.equals(oldFingerprintsMap.get(assetPath))) {
+            newHashesMap.put(assetPath, hashOld);
+            return;
+        }
+
+        long hashNew = FileUtils.generateCRC32ForAsset(this, assetPath);
+        newHashesMap.put(assetPath, hashNew);
+        if (hashOld != null && hashOld == hashNew) return;
+
+        File destDir = new File(destPath);
+        File installedManifestFile = new File(destPath + ".manifest");
+        BundleManifest newManifest = readAssetManifest(manifestAssetPath);
+        BundleManifest installedManifest = destDir.isDirectory() ? BundleManifest.readFromFile(installedManifestFile) : null;
+
+        Predicate<String> entryFilter = null;
+        if (newManifest != null && installedManifest != null) {
+            // only rewrite files that differ from what's installed
+            for (String removedPath : newManifest.getRemovedPaths(installedManifest)) {
+                File removedFile = new File(destPath + "/" + removedPath);
+                if (removedFile.exists() && !removedFile.delete())
+                    throw new IOException("Failed to delete " + removedFile.getAbsolutePath());
+            }
+            Set<String> changedPaths = newManifest.getChangedPaths(installedManifest, destPath);
+            if (changedPaths.isEmpty()) return;
+            entryFilter = entryName -> changedPaths.contains(BundleManifest.normalizePath(entryName));
+        } else {
+            if (installedManifestFile.exists() && !installedManifestFile.delete())
+                throw new IOException("Failed to delete " + installedManifestFile.getAbsolutePath());
+            if (destDir.exists())
+                FileUtils.deleteDirectory(destDir);
+        }
+
+        if (assetPath.endsWith(".xz")) {
+            FileUtils.extractTarXzAssetToDisk(this, assetPath, destPath, entryFilter, this);
+        } else {
+            FileUtils.extractTarAssetToDisk(this, assetPath, destPath, entryFilter, this);
+        }
+
+        if (newManifest != null) {
+            try (InputStream manifestInStream = getAssets().open(manifestAssetPath)) {
+                Files.copy(manifestInStream, installedManifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    @Nullable
+    private BundleManifest readAssetManifest(String manifestAssetPath) throws IOException {
+        try (InputStream manifestInStream = getAssets().open(manifestAssetPath)) {
+            return BundleManifest.read(manifestInStream);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
     private void finish(String title, String message) {
         this.taskState.postValue(new TaskState(title, message, -1, 0, true, false));
     }
@@ -244,12 +502,69 @@ public class InstallerService extends Service implements TaskProgressListener {
         this.taskState.postValue(new TaskState(title, error, -1, 0, false, true));
     }
 
+    /**
+     * Makes installed files durable before the instance can be flagged as installed. Files are written without
+     * syncing, then flushed in one pass, and only then the commit marker is atomically put in place
+     */
+    private void commitInstallation(GameInstance gameInstance) throws IOException {
+        try {
+            GameClassesJar.pack(gameInstance);
+        } catch (IOException e) {
+            // game still runs from loose classes, just without class data sharing
+            Log.w(LOG_TAG, "Failed to pack game classes", e);
+            Files.deleteIfExists(new File(gameInstance.getGameClassesJarPath()).toPath());
+        }
+        // only what the install wrote, user data next to it is none of the commit's business
+        FileUtils.syncDirectory(new File(gameInstance.getGamePath()), this);
+        File gameClassesJar = new File(gameInstance.getGameClassesJarPath());
+        if (gameClassesJar.isFile()) FileUtils.fsync(gameClassesJar);
+        // entries of the game dir and the jar, before the marker can land next to them
+        FileUtils.fsync(new File(gameInstance.getHomePath()));
+        String commitInfo = "committedAt=" + System.currentTimeMillis() + "\n";
+        FileUtils.writeFileAtomically(gameInstance.getInstallationCommitFile(), commitInfo.getBytes(StandardCharsets.UTF_8));
+    }
+
     private void installGameFromZip(GameInstance gameInstance, Uri zipUri) throws IOException {
         ContentResolver contentResolver = getApplicationContext().getContentResolver();
+        // files are about to change, instance is no longer committed until the install finishes again
+        Files.deleteIfExists(gameInstance.getInstallationCommitFile().toPath());
+        InstallStats stats = new InstallStats(Task.CREATE_GAME_INSTANCE.name());
+        String error = null;
+        try {
+            extractGameZip(gameInstance, zipUri, contentResolver, stats);
+        } catch (IOException | RuntimeException e) {
+            error = e.toString();
+            throw e;
+        } finally {
+            installStats = null;
+            try {
+                stats.writeReport(new File(gameInstance.getHomePath() + "/" + InstallStats.REPORT_FILENAME), error);
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to write install report", e);
+            }
+        }
+    }
 
-        try (InputStream inputStream = contentResolver.openInputStream(zipUri)) {
-            long fileSize = FileUtils.queryFileSize(contentResolver, zipUri);
-            FileUtils.extractZipToDisk(inputStream, gameInstance.getGamePath(), this, fileSize);
+    private void extractGameZip(GameInstance gameInstance, Uri zipUri, ContentResolver contentResolver,
+                                InstallStats stats) throws IOException {
+        // journal survives the process being killed, so re-running the task resumes instead of starting over
+        try (InstallJournal journal = new InstallJournal(new File(gameInstance.getHomePath() + "/" + InstallJournal.FILENAME))) {
+            // parallel extraction needs random access, which SAF only provides for providers backed by a regular file
+            ParcelFileDescriptor zipFd = contentResolver.openFileDescriptor(zipUri, "r");
+            if (zipFd != null) {
+                if (zipFd.getStatSize() > 0) {
+                    try (FileInputStream zipInStream = new ParcelFileDescriptor.AutoCloseInputStream(zipFd)) {
+                        FileUtils.extractZipToDisk(zipInStream.getChannel(), gameInstance.getGamePath(), journal, stats, this);
+                    }
+                    return;
+                }
+                zipFd.close();
+            }
+
+            try (InputStream inputStream = contentResolver.openInputStream(zipUri)) {
+                long fileSize = FileUtils.queryFileSize(contentResolver, zipUri);
+                FileUtils.extractZipToDisk(inputStream, gameInstance.getGamePath(), journal, stats, this, fileSize);
+            }
         }
     }
 
@@ -294,22 +609,32 @@ public class InstallerService extends Service implements TaskProgressListener {
         return notificationBuilder.build();
     }
 
+    @Override
+    public void onInstallStatsUpdate(@NonNull InstallStats stats) {
+        installStats = stats;
+    }
+
     @Override
     public void onProgressUpdate(String message, int progress, int progressMax) {
         if (System.currentTimeMillis() - lastProgressUpdateMs < 500) return;
         lastProgressUpdateMs = System.currentTimeMillis();
 
+        InstallStats stats = installStats;
+        final String progressMessage = message == null && stats != null
+                ? getString(R.string.install_throughput, stats.getWrittenMegabytesPerSecond(), (int) stats.getFilesPerSecond())
+                : message;
+
         TaskState currentState = this.taskState.getValue();
         this.taskState.postValue(new TaskState(currentState == null ? null : currentState.title,
-                message, progress, progressMax, false, false));
+                progressMessage, progress, progressMax, false, false));
 
         handler.post(() -> {
             if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.POST_NOTIFICATIONS)
                     != PackageManager.PERMISSION_GRANTED) {
                 return;
             }
-            if (message != null) {
-                notificationBuilder.setContentText(message);
+            if (progressMessage != null) {
+                notificationBuilder.setContentText(progressMessage);
             }
             if (progress < 0)
                 notificationBuilder.setProgress(0, 0, true);
@@ -333,7 +658,9 @@ public class InstallerService extends Service implements TaskProgressListener {
     public enum Task {
         CREATE_GAME_INSTANCE,
         DELETE_GAME_INSTANCE,
-        INSTALL_DEPENDENCIES
+        INSTALL_DEPENDENCIES,
+        CLONE_GAME_INSTANCE,
+        VERIFY_GAME_INSTANCE
     }
 
     public static class TaskState {
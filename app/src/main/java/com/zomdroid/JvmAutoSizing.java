@@ -0,0 +1,175 @@
+package com.zomdroid;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.zomdroid.game.GameInstance;
+import com.zomdroid.game.PresetManager;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picks heap, metaspace, GC and JVM thread counts from device memory, renderer and game build.
+ * Anything the user already set in JVM arguments is left alone
+ */
+class JvmAutoSizing {
+    private static final String LOG_TAG = JvmAutoSizing.class.getName();
+    private static final int HEAP_GRANULARITY_MB = 128;
+    // same as the smallest heap a launch profile can set, the game doesn't get to the main menu with less
+    private static final int MIN_HEAP_MB = 512;
+    private static final int MIN_INITIAL_HEAP_MB = 256;
+    // below this G1 remembered sets cost more than its shorter pauses are worth
+    private static final int G1_MIN_HEAP_MB = 1536;
+    private static final String[] GC_FLAGS = {"-XX:+UseSerialGC", "-XX:+UseParallelGC", "-XX:+UseG1GC",
+            "-XX:+UseZGC", "-XX:+UseShenandoahGC", "-XX:+UseEpsilonGC"};
+
+    static class MemInfo {
+        final long totalMb;
+        final long availableMb;
+
+        MemInfo(long totalMb, long availableMb) {
+            this.totalMb = totalMb;
+            this.availableMb = availableMb;
+        }
+    }
+
+    @NonNull
+    static ArrayList<String> computeJvmArgs(@NonNull GameInstance gameInstance, @NonNull LauncherPreferences.Renderer renderer,
+                                            @NonNull List<String> userJvmArgs) {
+        ArrayList<String> jvmArgs = new ArrayList<>();
+        MemInfo memInfo = readMemInfo();
+        if (memInfo == null) {
+            Log.w(LOG_TAG, "Failed to read memory info, skipping JVM auto sizing");
+            return jvmArgs;
+        }
+        boolean isBuild42 = PresetManager.BUILD_42.equals(gameInstance.getPresetName());
+
+        // memory the game process needs outside of java heap: box64, emulated libs, driver and texture buffers
+        long nativeReserveMb = renderer == LauncherPreferences.Renderer.GL4ES ? 900 : 1300;
+        if (isBuild42) nativeReserveMb += 300;
+        // other apps are killed to make room for the foreground game, so it can count on more than what's free now,
+        // but never on the part of RAM Android keeps for itself
+        long budgetMb = Math.min(memInfo.totalMb / 2, memInfo.availableMb + memInfo.totalMb / 6) - nativeReserveMb;
+
+        // heap set by the user or the launch profile wins, initial heap and GC have to fit it
+        long userHeapMb = getLastSizeMb(userJvmArgs, "-Xmx", "-XX:MaxHeapSize=");
+        long userInitialHeapMb = getLastSizeMb(userJvmArgs, "-Xms", "-XX:InitialHeapSize=");
+        long heapMb;
+        if (userHeapMb > 0) {
+            heapMb = userHeapMb;
+        } else {
+            long recommendedHeapMb = isBuild42 ? 1536 : 1024;
+            long maxHeapMb = isBuild42 ? 4096 : 3072;
+            heapMb = Math.min(maxHeapMb, budgetMb) / HEAP_GRANULARITY_MB * HEAP_GRANULARITY_MB;
+            if (heapMb < recommendedHeapMb) {
+                // a heap bigger than the device can back gets the game killed instead of running out of heap
+                Log.w(LOG_TAG, "Memory budget of " + budgetMb + "MB is below the recommended heap of "
+                        + recommendedHeapMb + "MB for " + gameInstance.getPresetName() + ", the game may run out of heap");
+                heapMb = Math.max(MIN_HEAP_MB, heapMb);
+            }
+            heapMb = Math.max(heapMb, userInitialHeapMb);
+        }
+        // small initial heap keeps early commit low, it grows without full GCs up to -Xmx
+        long initialHeapMb = Math.min(heapMb,
+                Math.max(MIN_INITIAL_HEAP_MB, heapMb / 4 / HEAP_GRANULARITY_MB * HEAP_GRANULARITY_MB));
+
+        int cpuCount = Runtime.getRuntime().availableProcessors();
+        // roughly the big cores, little cores only slow parallel phases down
+        int parallelGcThreads = Math.max(2, cpuCount / 2);
+        int compilerThreads = Math.max(2, Math.min(4, cpuCount / 2));
+
+        if (userHeapMb <= 0) jvmArgs.add("-Xmx" + heapMb + "m");
+        if (userInitialHeapMb <= 0) jvmArgs.add("-Xms" + initialHeapMb + "m");
+        if (!hasArg(userJvmArgs, "-XX:MaxMetaspaceSize"))
+            jvmArgs.add("-XX:MaxMetaspaceSize=" + (isBuild42 ? 512 : 320) + "m");
+        if (!hasArg(userJvmArgs, GC_FLAGS)) {
+            if (heapMb >= G1_MIN_HEAP_MB) {
+                jvmArgs.add("-XX:+UseG1GC");
+                if (!hasArg(userJvmArgs, "-XX:ConcGCThreads"))
+                    jvmArgs.add("-XX:ConcGCThreads=" + Math.max(1, parallelGcThreads / 2));
+            } else {
+                jvmArgs.add("-XX:+UseSerialGC");
+            }
+        }
+        if (!hasArg(userJvmArgs, "-XX:ParallelGCThreads"))
+            jvmArgs.add("-XX:ParallelGCThreads=" + parallelGcThreads);
+        if (!hasArg(userJvmArgs, "-XX:CICompilerCount"))
+            jvmArgs.add("-XX:CICompilerCount=" + compilerThreads);
+
+        Log.i(LOG_TAG, "Memory total=" + memInfo.totalMb + "MB available=" + memInfo.availableMb
+                + "MB, auto sized JVM args: " + String.join(" ", jvmArgs));
+        return jvmArgs;
+    }
+
+    private static boolean hasArg(List<String> jvmArgs, String... prefixes) {
+        for (String arg : jvmArgs) {
+            for (String prefix : prefixes) {
+                if (arg.startsWith(prefix)) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return size in MB of the last argument with any of the prefixes, the one the JVM goes by, or -1 if there is none
+     */
+    private static long getLastSizeMb(List<String> jvmArgs, String... prefixes) {
+        long sizeMb = -1;
+        for (String arg : jvmArgs) {
+            for (String prefix : prefixes) {
+                if (!arg.startsWith(prefix)) continue;
+                long parsedMb = parseSizeMb(arg.substring(prefix.length()));
+                if (parsedMb > 0) sizeMb = parsedMb;
+            }
+        }
+        return sizeMb;
+    }
+
+    /**
+     * Parses JVM memory size like 768m, 2G or 1073741824, returns -1 if it is not one
+     */
+    private static long parseSizeMb(String value) {
+        if (value.isEmpty()) return -1;
+        long multiplier = 1;
+        char unit = Character.toLowerCase(value.charAt(value.length() - 1));
+        if (unit == 'k' || unit == 'm' || unit == 'g' || unit == 't') {
+            multiplier = unit == 'k' ? 1L << 10 : unit == 'm' ? 1L << 20 : unit == 'g' ? 1L << 30 : 1L << 40;
+            value = value.substring(0, value.length() - 1);
+        }
+        try {
+            return Long.parseLong(value) * multiplier >> 20;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Same source as the native low memory monitor
+     */
+    private static MemInfo readMemInfo() {
+        long totalKb = -1;
+        long availableKb = -1;
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/meminfo"))) {
+            String line;
+            while ((line = reader.readLine()) != null && (totalKb < 0 || availableKb < 0)) {
+                if (line.startsWith("MemTotal:")) totalKb = parseKb(line);
+                else if (line.startsWith("MemAvailable:")) availableKb = parseKb(line);
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(LOG_TAG, "Failed to parse /proc/meminfo", e);
+            return null;
+        }
+        if (totalKb <= 0 || availableKb < 0) return null;
+        return new MemInfo(totalKb / 1024, availableKb / 1024);
+    }
+
+    private static long parseKb(String line) {
+        String[] parts = line.trim().split("\\s+");
+        return Long.parseLong(parts[1]);
+    }
+}
@@ -0,0 +1,187 @@
+package com.zomdroid;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.zomdroid.game.GameInstance;
+import com.zomdroid.game.LaunchProfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Resolved environment and command line of an instance. Cached in instance home and only rebuilt when one of its
+ * inputs changes. Parts that depend on runtime state, like free memory or CDS archive, are added at launch on top
+ */
+class LaunchCommand {
+    private static final String LOG_TAG = LaunchCommand.class.getName();
+    static final String CACHE_FILENAME = "launch-command.json";
+
+    String inputsHash;
+    LauncherPreferences.Renderer renderer;
+    String jreFolder;
+    String ldLibraryPath;
+    LinkedHashMap<String, String> envVars = new LinkedHashMap<>();
+    ArrayList<String> jvmArgs = new ArrayList<>();
+    ArrayList<String> args = new ArrayList<>();
+
+    @NonNull
+    static LaunchCommand resolve(@NonNull GameInstance gameInstance, @NonNull LauncherPreferences prefs) {
+        Gson gson = new Gson();
+        LauncherPreferences.Renderer renderer = gameInstance.getLaunchProfile().resolveRenderer(prefs);
+        String jreFolder = selectJreFolder(AppStorage.requireSingleton().getHomePath(), renderer);
+        // native library dir changes with every app update, so it also invalidates commands built by older code
+        // classpath changes once game classes are packed
+        String inputsHash = sha256(gson.toJson(gameInstance) + "\n" + gson.toJson(prefs) + "\n" + jreFolder
+                + "\n" + AppStorage.requireSingleton().getLibraryPath() + "\n" + gameInstance.hasGameClassesJar());
+
+        File cacheFile = new File(gameInstance.getHomePath() + "/" + CACHE_FILENAME);
+        LaunchCommand cached = readCache(gson, cacheFile);
+        if (cached != null && inputsHash.equals(cached.inputsHash)) {
+            return cached;
+        }
+
+        LaunchCommand command = build(gameInstance, prefs, renderer, jreFolder);
+        command.inputsHash = inputsHash;
+        try {
+            Files.write(cacheFile.toPath(), gson.toJson(command).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to cache launch command", e);
+        }
+        return command;
+    }
+
+    private static LaunchCommand build(GameInstance gameInstance, LauncherPreferences prefs,
+                                       LauncherPreferences.Renderer renderer, String jreFolder) {
+        LaunchProfile profile = gameInstance.getLaunchProfile();
+        LaunchCommand command = new LaunchCommand();
+        command.renderer = renderer;
+        command.jreFolder = jreFolder;
+
+        LinkedHashMap<String, String> env = command.envVars;
+        env.put("LIBGL_MIPMAP", "1");
+        env.put("BOX64_LOG", "1");
+        env.put("BOX64_SHOWBT", "1");
+        env.put("BOX64_LD_LIBRARY_PATH", gameInstance.getLdLibraryPathForEmulation());
+        env.put("GALLIUM_DRIVER", "zink");
+        env.put("ZOMDROID_CACHE_DIR", AppStorage.requireSingleton().getCachePath());
+        env.put("ZOMDROID_RENDERER", renderer.name());
+
+        switch (renderer) {
+            case ZINK_ZFA:
+            case ZINK_OSMESA:
+                String vulkanDriverName = profile.resolveVulkanDriver(prefs).libName;
+                if (vulkanDriverName != null) {
+                    env.put("ZOMDROID_VULKAN_DRIVER_NAME", vulkanDriverName);
+                }
+                env.put("ZOMDROID_GLES_MAJOR", "3");
+                env.put("ZOMDROID_GLES_MINOR", "1");
+                break;
+            default:
+                env.put("ZOMDROID_GLES_MAJOR", "2");
+                env.put("ZOMDROID_GLES_MINOR", "1");
+                break;
+        }
+
+        env.put("ZOMDROID_AUDIO_API", prefs.getAudioAPI().name());
+        env.put("ZOMDROID_TRACE_FILE", gameInstance.getHomePath() + "/" + StartupTracer.TRACE_FILENAME);
+
+        if (prefs.isDebug()) {
+            env.put("BOX64_LOG", "3");
+            env.put("MESA_DEBUG", "1");
+        }
+
+        // Apply user-defined environment variables
+        for (String line : profile.resolveEnvVars(prefs).split("\n")) {
+            line = line.trim();
+            int eq = line.indexOf('=');
+            if (eq > 0) {
+                String key = line.substring(0, eq).trim();
+                String val = line.substring(eq + 1).trim();
+                if (!key.isEmpty()) {
+                    env.put(key, val);
+                }
+            }
+        }
+
+        ArrayList<String> jvmArgs = command.jvmArgs;
+        jvmArgs.addAll(gameInstance.getJvmArgsAsList());
+
+        if (profile.getHeapSizeMb() != null) jvmArgs.add("-Xmx" + profile.getHeapSizeMb() + "m");
+        if (profile.getGarbageCollector() != null) jvmArgs.add(profile.getGarbageCollector().jvmArg);
+
+        // Apply user-defined JVM arguments, after profile ones so they take precedence
+        for (String arg : profile.resolveJvmArgs(prefs).split("\n")) {
+            arg = arg.trim();
+            if (!arg.isEmpty()) {
+                jvmArgs.add(arg);
+            }
+        }
+
+        jvmArgs.add("-Dorg.lwjgl.opengl.libname=" + renderer.libName);
+        jvmArgs.add("-Dzomdroid.renderer=" + renderer.name());
+        jvmArgs.add("-Dzomboid.steam=0");
+        jvmArgs.add("-Dzomboid.znetlog=1");
+        jvmArgs.add("-XX:ErrorFile=/dev/stdout");
+
+        command.args.addAll(gameInstance.getArgsAsList());
+
+        command.ldLibraryPath = AppStorage.requireSingleton().getLibraryPath() + ":/system/lib64:"
+                + jreFolder + "/lib:" + jreFolder + "/lib/server:" + gameInstance.getJavaLibraryPath();
+        return command;
+    }
+
+    @Nullable
+    private static LaunchCommand readCache(Gson gson, File cacheFile) {
+        if (!cacheFile.isFile()) return null;
+        try {
+            return gson.fromJson(new String(Files.readAllBytes(cacheFile.toPath()), StandardCharsets.UTF_8),
+                    LaunchCommand.class);
+        } catch (IOException | JsonParseException e) {
+            Log.w(LOG_TAG, "Failed to read cached launch command", e);
+            return null;
+        }
+    }
+
+    static String sha256(String input) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest(input.getBytes(StandardCharsets.UTF_8))) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static String selectJreFolder(String homePath, LauncherPreferences.Renderer renderer) {
+        boolean preferJre21 = isLegacyRendererNeedingJre21(renderer);
+        String preferredPath = homePath + "/" + (preferJre21 ? C.deps.JRE_21 : C.deps.JRE_25);
+        if (new File(preferredPath).exists()) {
+            return preferredPath;
+        }
+        // Fallback to legacy JRE path if versioned folders don't exist yet
+        String legacyPath = homePath + "/" + C.deps.JRE_ROOT;
+        if (new File(legacyPath).exists()) {
+            return legacyPath;
+        }
+        return preferredPath;
+    }
+
+    private static boolean isLegacyRendererNeedingJre21(LauncherPreferences.Renderer renderer) {
+        return renderer == LauncherPreferences.Renderer.GL4ES;
+    }
+}
@@ -25,6 +25,8 @@ public class LauncherPreferences {
     private String jvmArgs = "";
     private String envVars = "";
     private boolean touchControlsEnabled = false;
+    private boolean gameFilesDeduplicationEnabled = false;
+    private boolean jvmAutoSizingEnabled = true;
 
     LauncherPreferences() {}
 
@@ -149,6 +151,24 @@ public class LauncherPreferences {
         saveToPreferences();
     }
 
+    public boolean isGameFilesDeduplicationEnabled() {
+        return gameFilesDeduplicationEnabled;
+    }
+
+    public void setGameFilesDeduplicationEnabled(boolean enabled) {
+        gameFilesDeduplicationEnabled = enabled;
+        saveToPreferences();
+    }
+
+    public boolean isJvmAutoSizingEnabled() {
+        return jvmAutoSizingEnabled;
+    }
+
+    public void setJvmAutoSizingEnabled(boolean enabled) {
+        jvmAutoSizingEnabled = enabled;
+        saveToPreferences();
+    }
+
     public static boolean isCustomDriverInstalled() {
         return new File(AppStorage.requireSingleton().getHomePath() + "/" + C.deps.CUSTOM_DRIVER).exists();
     }
@@ -0,0 +1,137 @@
+package com.zomdroid;
+
+import androidx.annotation.NonNull;
+
+import org.tukaani.xz.SeekableXZInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Decodes a multi-block XZ file with several threads while still returning the data in order.
+ * Blocks of an XZ file are independent, so each worker seeks to its own block and decodes it into a buffer,
+ * at most {@code threadCount} blocks are decoded ahead of the reader. Files with a single block or blocks too big
+ * to buffer are decoded serially
+ */
+class ParallelXZInputStream extends InputStream {
+    private static final long MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+    private final FileChannel channel;
+    private final long start;
+    private final long length;
+    private final long uncompressedSize;
+    private final int blockCount;
+    private final ExecutorService executor;
+    private final SeekableXZInputStream serialInStream;
+    private final ArrayDeque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+    private int nextBlock = 0;
+    private byte[] currentBlock;
+    private int currentBlockPos = 0;
+
+    ParallelXZInputStream(@NonNull FileChannel channel, long start, long length, int threadCount) throws IOException {
+        this.channel = channel;
+        this.start = start;
+        this.length = length;
+
+        SeekableXZInputStream xzInStream = new SeekableXZInputStream(new FileRegionInputStream(channel, start, length));
+        this.uncompressedSize = xzInStream.length();
+        this.blockCount = xzInStream.getBlockCount();
+
+        boolean canDecodeInParallel = this.blockCount > 1 && threadCount > 1;
+        for (int i = 0; i < this.blockCount && canDecodeInParallel; i++) {
+            if (xzInStream.getBlockSize(i) > MAX_BLOCK_SIZE) canDecodeInParallel = false;
+        }
+
+        if (canDecodeInParallel) {
+            xzInStream.close();
+            this.serialInStream = null;
+            this.executor = Executors.newFixedThreadPool(threadCount);
+            for (int i = 0; i < threadCount; i++) {
+                submitNextBlock();
+            }
+        } else {
+            this.serialInStream = xzInStream;
+            this.executor = null;
+        }
+    }
+
+    long getUncompressedSize() {
+        return uncompressedSize;
+    }
+
+    private void submitNextBlock() {
+        if (nextBlock >= blockCount) return;
+        final int block = nextBlock++;
+        pendingBlocks.add(executor.submit(() -> decodeBlock(block)));
+    }
+
+    private byte[] decodeBlock(int block) throws IOException {
+        try (SeekableXZInputStream xzInStream = new SeekableXZInputStream(new FileRegionInputStream(channel, start, length))) {
+            xzInStream.seekToBlock(block);
+            byte[] buffer = new byte[(int) xzInStream.getBlockSize(block)];
+            int offset = 0;
+            while (offset < buffer.length) {
+                int bytesRead = xzInStream.read(buffer, offset, buffer.length - offset);
+                if (bytesRead == -1) throw new IOException("Unexpected end of XZ block " + block);
+                offset += bytesRead;
+            }
+            return buffer;
+        }
+    }
+
+    private boolean nextBlockReady() throws IOException {
+        while (currentBlock == null || currentBlockPos >= currentBlock.length) {
+            Future<byte[]> pendingBlock = pendingBlocks.poll();
+            if (pendingBlock == null) return false;
+            try {
+                currentBlock = pendingBlock.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("XZ decoding was interrupted", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                throw new IOException(cause);
+            }
+            currentBlockPos = 0;
+            submitNextBlock();
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (serialInStream != null) return serialInStream.read();
+        if (!nextBlockReady()) return -1;
+        return currentBlock[currentBlockPos++] & 0xFF;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+        if (serialInStream != null) return serialInStream.read(b, off, len);
+        if (len == 0) return 0;
+        if (!nextBlockReady()) return -1;
+        int count = Math.min(len, currentBlock.length - currentBlockPos);
+        System.arraycopy(currentBlock, currentBlockPos, b, off, count);
+        currentBlockPos += count;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (serialInStream != null) serialInStream.close();
+        if (executor != null) {
+            for (Future<byte[]> pendingBlock : pendingBlocks) {
+                pendingBlock.cancel(true);
+            }
+            pendingBlocks.clear();
+            executor.shutdownNow();
+        }
+        currentBlock = null;
+    }
+}
@@ -0,0 +1,60 @@
+package com.zomdroid;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+
+/**
+ * Startup timeline shared with native code, which writes it as Chrome trace JSON into the instance home.
+ * Spans recorded before libzomdroid is loaded are kept here and handed over once the native side is available
+ */
+public class StartupTracer {
+    public static final String TRACE_FILENAME = "startup-trace.json";
+    private static final ArrayList<Span> pendingSpans = new ArrayList<>();
+    private static boolean isNativeLoaded = false;
+
+    private static class Span {
+        final String name;
+        final long startNs;
+        final long endNs;
+        final int tid;
+
+        Span(String name, long startNs, long endNs, int tid) {
+            this.name = name;
+            this.startNs = startNs;
+            this.endNs = endNs;
+            this.tid = tid;
+        }
+    }
+
+    /**
+     * Same clock as CLOCK_BOOTTIME used by the native tracer
+     */
+    public static long now() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    public static synchronized void span(@NonNull String name, long startNs, long endNs) {
+        if (isNativeLoaded) {
+            nativeAddSpan(name, startNs, endNs, Process.myTid());
+        } else {
+            pendingSpans.add(new Span(name, startNs, endNs, Process.myTid()));
+        }
+    }
+
+    /**
+     * Must be called right after libzomdroid is loaded
+     */
+    public static synchronized void onNativeLoaded() {
+        isNativeLoaded = true;
+        for (Span span : pendingSpans) {
+            nativeAddSpan(span.name, span.startNs, span.endNs, span.tid);
+        }
+        pendingSpans.clear();
+    }
+
+    private static native void nativeAddSpan(String name, long startNs, long endNs, int tid);
+}
@@ -1,5 +1,13 @@
 package com.zomdroid;
 
+import androidx.annotation.NonNull;
+
 public interface TaskProgressListener {
     void onProgressUpdate(String message, int progress, int progressMax);
+
+    /**
+     * Called alongside progress updates by tasks that collect {@link InstallStats}
+     */
+    default void onInstallStatsUpdate(@NonNull InstallStats stats) {
+    }
 }
@@ -25,8 +25,11 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.WindowInsets;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.PopupMenu;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -48,21 +51,32 @@ import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 import com.zomdroid.C;
 import com.zomdroid.GameActivity;
 import com.zomdroid.InstallerService;
+import com.zomdroid.LauncherPreferences;
 import com.zomdroid.R;
+import com.zomdroid.StartupTracer;
 
+import com.zomdroid.databinding.DialogLaunchProfileBinding;
 import com.zomdroid.databinding.FragmentLauncherBinding;
 import com.zomdroid.databinding.TaskProgressDialogBinding;
 import com.zomdroid.game.GameInstance;
 import com.zomdroid.game.GameInstanceManager;
+import com.zomdroid.game.LaunchProfile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Objects;
 
 public class LauncherFragment extends Fragment {
     private static final String LOG_TAG = LauncherFragment.class.getName();
+    private static final String ZIP_MIME = "application/zip";
+    private static final int MIN_PROFILE_HEAP_SIZE_MB = 512;
     private FragmentLauncherBinding binding;
     private RecyclerView.Adapter<?> adapter;
     private TaskProgressDialogBinding taskProgressDialogBinding;
     private BroadcastReceiver taskProgressReceiver;
     private AlertDialog taskProgressDialog;
     private boolean isInstallerServiceBound;
+    private ArrayList<GameInstance> shownGameInstances;
 
     private final ServiceConnection installerServiceConnection = new ServiceConnection() {
         @Override
@@ -87,7 +101,10 @@ public class LauncherFragment extends Fragment {
                 return;
             if (state.isFinished) {
                 adapter.notifyDataSetChanged();
-                taskProgressDialog.dismiss();
+                if (state.message != null)
+                    showTaskFinishedDialog(state.title, state.message);
+                else
+                    taskProgressDialog.dismiss();
                 unbindInstallerService();
                 requireContext().stopService(new Intent(requireContext(), InstallerService.class));
             } else if (state.isFinishedWithError) {
@@ -96,11 +113,33 @@ public class LauncherFragment extends Fragment {
                 unbindInstallerService();
                 requireContext().stopService(new Intent(requireContext(), InstallerService.class));
             } else {
+                // tasks can change the instance list before they finish, progress ticks alone don't need a rebind
+                ArrayList<GameInstance> gameInstances = GameInstanceManager.requireSingleton().getInstances();
+                if (!gameInstances.equals(shownGameInstances)) {
+                    shownGameInstances = new ArrayList<>(gameInstances);
+                    adapter.notifyDataSetChanged();
+                }
                 showTaskProgressDialog(state.title, state.message, state.progress, state.progressMax);
             }
         }
     };
 
+    private String resumeGameInstanceName;
+    private final ActivityResultLauncher<String> resumeInstallationLauncher = registerForActivityResult(new ActivityResultContracts.GetContent(),
+            uri -> {
+                if (uri == null || resumeGameInstanceName == null) return;
+                if (!Objects.equals(requireContext().getContentResolver().getType(uri), ZIP_MIME)) {
+                    Toast.makeText(requireContext(), R.string.game_instance_unsupported_extension, Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                Intent installerIntent = new Intent(requireContext(), InstallerService.class);
+                installerIntent.putExtra(InstallerService.EXTRA_COMMAND, InstallerService.Task.CREATE_GAME_INSTANCE.ordinal());
+                installerIntent.putExtra(InstallerService.EXTRA_GAME_INSTANCE_NAME, resumeGameInstanceName);
+                installerIntent.putExtra(InstallerService.EXTRA_ARCHIVE_URI, uri);
+                requireContext().startForegroundService(installerIntent);
+                resumeGameInstanceName = null;
+            });
+
     private ActivityResultLauncher<String> requestPermissionLauncher =
             registerForActivityResult(new ActivityResultContracts.RequestPermission(), isGranted -> {
                 if (!isGranted) {
@@ -179,6 +218,7 @@ public class LauncherFragment extends Fragment {
                     Intent intent = new Intent(requireContext(), GameActivity.class);
                     intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
                     intent.putExtra(GameActivity.EXTRA_GAME_INSTANCE_NAME, gameInstance.getName());
+                    intent.putExtra(GameActivity.EXTRA_LAUNCH_REQUESTED_NS, StartupTracer.now());
                     startActivity(intent);
                     requireActivity().finish();
                 });
@@ -186,6 +226,12 @@ public class LauncherFragment extends Fragment {
                 settingsIb.setOnClickListener(v -> {
                     PopupMenu popupMenu = new PopupMenu(requireContext(), v);
                     popupMenu.getMenuInflater().inflate(R.menu.menu_game_instance, popupMenu.getMenu());
+                    popupMenu.getMenu().findItem(R.id.action_game_instance_resume_installation)
+                            .setVisible(!gameInstance.isInstallationFinished());
+                    popupMenu.getMenu().findItem(R.id.action_game_instance_clone)
+                            .setVisible(gameInstance.isInstallationFinished());
+                    popupMenu.getMenu().findItem(R.id.action_game_instance_verify)
+                            .setVisible(gameInstance.isInstallationFinished());
 
                     popupMenu.setOnMenuItemClickListener(new PopupMenu.OnMenuItemClickListener() {
                         @Override
@@ -200,6 +246,18 @@ public class LauncherFragment extends Fragment {
                                 intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
                                 Intent chooserIntent = Intent.createChooser(intent, null);
                                 startActivity(chooserIntent);
+                            } else if (itemId == R.id.action_game_instance_resume_installation) {
+                                resumeGameInstanceName = gameInstance.getName();
+                                resumeInstallationLauncher.launch(ZIP_MIME);
+                            } else if (itemId == R.id.action_game_instance_clone) {
+                                showCloneGameInstanceDialog(gameInstance);
+                            } else if (itemId == R.id.action_game_instance_launch_profile) {
+                                showLaunchProfileDialog(gameInstance);
+                            } else if (itemId == R.id.action_game_instance_verify) {
+                                Intent installerIntent = new Intent(requireContext(), InstallerService.class);
+                                installerIntent.putExtra(InstallerService.EXTRA_COMMAND, InstallerService.Task.VERIFY_GAME_INSTANCE.ordinal());
+                                installerIntent.putExtra(InstallerService.EXTRA_GAME_INSTANCE_NAME, gameInstance.getName());
+                                requireContext().startForegroundService(installerIntent);
                             } else if (itemId == R.id.action_game_instance_delete) {
                                 new MaterialAlertDialogBuilder(requireContext())
                                         .setTitle(R.string.dialog_title_delete_game_instance)
@@ -313,6 +371,122 @@ public class LauncherFragment extends Fragment {
         legalNoticeDialog.show();
     }
 
+    private void showCloneGameInstanceDialog(GameInstance gameInstance) {
+        EditText nameEt = new EditText(requireContext());
+        nameEt.setSingleLine(true);
+        nameEt.setHint(R.string.game_instance_name);
+        AlertDialog dialog = new MaterialAlertDialogBuilder(requireContext())
+                .setTitle(R.string.dialog_title_clone_game_instance)
+                .setView(nameEt)
+                .setCancelable(true)
+                .setPositiveButton(R.string.dialog_button_confirm, null)
+                .setNegativeButton(R.string.dialog_button_cancel, null)
+                .create();
+        // validate before dismissing so a typo doesn't throw the input away
+        dialog.setOnShowListener(d -> dialog.getButton(AlertDialog.BUTTON_POSITIVE).setOnClickListener(v -> {
+            String name = nameEt.getText().toString();
+            if (!GameInstance.isValidName(name)) {
+                Toast.makeText(requireContext(), R.string.game_instance_name_invalid, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            if (!GameInstance.isUniqueName(name)) {
+                Toast.makeText(requireContext(), R.string.game_instance_name_already_exists, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            Intent installerIntent = new Intent(requireContext(), InstallerService.class);
+            installerIntent.putExtra(InstallerService.EXTRA_COMMAND, InstallerService.Task.CLONE_GAME_INSTANCE.ordinal());
+            installerIntent.putExtra(InstallerService.EXTRA_GAME_INSTANCE_NAME, gameInstance.getName());
+            installerIntent.putExtra(InstallerService.EXTRA_NEW_GAME_INSTANCE_NAME, name);
+            requireContext().startForegroundService(installerIntent);
+            dialog.dismiss();
+        }));
+        dialog.show();
+    }
+
+    private void showLaunchProfileDialog(GameInstance gameInstance) {
+        LauncherPreferences prefs = LauncherPreferences.requireSingleton();
+        LaunchProfile profile = new LaunchProfile(gameInstance.getLaunchProfile());
+        DialogLaunchProfileBinding dialogBinding = DialogLaunchProfileBinding.inflate(getLayoutInflater());
+
+        setUpInheritableSpinner(dialogBinding.launchProfileRendererS, LauncherPreferences.Renderer.values(),
+                profile.getRenderer());
+        setUpInheritableSpinner(dialogBinding.launchProfileVulkanDriverS, LauncherPreferences.VulkanDriver.values(),
+                profile.getVulkanDriver());
+        setUpInheritableSpinner(dialogBinding.launchProfileGcS, LaunchProfile.GarbageCollector.values(),
+                profile.getGarbageCollector());
+        if (profile.getHeapSizeMb() != null) {
+            dialogBinding.launchProfileHeapSizeEt.setText(String.valueOf(profile.getHeapSizeMb()));
+        }
+
+        // switched off fields show launcher-wide values read-only
+        dialogBinding.launchProfileJvmArgsSwitch.setChecked(profile.getJvmArgs() != null);
+        dialogBinding.launchProfileJvmArgsEt.setText(profile.resolveJvmArgs(prefs));
+        dialogBinding.launchProfileJvmArgsEt.setEnabled(profile.getJvmArgs() != null);
+        dialogBinding.launchProfileJvmArgsSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            dialogBinding.launchProfileJvmArgsEt.setEnabled(isChecked);
+            if (!isChecked) dialogBinding.launchProfileJvmArgsEt.setText(prefs.getJvmArgs());
+        });
+        dialogBinding.launchProfileEnvVarsSwitch.setChecked(profile.getEnvVars() != null);
+        dialogBinding.launchProfileEnvVarsEt.setText(profile.resolveEnvVars(prefs));
+        dialogBinding.launchProfileEnvVarsEt.setEnabled(profile.getEnvVars() != null);
+        dialogBinding.launchProfileEnvVarsSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            dialogBinding.launchProfileEnvVarsEt.setEnabled(isChecked);
+            if (!isChecked) dialogBinding.launchProfileEnvVarsEt.setText(prefs.getEnvVars());
+        });
+
+        AlertDialog dialog = new MaterialAlertDialogBuilder(requireContext())
+                .setTitle(R.string.dialog_title_launch_profile)
+                .setView(dialogBinding.getRoot())
+                .setCancelable(true)
+                .setPositiveButton(R.string.dialog_button_save, null)
+                .setNegativeButton(R.string.dialog_button_cancel, null)
+                .create();
+        dialog.setOnShowListener(d -> dialog.getButton(AlertDialog.BUTTON_POSITIVE).setOnClickListener(v -> {
+            String heapSize = dialogBinding.launchProfileHeapSizeEt.getText().toString().trim();
+            if (heapSize.isEmpty()) {
+                profile.setHeapSizeMb(null);
+            } else {
+                int heapSizeMb;
+                try {
+                    heapSizeMb = Integer.parseInt(heapSize);
+                } catch (NumberFormatException e) {
+                    heapSizeMb = 0;
+                }
+                if (heapSizeMb < MIN_PROFILE_HEAP_SIZE_MB) {
+                    Toast.makeText(requireContext(), getString(R.string.launch_profile_heap_size_invalid,
+                            MIN_PROFILE_HEAP_SIZE_MB), Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                profile.setHeapSizeMb(heapSizeMb);
+            }
+            profile.setRenderer((LauncherPreferences.Renderer) getInheritableSpinnerValue(dialogBinding.launchProfileRendererS));
+            profile.setVulkanDriver((LauncherPreferences.VulkanDriver) getInheritableSpinnerValue(dialogBinding.launchProfileVulkanDriverS));
+            profile.setGarbageCollector((LaunchProfile.GarbageCollector) getInheritableSpinnerValue(dialogBinding.launchProfileGcS));
+            profile.setJvmArgs(dialogBinding.launchProfileJvmArgsSwitch.isChecked()
+                    ? dialogBinding.launchProfileJvmArgsEt.getText().toString() : null);
+            profile.setEnvVars(dialogBinding.launchProfileEnvVarsSwitch.isChecked()
+                    ? dialogBinding.launchProfileEnvVarsEt.getText().toString() : null);
+            GameInstanceManager.requireSingleton().setLaunchProfile(gameInstance, profile);
+            dialog.dismiss();
+        }));
+        dialog.show();
+    }
+
+    /**
+     * First item stands for "use launcher setting" and maps to null
+     */
+    private void setUpInheritableSpinner(Spinner spinner, Object[] values, Object selected) {
+        ArrayList<Object> items = new ArrayList<>();
+        items.add(getString(R.string.launch_profile_inherit));
+        items.addAll(Arrays.asList(values));
+        spinner.setAdapter(new ArrayAdapter<>(requireContext(), android.R.layout.simple_spinner_dropdown_item, items));
+        spinner.setSelection(selected == null ? 0 : items.indexOf(selected));
+    }
+
+    private Object getInheritableSpinnerValue(Spinner spinner) {
+        return spinner.getSelectedItemPosition() > 0 ? spinner.getSelectedItem() : null;
+    }
+
     private void requestNotificationPermission() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
                 && ActivityCompat.checkSelfPermission(requireContext(), Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
@@ -201,6 +201,16 @@ public class SettingsFragment extends Fragment {
         binding.settingsDebugSwitch.setOnCheckedChangeListener((v, isChecked) ->
                 LauncherPreferences.requireSingleton().setDebug(isChecked));
 
+        // Game files deduplication
+        binding.settingsDedupSwitch.setChecked(LauncherPreferences.requireSingleton().isGameFilesDeduplicationEnabled());
+        binding.settingsDedupSwitch.setOnCheckedChangeListener((v, isChecked) ->
+                LauncherPreferences.requireSingleton().setGameFilesDeduplicationEnabled(isChecked));
+
+        // JVM auto sizing
+        binding.settingsJvmAutoSizingSwitch.setChecked(LauncherPreferences.requireSingleton().isJvmAutoSizingEnabled());
+        binding.settingsJvmAutoSizingSwitch.setOnCheckedChangeListener((v, isChecked) ->
+                LauncherPreferences.requireSingleton().setJvmAutoSizingEnabled(isChecked));
+
         // Controller config
         binding.settingsControllerConfigMb.setOnClickListener(v ->
                 Navigation.findNavController(v).navigate(R.id.action_settings_to_controller_config));
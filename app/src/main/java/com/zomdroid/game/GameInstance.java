@@ -1,6 +1,9 @@
 package com.zomdroid.game;
 
+import androidx.annotation.NonNull;
+
 import com.zomdroid.AppStorage;
+import com.zomdroid.C;
 import com.zomdroid.FileUtils;
 
 import java.io.File;
@@ -12,8 +15,11 @@ import java.util.StringJoiner;
 public class GameInstance {
     private static final String INSTANCES_ROOT_DIR_NAME = "instances";
     public static final String GAME_FILES_DIR_NAME = "game";
+    public static final String INSTALLATION_COMMIT_FILENAME = "install.commit";
+    public static final String GAME_CLASSES_JAR_FILENAME = "game-classes.jar";
 
     private String name;
+    private String presetName;
     private String homePath;
     private boolean installationFinished = false;
     private String[] classPath;
@@ -26,10 +32,12 @@ public class GameInstance {
     private String mainClassName;
     private String javaAgentPath;
     private String javaAgentArgs;
+    private LaunchProfile launchProfile;
 
     public GameInstance(String name, InstallationPreset preset) throws FileSystemException {
         this.name = name;
         makeDirs();
+        this.presetName = preset.name;
         this.classPath = preset.classPathArray;
         this.extraClassPath = preset.extraJars;
         this.libraryPath = preset.libraryPathArray;
@@ -42,6 +50,26 @@ public class GameInstance {
         this.javaAgentArgs = preset.javaAgentArgs;
     }
 
+    /**
+     * New instance with the same launch configuration as {@code source}, game files are not copied
+     */
+    public GameInstance(String name, GameInstance source) throws FileSystemException {
+        this.name = name;
+        makeDirs();
+        this.presetName = source.getPresetName();
+        this.classPath = source.classPath;
+        this.extraClassPath = source.extraClassPath;
+        this.libraryPath = source.libraryPath;
+        this.libraryPathForEmulation = source.libraryPathForEmulation;
+        this.fmodLibraryPath = source.fmodLibraryPath;
+        this.extraJvmArgs = source.extraJvmArgs;
+        this.args = source.args;
+        this.mainClassName = source.mainClassName;
+        this.javaAgentPath = source.javaAgentPath;
+        this.javaAgentArgs = source.javaAgentArgs;
+        this.launchProfile = new LaunchProfile(source.getLaunchProfile());
+    }
+
     private static String buildHomePath(String name) {
         return AppStorage.requireSingleton().getHomePath() + "/" + INSTANCES_ROOT_DIR_NAME + "/" + name;
     }
@@ -58,6 +86,23 @@ public class GameInstance {
         return this.name;
     }
 
+    public String getPresetName() {
+        if (this.presetName != null) return this.presetName;
+        // instances created before the preset was recorded, builds ship different FMOD versions
+        return C.deps.LIBS_FMOD_20224.equals(this.fmodLibraryPath) ? PresetManager.BUILD_42 : PresetManager.BUILD_41;
+    }
+
+    @NonNull
+    public LaunchProfile getLaunchProfile() {
+        // instances created before launch profiles existed don't have one
+        if (this.launchProfile == null) this.launchProfile = new LaunchProfile();
+        return this.launchProfile;
+    }
+
+    protected void setLaunchProfile(@NonNull LaunchProfile launchProfile) {
+        this.launchProfile = launchProfile;
+    }
+
     public String getHomePath() {
         return this.homePath;
     }
@@ -99,7 +144,7 @@ public class GameInstance {
         for (String path : this.extraClassPath) {
             jarsJoiner.add(AppStorage.requireSingleton().getHomePath() + "/" + path);
         }
-        jvmArgsList.add("-Djava.class.path=" + String.join(":", this.classPath) + ":" + jarsJoiner);
+        jvmArgsList.add("-Djava.class.path=" + String.join(":", getResolvedClassPath()) + ":" + jarsJoiner);
 
         jvmArgsList.addAll(Arrays.asList(this.extraJvmArgs));
 
@@ -115,6 +160,48 @@ public class GameInstance {
         return jvmArgsList;
     }
 
+    /**
+     * Everything classes are loaded from: classpath relative to game directory, extra jars and java agent
+     */
+    public ArrayList<File> getClassPathFiles() {
+        ArrayList<File> files = new ArrayList<>();
+        for (String path : getResolvedClassPath()) {
+            File file = new File(path);
+            files.add(file.isAbsolute() ? file : new File(getGamePath() + "/" + path));
+        }
+        for (String path : this.extraClassPath) {
+            files.add(new File(AppStorage.requireSingleton().getHomePath() + "/" + path));
+        }
+        if (!this.javaAgentPath.isEmpty()) {
+            files.add(new File(AppStorage.requireSingleton().getHomePath() + "/" + this.javaAgentPath));
+        }
+        return files;
+    }
+
+    /**
+     * Loose game classes packed into a jar, so class data sharing can archive them. Kept out of the game directory,
+     * whose files installs, verification and clones keep track of
+     */
+    public String getGameClassesJarPath() {
+        return this.homePath + "/" + GAME_CLASSES_JAR_FILENAME;
+    }
+
+    public boolean hasGameClassesJar() {
+        return new File(getGameClassesJarPath()).isFile();
+    }
+
+    /**
+     * Classpath relative to game directory, with the game classes jar in place of "." once it is packed
+     */
+    private ArrayList<String> getResolvedClassPath() {
+        boolean hasGameClassesJar = hasGameClassesJar();
+        ArrayList<String> paths = new ArrayList<>();
+        for (String path : this.classPath) {
+            paths.add(hasGameClassesJar && path.equals(".") ? getGameClassesJarPath() : path);
+        }
+        return paths;
+    }
+
     public ArrayList<String> getArgsAsList() {
         return new ArrayList<>(Arrays.asList(this.args));
     }
@@ -136,6 +223,13 @@ public class GameInstance {
         }
     }
 
+    /**
+     * Marker written only after all game files were flushed to storage, see InstallerService
+     */
+    public File getInstallationCommitFile() {
+        return new File(this.homePath + "/" + INSTALLATION_COMMIT_FILENAME);
+    }
+
     public boolean isInstallationFinished() {
         return this.installationFinished;
     }
@@ -144,6 +238,10 @@ public class GameInstance {
         this.installationFinished = true;
     }
 
+    protected void markInstallationUnfinished() {
+        this.installationFinished = false;
+    }
+
     public boolean hasGameFiles() {
         File mainClassFile = new File(getGamePath() + "/" + getMainClassName() + ".class");
         return mainClassFile.exists();
@@ -72,6 +72,16 @@ public class GameInstanceManager {
         saveToPreferences();
     }
 
+    public void setLaunchProfile(@NonNull GameInstance gameInstance, @NonNull LaunchProfile launchProfile) {
+        gameInstance.setLaunchProfile(launchProfile);
+        saveToPreferences();
+    }
+
+    public void markInstallationUnfinished(@NonNull GameInstance gameInstance) {
+        gameInstance.markInstallationUnfinished();
+        saveToPreferences();
+    }
+
     private void loadFromPreferences() {
         String json = this.sharedPreferences.getString(C.shprefs.keys.GAME_INSTANCES, null);
         if (json != null) {
@@ -86,6 +96,10 @@ public class GameInstanceManager {
                     if (isInstalled) instance.markInstallationFinished();
                 }
 
+                // installation was committed, but the finished flag didn't make it to preferences
+                if (!instance.isInstallationFinished() && instance.getInstallationCommitFile().isFile())
+                    instance.markInstallationFinished();
+
                 gameInstances.add(instance);
             }
         }
@@ -0,0 +1,115 @@
+package com.zomdroid.game;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.zomdroid.LauncherPreferences;
+
+/**
+ * Launch settings of a single instance. Fields left null fall back to launcher-wide preferences
+ */
+public class LaunchProfile {
+    private LauncherPreferences.Renderer renderer;
+    private LauncherPreferences.VulkanDriver vulkanDriver;
+    private Integer heapSizeMb;
+    private GarbageCollector garbageCollector;
+    private String jvmArgs;
+    private String envVars;
+
+    public LaunchProfile() {}
+
+    public LaunchProfile(@NonNull LaunchProfile source) {
+        this.renderer = source.renderer;
+        this.vulkanDriver = source.vulkanDriver;
+        this.heapSizeMb = source.heapSizeMb;
+        this.garbageCollector = source.garbageCollector;
+        this.jvmArgs = source.jvmArgs;
+        this.envVars = source.envVars;
+    }
+
+    @Nullable
+    public LauncherPreferences.Renderer getRenderer() {
+        return renderer;
+    }
+
+    public void setRenderer(@Nullable LauncherPreferences.Renderer renderer) {
+        this.renderer = renderer;
+    }
+
+    @Nullable
+    public LauncherPreferences.VulkanDriver getVulkanDriver() {
+        return vulkanDriver;
+    }
+
+    public void setVulkanDriver(@Nullable LauncherPreferences.VulkanDriver vulkanDriver) {
+        this.vulkanDriver = vulkanDriver;
+    }
+
+    @Nullable
+    public Integer getHeapSizeMb() {
+        return heapSizeMb;
+    }
+
+    public void setHeapSizeMb(@Nullable Integer heapSizeMb) {
+        this.heapSizeMb = heapSizeMb;
+    }
+
+    @Nullable
+    public GarbageCollector getGarbageCollector() {
+        return garbageCollector;
+    }
+
+    public void setGarbageCollector(@Nullable GarbageCollector garbageCollector) {
+        this.garbageCollector = garbageCollector;
+    }
+
+    @Nullable
+    public String getJvmArgs() {
+        return jvmArgs;
+    }
+
+    public void setJvmArgs(@Nullable String jvmArgs) {
+        this.jvmArgs = jvmArgs;
+    }
+
+    @Nullable
+    public String getEnvVars() {
+        return envVars;
+    }
+
+    public void setEnvVars(@Nullable String envVars) {
+        this.envVars = envVars;
+    }
+
+    @NonNull
+    public LauncherPreferences.Renderer resolveRenderer(@NonNull LauncherPreferences prefs) {
+        return renderer != null ? renderer : prefs.getRenderer();
+    }
+
+    @NonNull
+    public LauncherPreferences.VulkanDriver resolveVulkanDriver(@NonNull LauncherPreferences prefs) {
+        return vulkanDriver != null ? vulkanDriver : prefs.getVulkanDriver();
+    }
+
+    @NonNull
+    public String resolveJvmArgs(@NonNull LauncherPreferences prefs) {
+        return jvmArgs != null ? jvmArgs : prefs.getJvmArgs();
+    }
+
+    @NonNull
+    public String resolveEnvVars(@NonNull LauncherPreferences prefs) {
+        return envVars != null ? envVars : prefs.getEnvVars();
+    }
+
+    public enum GarbageCollector {
+        SERIAL("-XX:+UseSerialGC"),
+        PARALLEL("-XX:+UseParallelGC"),
+        G1("-XX:+UseG1GC");
+
+        public final String jvmArg;
+
+        GarbageCollector(String jvmArg) {
+            this.jvmArg = jvmArg;
+        }
+    }
+}
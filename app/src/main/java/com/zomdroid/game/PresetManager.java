@@ -5,11 +5,13 @@ import com.zomdroid.C;
 import java.util.ArrayList;
 
 public class PresetManager {
+    public static final String BUILD_42 = "Build 42";
+    public static final String BUILD_41 = "Build 41";
     private static final ArrayList<InstallationPreset> presets = new ArrayList<>();
 
     static {
         presets.add(new InstallationPreset.Builder()
-                .setName("Build 42")
+                .setName(BUILD_42)
                 .setClassPathArray(new String[]{
                         ".",
                         "commons-compress-1.27.1.jar",
@@ -55,7 +57,7 @@ public class PresetManager {
         );
 
         presets.add(new InstallationPreset.Builder()
-                .setName("Build 41")
+                .setName(BUILD_41)
                 .setClassPathArray(new String[]{
                         ".",
                         "commons-compress-1.18.jar",
@@ -0,0 +1,142 @@
+package com.zomdroid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZInputStream;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+public class ParallelXZInputStreamTest {
+    // stands in for the APK bytes in front of an uncompressed asset
+    private static final int REGION_OFFSET = 4099;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void multiBlockMatchesSerialDecoder() throws IOException {
+        byte[] data = generateData(1024 * 1024 + 123);
+        for (int blockSize : new int[]{4096, 65536 + 17, 256 * 1024}) {
+            byte[] xz = compress(data, blockSize);
+            for (int threadCount : new int[]{2, 4}) {
+                assertDecodesToSerial(xz, threadCount, 8191);
+            }
+        }
+    }
+
+    @Test
+    public void singleBlockMatchesSerialDecoder() throws IOException {
+        byte[] data = generateData(512 * 1024 + 5);
+        byte[] xz = compress(data, Integer.MAX_VALUE);
+        assertDecodesToSerial(xz, 4, 8191);
+    }
+
+    @Test
+    public void singleThreadMatchesSerialDecoder() throws IOException {
+        byte[] data = generateData(300 * 1024);
+        byte[] xz = compress(data, 4096);
+        assertDecodesToSerial(xz, 1, 8191);
+    }
+
+    @Test
+    public void readsAcrossBlockBoundaries() throws IOException {
+        byte[] data = generateData(200 * 1024 + 3);
+        byte[] xz = compress(data, 4096);
+        // chunk sizes that don't divide the block size, so most reads straddle a boundary
+        for (int chunkSize : new int[]{1, 3, 4095, 4097, 10000}) {
+            assertDecodesToSerial(xz, 3, chunkSize);
+        }
+    }
+
+    @Test
+    public void singleByteReadsMatchSerialDecoder() throws IOException {
+        byte[] data = generateData(64 * 1024 + 1);
+        byte[] xz = compress(data, 1000);
+        try (FileChannel channel = writeRegion(xz);
+             ParallelXZInputStream inStream = new ParallelXZInputStream(channel, REGION_OFFSET, xz.length, 4)) {
+            assertEquals(data.length, inStream.getUncompressedSize());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int b;
+            while ((b = inStream.read()) != -1) {
+                out.write(b);
+            }
+            assertArrayEquals(decodeSerial(xz), out.toByteArray());
+        }
+    }
+
+    private void assertDecodesToSerial(byte[] xz, int threadCount, int chunkSize) throws IOException {
+        byte[] expected = decodeSerial(xz);
+        try (FileChannel channel = writeRegion(xz);
+             ParallelXZInputStream inStream = new ParallelXZInputStream(channel, REGION_OFFSET, xz.length, threadCount)) {
+            assertEquals(expected.length, inStream.getUncompressedSize());
+            assertArrayEquals(expected, readAll(inStream, chunkSize));
+        }
+    }
+
+    private FileChannel writeRegion(byte[] xz) throws IOException {
+        File file = tempFolder.newFile();
+        byte[] content = new byte[REGION_OFFSET + xz.length + 100];
+        new Random(1).nextBytes(content);
+        System.arraycopy(xz, 0, content, REGION_OFFSET, xz.length);
+        Files.write(file.toPath(), content);
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    private static byte[] decodeSerial(byte[] xz) throws IOException {
+        try (XZInputStream inStream = new XZInputStream(new ByteArrayInputStream(xz))) {
+            return readAll(inStream, 8192);
+        }
+    }
+
+    private static byte[] readAll(InputStream inStream, int chunkSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[chunkSize];
+        int bytesRead;
+        while ((bytesRead = inStream.read(buffer, 0, buffer.length)) != -1) {
+            out.write(buffer, 0, bytesRead);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] compress(byte[] data, int blockSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (XZOutputStream xzOutStream = new XZOutputStream(out, new LZMA2Options(1))) {
+            for (int offset = 0; offset < data.length; offset += blockSize) {
+                xzOutStream.write(data, offset, (int) Math.min(blockSize, (long) data.length - offset));
+                if ((long) offset + blockSize < data.length) xzOutStream.endBlock();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /** Mix of compressible text-like runs and random bytes */
+    private static byte[] generateData(int size) {
+        Random random = new Random(size);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; ) {
+            int run = Math.min(size - i, 1 + random.nextInt(512));
+            if (random.nextBoolean()) {
+                byte value = (byte) ('a' + random.nextInt(26));
+                for (int j = 0; j < run; j++) data[i + j] = value;
+            } else {
+                for (int j = 0; j < run; j++) data[i + j] = (byte) random.nextInt(256);
+            }
+            i += run;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,154 @@
+package com.zomdroid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+
+/**
+ * Times streamed zip extraction of a synthetic archive shaped like the game files: tens of thousands of small files
+ * spread over nested directories. {@link FileUtils#extractZipToDisk} is compared against the extraction loop it
+ * replaced, which allocated a 1M output buffer per entry and checked parent directories for every file.
+ * Skipped unless ZOMDROID_BENCHMARK is set, e.g.
+ * {@code ZOMDROID_BENCHMARK=1 ./gradlew :app:testDebugUnitTest --tests com.zomdroid.ZipExtractionBenchmark -i}.
+ * ZOMDROID_BENCHMARK_FILES overrides the entry count
+ */
+public class ZipExtractionBenchmark {
+    private static final int DEFAULT_FILE_COUNT = 50_000;
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int MEASURED_ROUNDS = 5;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void extractSmallFiles() throws IOException {
+        assumeTrue(System.getenv("ZOMDROID_BENCHMARK") != null);
+        String fileCountEnv = System.getenv("ZOMDROID_BENCHMARK_FILES");
+        int fileCount = fileCountEnv != null ? Integer.parseInt(fileCountEnv) : DEFAULT_FILE_COUNT;
+
+        File zip = tempFolder.newFile("game.zip");
+        generateZip(zip, fileCount);
+        System.out.printf("archive: %d files, %.1f MB%n", fileCount, zip.length() / 1e6);
+
+        File baselineDest = tempFolder.newFolder("baseline");
+        File currentDest = tempFolder.newFolder("current");
+        long[] baselineNanos = new long[MEASURED_ROUNDS];
+        long[] currentNanos = new long[MEASURED_ROUNDS];
+        // interleaved, so page cache and JIT state affect both loops alike
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            long baseline = timeExtraction(zip, baselineDest, true);
+            long current = timeExtraction(zip, currentDest, false);
+            if (round >= WARMUP_ROUNDS) {
+                baselineNanos[round - WARMUP_ROUNDS] = baseline;
+                currentNanos[round - WARMUP_ROUNDS] = current;
+            }
+        }
+        System.out.printf("baseline: median %.2f s%n", median(baselineNanos) / 1e9);
+        System.out.printf("current:  median %.2f s%n", median(currentNanos) / 1e9);
+
+        assertSameTree(baselineDest, currentDest);
+    }
+
+    private static long timeExtraction(File zip, File dest, boolean isBaseline) throws IOException {
+        FileUtils.deleteDirectory(dest);
+        long startNanos = System.nanoTime();
+        try (InputStream inStream = new FileInputStream(zip)) {
+            if (isBaseline) extractZipBaseline(inStream, dest.getPath());
+            else FileUtils.extractZipToDisk(inStream, dest.getPath(), null, zip.length());
+        }
+        return System.nanoTime() - startNanos;
+    }
+
+    /** Extraction loop as it was before directories were cached and copy buffers reused */
+    private static void extractZipBaseline(InputStream inStream, String destPath) throws IOException {
+        ZipArchiveInputStream zipArchiveInStream = new ZipArchiveInputStream(new BufferedInputStream(inStream, 1024 * 1024));
+        ZipArchiveEntry entry;
+        while ((entry = zipArchiveInStream.getNextEntry()) != null) {
+            File file = new File(destPath + "/" + entry.getName());
+            if (entry.isDirectory()) {
+                makeDirectoriesBaseline(file);
+                continue;
+            }
+            File parent = file.getParentFile();
+            if (parent != null) makeDirectoriesBaseline(parent);
+            Files.deleteIfExists(file.toPath());
+            try (OutputStream fileOutStream = new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024)) {
+                IOUtils.copy(zipArchiveInStream, fileOutStream);
+            }
+        }
+    }
+
+    private static void makeDirectoriesBaseline(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Failed to create directory " + directory);
+        }
+    }
+
+    /** Mostly small compressible files, 40 per directory three levels deep, like media/ of the game */
+    private static void generateZip(File zip, int fileCount) throws IOException {
+        Random random = new Random(fileCount);
+        try (ZipArchiveOutputStream zipOutStream = new ZipArchiveOutputStream(zip)) {
+            for (int i = 0; i < fileCount; i++) {
+                String name = String.format("media/d%d/d%d/file%d.txt", i / 4000, (i / 40) % 100, i);
+                int size = random.nextInt(10) == 0 ? 16 * 1024 + random.nextInt(64 * 1024) : 256 + random.nextInt(4096);
+                byte[] content = new byte[size];
+                for (int j = 0; j < size; j++) {
+                    content[j] = (byte) (random.nextInt(4) == 0 ? random.nextInt(256) : 'a' + j % 26);
+                }
+                ZipArchiveEntry entry = new ZipArchiveEntry(name);
+                entry.setMethod(ZipEntry.DEFLATED);
+                zipOutStream.putArchiveEntry(entry);
+                zipOutStream.write(content);
+                zipOutStream.closeArchiveEntry();
+            }
+        }
+    }
+
+    private static void assertSameTree(File expectedDir, File actualDir) throws IOException {
+        ArrayList<String> expected = listFiles(expectedDir);
+        ArrayList<String> actual = listFiles(actualDir);
+        assertEquals(expected, actual);
+        for (String name : expected) {
+            assertArrayEquals(name, Files.readAllBytes(new File(expectedDir, name).toPath()),
+                    Files.readAllBytes(new File(actualDir, name).toPath()));
+        }
+    }
+
+    private static ArrayList<String> listFiles(File root) throws IOException {
+        ArrayList<String> names = new ArrayList<>();
+        try (var paths = Files.walk(root.toPath())) {
+            paths.filter(Files::isRegularFile).forEach(path -> names.add(root.toPath().relativize(path).toString()));
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,57 @@
+#include <stdio.h>
+#include <stdlib.h>
+#include <time.h>
+
+#include "trampoline.h"
+
+/*
+ * Trampolines are assembled once per bridged JNI symbol, on the thread that first calls it. Prints how many of each
+ * kind get assembled per second, pass the iteration count as the first argument
+ */
+
+static const char* SIGNATURES[] = {
+        "pp", "ppi", "ppIdfC", "ppwWcCpI", "pppppppppppp", "ppffffffffffdd", "ppdddddddddddddddddd",
+        "ppIIIIIIIIIIddddddddddffff", "ppiIiIiIiIfdfdfdfdfdfd", "ppiiiiiiiiiiiifdfdfdfdfdfdfdfdfdfd",
+};
+// direct trampolines only exist for signatures that leave a general purpose register free
+static const char* DIRECT_SIGNATURES[] = {"pp", "ppi", "ppIdfC", "ppiIfdf", "ppiiiii"};
+
+#define ARRAY_SIZE(a) ((int) (sizeof(a) / sizeof((a)[0])))
+
+static double now_s(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (double) ts.tv_sec + (double) ts.tv_nsec / 1e9;
+}
+
+static void bench(const char* name, int direct, const char** signatures, int signature_count, long iterations) {
+    static uint32_t code[TRAMPOLINE_MAX_INSNS];
+    volatile uint32_t sink = 0;
+    long total_insns = 0;
+    double start = now_s();
+    for (long i = 0; i < iterations; i++) {
+        const char* signature = signatures[i % signature_count];
+        int insn_count;
+        int result = direct
+                ? zomdroid_trampoline_assemble_direct(code, TRAMPOLINE_MAX_INSNS, &insn_count, signature,
+                                                      (uint64_t) i, 2, 3)
+                : zomdroid_trampoline_assemble(code, TRAMPOLINE_MAX_INSNS, &insn_count, signature,
+                                               (uint64_t) i, 2, 3);
+        if (result != 0) {
+            fprintf(stderr, "%s: failed to assemble %s\n", name, signature);
+            exit(1);
+        }
+        sink ^= code[insn_count - 1];
+        total_insns += insn_count;
+    }
+    double elapsed = now_s() - start;
+    printf("%-9s %10.0f trampolines/s, %.1f instructions each\n", name, (double) iterations / elapsed,
+           (double) total_insns / (double) iterations);
+}
+
+int main(int argc, char** argv) {
+    long iterations = argc > 1 ? atol(argv[1]) : 2000000;
+    bench("generic", 0, SIGNATURES, ARRAY_SIZE(SIGNATURES), iterations);
+    bench("direct", 1, DIRECT_SIGNATURES, ARRAY_SIZE(DIRECT_SIGNATURES), iterations);
+    return 0;
+}
@@ -0,0 +1,182 @@
+#include <stdio.h>
+
+#include "trampoline.h"
+
+/*
+ * Checks emitted AArch64 words against known good encodings. Expected words were produced by the assembler this one
+ * replaced, so a mismatch means generated trampolines changed, not just their count
+ */
+
+#define EMULATED_FN 0x1122334455667788ull
+#define WRAPPED_JNI_ENV 0xaaaabbbbccccddddull
+#define RUNNER 0x7000123456780000ull
+
+#define ARRAY_SIZE(a) ((int) (sizeof(a) / sizeof((a)[0])))
+
+// JNIEnv* and jobject only
+static const uint32_t EXPECTED_NO_ARGS[] = {
+        0xa9be7bfd, 0x910003fd, 0xd29bbba0, 0xf2b99980, 0xf2d77760, 0xf2f55540,
+        0xaa0103e3, 0xaa0003e2, 0xd28ef100, 0xf2aaacc0, 0xf2c66880, 0xf2e22440,
+        0x52800e12, 0x390043f2, 0x52800e12, 0x390047f2, 0x52800012, 0x39004bf2,
+        0x910043e1, 0xd2800012, 0xf2aacf12, 0xf2c24692, 0xf2ee0012, 0xd63f0240,
+        0xa8c27bfd, 0xd65f03c0,
+};
+
+// ten jlong args, the last four come in on the stack
+static const uint32_t EXPECTED_MANY_LONGS[] = {
+        0xd10143ff, 0xa9037bfd, 0x9100c3fd, 0xd29bbba0, 0xf2b99980, 0xf2d77760,
+        0xf2f55540, 0xf94037f2, 0xf90017f2, 0xf94033f2, 0xf90013f2, 0xf9402ff2,
+        0xf9000ff2, 0xf9402bf2, 0xf9000bf2, 0xf90007e7, 0xf90003e6, 0xaa0503e7,
+        0xaa0403e6, 0xaa0303e5, 0xaa0203e4, 0xaa0103e3, 0xaa0003e2, 0xd28ef100,
+        0xf2aaacc0, 0xf2c66880, 0xf2e22440, 0xd28e0e12, 0xf2a92932, 0xf2c92932,
+        0xf2e92932, 0xf90023f2, 0x52892932, 0x72a92932, 0xb9004bf2, 0x52800012,
+        0x390133f2, 0x910103e1, 0xd2800012, 0xf2aacf12, 0xf2c24692, 0xf2ee0012,
+        0xd63f0240, 0xa9437bfd, 0x910143ff, 0xd65f03c0,
+};
+
+// floats are widened to doubles, the ones past v7 come in on the stack
+static const uint32_t EXPECTED_MANY_FLOATS[] = {
+        0xd10103ff, 0xa9027bfd, 0x910083fd, 0xd29bbba0, 0xf2b99980, 0xf2d77760,
+        0xf2f55540, 0xfd402ff2, 0xfd000ff2, 0xfd402bf2, 0xfd000bf2, 0xbd404bf2,
+        0x1e22c252, 0xfd0007f2, 0xbd4043f2, 0x1e22c252, 0xfd0003f2, 0x1e22c0e7,
+        0x1e22c0c6, 0x1e22c0a5, 0x1e22c084, 0x1e22c063, 0x1e22c042, 0x1e22c021,
+        0x1e22c000, 0xaa0103e3, 0xaa0003e2, 0xd28ef100, 0xf2aaacc0, 0xf2c66880,
+        0xf2e22440, 0xd28e0e12, 0xf2acccd2, 0xf2ccccd2, 0xf2ecccd2, 0xf9001bf2,
+        0x528cccd2, 0x72acccd2, 0xb9003bf2, 0x52800c92, 0x3900f3f2, 0x52800c92,
+        0x3900f7f2, 0x52800012, 0x3900fbf2, 0x9100c3e1, 0xd2800012, 0xf2aacf12,
+        0xf2c24692, 0xf2ee0012, 0xd63f0240, 0xa9427bfd, 0x910103ff, 0xd65f03c0,
+};
+
+// both register files overflow, stack args of both kinds are interleaved
+static const uint32_t EXPECTED_MIXED_SPILL[] = {
+        0xd10243ff, 0xa9067bfd, 0x910183fd, 0xd29bbba0, 0xf2b99980, 0xf2d77760,
+        0xf2f55540, 0xbd40dbf2, 0x1e22c252, 0xfd002ff2, 0xbd40d3f2, 0x1e22c252,
+        0xfd002bf2, 0xbd40cbf2, 0x1e22c252, 0xfd0027f2, 0xbd40c3f2, 0x1e22c252,
+        0xfd0023f2, 0xfd405ff2, 0xfd001ff2, 0xfd405bf2, 0xfd001bf2, 0xf94057f2,
+        0xf90017f2, 0xf94053f2, 0xf90013f2, 0xf9404ff2, 0xf9000ff2, 0xf9404bf2,
+        0xf9000bf2, 0xf90007e7, 0xf90003e6, 0xaa0503e7, 0xaa0403e6, 0xaa0303e5,
+        0xaa0203e4, 0xaa0103e3, 0xaa0003e2, 0xd28ef100, 0xf2aaacc0, 0xf2c66880,
+        0xf2e22440, 0xd28e0e12, 0xf2a92932, 0xf2c92932, 0xf2e92932, 0xf9003bf2,
+        0xd2892932, 0xf2a92932, 0xf2cc8c92, 0xf2ec8c92, 0xf9003ff2, 0xd28c8c92,
+        0xf2ac8c92, 0xf2cc8c92, 0xf2ecccd2, 0xf90043f2, 0x52800cd2, 0x390223f2,
+        0x52800cd2, 0x390227f2, 0x52800012, 0x39022bf2, 0x9101c3e1, 0xd2800012,
+        0xf2aacf12, 0xf2c24692, 0xf2ee0012, 0xd63f0240, 0xa9467bfd, 0x910243ff,
+        0xd65f03c0,
+};
+
+// emulated function goes into x3, after JNIEnv*, jobject and jint
+static const uint32_t EXPECTED_DIRECT[] = {
+        0xd29bbba0, 0xf2b99980, 0xf2d77760, 0xf2f55540, 0xd28ef103, 0xf2aaacc3,
+        0xf2c66883, 0xf2e22443, 0xd2800010, 0xf2aacf10, 0xf2c24690, 0xf2ee0010,
+        0xd61f0200,
+};
+
+static int failures = 0;
+
+static void check_words(const char* name, const uint32_t* code, int insn_count, const uint32_t* expected,
+                        int expected_count) {
+    if (insn_count != expected_count) {
+        fprintf(stderr, "FAIL %s: %d instructions, expected %d\n", name, insn_count, expected_count);
+        failures++;
+        return;
+    }
+    for (int i = 0; i < insn_count; i++) {
+        if (code[i] != expected[i]) {
+            fprintf(stderr, "FAIL %s: word %d is %08x, expected %08x\n", name, i, code[i], expected[i]);
+            failures++;
+            return;
+        }
+    }
+    printf("ok %s\n", name);
+}
+
+static void check_assemble(const char* signature, const uint32_t* expected, int expected_count) {
+    uint32_t code[TRAMPOLINE_MAX_INSNS];
+    int insn_count;
+    if (zomdroid_trampoline_assemble(code, TRAMPOLINE_MAX_INSNS, &insn_count, signature, EMULATED_FN,
+                                     WRAPPED_JNI_ENV, RUNNER) != 0) {
+        fprintf(stderr, "FAIL %s: assembling failed\n", signature);
+        failures++;
+        return;
+    }
+    check_words(signature, code, insn_count, expected, expected_count);
+}
+
+static void check_longest_signature(void) {
+    char signature[258];
+    signature[0] = 'p';
+    signature[1] = 'p';
+    for (int i = 2; i < 257; i++) signature[i] = i % 3 ? 'I' : 'd';
+    signature[257] = 0;
+
+    uint32_t code[TRAMPOLINE_MAX_INSNS];
+    int insn_count;
+    if (zomdroid_trampoline_assemble(code, TRAMPOLINE_MAX_INSNS, &insn_count, signature, EMULATED_FN,
+                                     WRAPPED_JNI_ENV, RUNNER) != 0) {
+        fprintf(stderr, "FAIL 255 args: doesn't fit into TRAMPOLINE_MAX_INSNS\n");
+        failures++;
+        return;
+    }
+    printf("ok 255 args, %d instructions\n", insn_count);
+}
+
+static void check_rejected(const char* name, int result, int insn_count, int capacity) {
+    if (result != -1 || insn_count > capacity) {
+        fprintf(stderr, "FAIL %s: returned %d with %d instructions\n", name, result, insn_count);
+        failures++;
+        return;
+    }
+    printf("ok %s\n", name);
+}
+
+static void check_too_small_buffer(void) {
+    // guard word right past the capacity must survive
+    uint32_t code[9];
+    int insn_count;
+    code[8] = 0xdeadbeef;
+    int result = zomdroid_trampoline_assemble(code, 8, &insn_count, "pp", EMULATED_FN, WRAPPED_JNI_ENV, RUNNER);
+    check_rejected("assemble into too small buffer", result, insn_count, 8);
+    if (code[8] != 0xdeadbeef) {
+        fprintf(stderr, "FAIL assemble into too small buffer: wrote past capacity\n");
+        failures++;
+    }
+
+    code[8] = 0xdeadbeef;
+    result = zomdroid_trampoline_assemble_direct(code, 8, &insn_count, "ppifd", EMULATED_FN, WRAPPED_JNI_ENV, RUNNER);
+    check_rejected("assemble_direct into too small buffer", result, insn_count, 8);
+    if (code[8] != 0xdeadbeef) {
+        fprintf(stderr, "FAIL assemble_direct into too small buffer: wrote past capacity\n");
+        failures++;
+    }
+}
+
+int main(void) {
+    check_assemble("pp", EXPECTED_NO_ARGS, ARRAY_SIZE(EXPECTED_NO_ARGS));
+    check_assemble("ppIIIIIIIIII", EXPECTED_MANY_LONGS, ARRAY_SIZE(EXPECTED_MANY_LONGS));
+    check_assemble("ppffffffffffdd", EXPECTED_MANY_FLOATS, ARRAY_SIZE(EXPECTED_MANY_FLOATS));
+    check_assemble("ppIIIIIIIIIIddddddddddffff", EXPECTED_MIXED_SPILL, ARRAY_SIZE(EXPECTED_MIXED_SPILL));
+    check_longest_signature();
+
+    uint32_t code[TRAMPOLINE_MAX_INSNS];
+    int insn_count;
+    if (zomdroid_trampoline_assemble_direct(code, TRAMPOLINE_MAX_INSNS, &insn_count, "ppifd", EMULATED_FN,
+                                            WRAPPED_JNI_ENV, RUNNER) != 0) {
+        fprintf(stderr, "FAIL direct ppifd: assembling failed\n");
+        failures++;
+    } else {
+        check_words("direct ppifd", code, insn_count, EXPECTED_DIRECT, ARRAY_SIZE(EXPECTED_DIRECT));
+    }
+    // no general purpose register is left for the emulated function
+    check_rejected("direct pppppppp",
+                   zomdroid_trampoline_assemble_direct(code, TRAMPOLINE_MAX_INSNS, &insn_count, "pppppppp",
+                                                       EMULATED_FN, WRAPPED_JNI_ENV, RUNNER),
+                   0, 0);
+
+    check_too_small_buffer();
+
+    if (failures > 0) {
+        fprintf(stderr, "%d check(s) failed\n", failures);
+        return 1;
+    }
+    return 0;
+}
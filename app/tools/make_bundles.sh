@@ -0,0 +1,42 @@
+#!/usr/bin/env bash
+set -e
+# Packs dependency folders into asset bundles.
+# jre and libs are compressed as multi-block XZ so the installer can decode blocks in parallel.
+# Every bundle gets a <bundle>.manifest (path, size, sha256 per file) used for incremental updates.
+# Usage: app/tools/make_bundles.sh <dependencies dir>
+DEPS_DIR=$1
+BUNDLES_DIR=app/src/main/assets/bundles
+XZ_BLOCK_SIZE=8MiB
+
+if [ -z "$DEPS_DIR" ] || [ ! -d "$DEPS_DIR" ]; then
+  echo "Usage: $0 <dependencies dir>" >&2
+  exit 1
+fi
+if ! command -v xz >/dev/null 2>&1; then
+  echo "xz not found in PATH" >&2
+  exit 2
+fi
+
+mkdir -p "$BUNDLES_DIR"
+
+write_manifest() {
+  (cd "$DEPS_DIR/$1" && find . -type f -printf '%P\n' | LC_ALL=C sort | while IFS= read -r f; do
+    printf '%s\t%s\t%s\n' "$f" "$(stat -c %s "$f")" "$(sha256sum "$f" | cut -d' ' -f1)"
+  done) > "$BUNDLES_DIR/$1.manifest"
+}
+
+for bundle in jre libs; do
+  if [ ! -d "$DEPS_DIR/$bundle" ]; then
+    echo "$DEPS_DIR/$bundle not found" >&2
+    exit 3
+  fi
+  echo "Packing $bundle.tar.xz..."
+  tar -C "$DEPS_DIR/$bundle" -cf - . | xz -T0 --block-size=$XZ_BLOCK_SIZE --lzma2=preset=9,dict=$XZ_BLOCK_SIZE > "$BUNDLES_DIR/$bundle.tar.xz"
+  write_manifest $bundle
+done
+
+echo "Packing jars.tar..."
+tar -C "$DEPS_DIR/jars" -cf "$BUNDLES_DIR/jars.tar" .
+write_manifest jars
+
+echo "Done"